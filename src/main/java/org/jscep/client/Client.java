@@ -56,6 +56,7 @@ import org.jscep.message.PkiMessageEncoder;
 import org.jscep.transaction.EnrollmentTransaction;
 import org.jscep.transaction.MessageType;
 import org.jscep.transaction.NonEnrollmentTransaction;
+import org.jscep.transaction.NonceQueue;
 import org.jscep.transaction.OperationFailureException;
 import org.jscep.transaction.Transaction;
 import org.jscep.transaction.Transaction.State;
@@ -96,6 +97,8 @@ import org.slf4j.LoggerFactory;
  */
 public final class Client {
 	private static final Logger LOGGER = LoggerFactory.getLogger(Client.class);
+	// Shared by clients which are not given their own queue.
+	private static final NonceQueue DEFAULT_QUEUE = new NonceQueue();
 
 	// A requester MUST have the following information locally configured:
 	//
@@ -114,6 +117,8 @@ public final class Client {
 	//
 	// We use a callback handler for this.
 	private final CallbackHandler handler;
+	// Response senderNonces already seen by this client.
+	private final NonceQueue nonceQueue;
 
 	/**
 	 * Constructs a new <tt>Client</tt> instance using the provided
@@ -124,6 +129,9 @@ public final class Client {
 	 * <tt>CallbackHandler</tt> will be used to handle additional
 	 * <tt>Callback</tt>s, users of this class are recommended to use the
 	 * {@link #Client(URL, CertificateVerifier)} constructor instead.
+	 * <p>
+	 * Replayed responses are detected using a queue shared by every client
+	 * constructed without one.
 	 * 
 	 * @param url
 	 *            the URL of the SCEP server.
@@ -131,8 +139,27 @@ public final class Client {
 	 *            the callback handler used to check the CA identity.
 	 */
 	public Client(URL url, CallbackHandler handler) {
+		this(url, handler, DEFAULT_QUEUE);
+	}
+
+	/**
+	 * Constructs a new <tt>Client</tt> instance using the provided
+	 * <tt>CallbackHandler</tt> for the provided URL, and the provided queue
+	 * for detecting replayed responses.
+	 * <p>
+	 * The queue may be shared between several clients.
+	 * 
+	 * @param url
+	 *            the URL of the SCEP server.
+	 * @param handler
+	 *            the callback handler used to check the CA identity.
+	 * @param nonceQueue
+	 *            the queue used to detect replayed response nonces.
+	 */
+	public Client(URL url, CallbackHandler handler, NonceQueue nonceQueue) {
 		this.url = url;
 		this.handler = handler;
+		this.nonceQueue = nonceQueue;
 
 		validateInput();
 	}
@@ -143,6 +170,9 @@ public final class Client {
 	 * <p/>
 	 * The provided <tt>CertificateVerifier</tt> is used to verify that the
 	 * identity of the SCEP server matches what the client expects.
+	 * <p>
+	 * Replayed responses are detected using a queue shared by every client
+	 * constructed without one.
 	 * 
 	 * @param url
 	 *            the URL of the SCEP server.
@@ -150,10 +180,25 @@ public final class Client {
 	 *            the verifier used to check the CA identity.
 	 */
 	public Client(URL url, CertificateVerifier verifier) {
-		this.url = url;
-		this.handler = new DefaultCallbackHandler(verifier);
+		this(url, verifier, DEFAULT_QUEUE);
+	}
 
-		validateInput();
+	/**
+	 * Constructs a new <tt>Client</tt> instance using the provided
+	 * <tt>CertificateVerifier</tt> for the provided URL, and the provided
+	 * queue for detecting replayed responses.
+	 * <p>
+	 * The queue may be shared between several clients.
+	 * 
+	 * @param url
+	 *            the URL of the SCEP server.
+	 * @param verifier
+	 *            the verifier used to check the CA identity.
+	 * @param nonceQueue
+	 *            the queue used to detect replayed response nonces.
+	 */
+	public Client(URL url, CertificateVerifier verifier, NonceQueue nonceQueue) {
+		this(url, new DefaultCallbackHandler(verifier), nonceQueue);
 	}
 
 	/**
@@ -186,6 +231,9 @@ public final class Client {
 			throw new NullPointerException(
 					"Callback handler should not be null");
 		}
+		if (nonceQueue == null) {
+			throw new NullPointerException("Nonce queue should not be null");
+		}
 	}
 
 	// INFORMATIONAL REQUESTS
@@ -618,6 +666,7 @@ public final class Client {
 		PkiMessageDecoder decoder = getDecoder(identity, key, profile);
 		final EnrollmentTransaction trans = new EnrollmentTransaction(
 				transport, encoder, decoder, csr);
+		trans.setNonceQueue(nonceQueue);
 
 		try {
 			MessageDigest digest = getCaCapabilities(profile)
@@ -668,6 +717,7 @@ public final class Client {
 
 		final EnrollmentTransaction trans = new EnrollmentTransaction(
 				transport, encoder, decoder, ias, transId);
+		trans.setNonceQueue(nonceQueue);
 		return send(trans);
 	}
 
@@ -678,7 +728,8 @@ public final class Client {
 		if (s == State.CERT_ISSUED) {
 			return new EnrollmentResponse(trans.getId(), trans.getCertStore());
 		} else if (s == State.CERT_REQ_PENDING) {
-			return new EnrollmentResponse(trans.getId());
+			return new EnrollmentResponse(trans.getId(),
+					trans.getRetryAfter());
 		} else {
 			return new EnrollmentResponse(trans.getId(), trans.getFailInfo());
 		}
@@ -693,7 +744,8 @@ public final class Client {
 		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
 				recipientCertificate, caps.getStrongestCipher());
 
-		String sigAlg = caps.getStrongestSignatureAlgorithm();
+		String sigAlg = caps.getStrongestSignatureAlgorithm(priKey
+				.getAlgorithm());
 		return new PkiMessageEncoder(priKey, identity, envEncoder, sigAlg);
 	}
 
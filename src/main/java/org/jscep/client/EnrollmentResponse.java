@@ -12,6 +12,7 @@ public final class EnrollmentResponse {
 	private final FailInfo failInfo;
 	private final CertStore certStore;
 	private final TransactionId transId;
+	private final int retryAfter;
 
 	/**
 	 * Constructs a new instance of this class to represent a pending response.
@@ -20,7 +21,21 @@ public final class EnrollmentResponse {
 	 *            the transaction ID
 	 */
 	public EnrollmentResponse(TransactionId transId) {
-		this(transId, null, null);
+		this(transId, 0);
+	}
+
+	/**
+	 * Constructs a new instance of this class to represent a pending response
+	 * with a hint of when to poll again.
+	 * 
+	 * @param transId
+	 *            the transaction ID
+	 * @param retryAfter
+	 *            the number of seconds to wait before polling, or <tt>0</tt>
+	 *            for no hint
+	 */
+	public EnrollmentResponse(TransactionId transId, int retryAfter) {
+		this(transId, null, null, retryAfter);
 	}
 
 	/**
@@ -32,7 +47,7 @@ public final class EnrollmentResponse {
 	 *            the failure reason
 	 */
 	public EnrollmentResponse(TransactionId transId, FailInfo failInfo) {
-		this(transId, null, failInfo);
+		this(transId, null, failInfo, 0);
 	}
 
 	/**
@@ -44,14 +59,15 @@ public final class EnrollmentResponse {
 	 *            the certificate response
 	 */
 	public EnrollmentResponse(TransactionId transId, CertStore certStore) {
-		this(transId, certStore, null);
+		this(transId, certStore, null, 0);
 	}
 
 	private EnrollmentResponse(TransactionId transId, CertStore certStore,
-			FailInfo failInfo) {
+			FailInfo failInfo, int retryAfter) {
 		this.transId = transId;
 		this.certStore = certStore;
 		this.failInfo = failInfo;
+		this.retryAfter = retryAfter;
 	}
 
 	/**
@@ -90,6 +106,20 @@ public final class EnrollmentResponse {
 		return transId;
 	}
 
+	/**
+	 * Returns the number of seconds the server asked the client to wait
+	 * before polling a pending enrollment.
+	 * <p>
+	 * Callers of {@link Client#poll} should wait at least this long before
+	 * polling again.
+	 * 
+	 * @return the number of seconds, or <tt>0</tt> if the server sent no
+	 *         hint.
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
 	/**
 	 * Returns the CertStore for a successful enrollment.
 	 * <p>
@@ -0,0 +1,85 @@
+package org.jscep.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.GenericKey;
+import org.bouncycastle.operator.OutputEncryptor;
+
+/**
+ * This class is an <tt>OutputEncryptor</tt> for block ciphers in CBC mode
+ * which draws its <tt>Cipher</tt> and <tt>KeyGenerator</tt> from the
+ * {@link CryptoPool}.
+ * <p>
+ * The <tt>Cipher</tt> is borrowed when the output stream is requested, and
+ * returned to the pool when that stream is closed.
+ */
+final class CbcOutputEncryptor implements OutputEncryptor {
+	private final String transformation;
+	private final SecretKey key;
+	private final byte[] iv;
+	private final AlgorithmIdentifier algId;
+
+	/**
+	 * Creates a new <tt>CbcOutputEncryptor</tt> with a freshly generated key
+	 * and IV.
+	 * 
+	 * @param algorithm
+	 *            the JCA name of the block cipher.
+	 * @param keySize
+	 *            the key size in bits.
+	 * @param blockSize
+	 *            the block size in bytes.
+	 * @param oid
+	 *            the object identifier of the cipher in CBC mode.
+	 * @throws GeneralSecurityException
+	 *             if the cipher is not supported.
+	 */
+	CbcOutputEncryptor(String algorithm, int keySize, int blockSize,
+			ASN1ObjectIdentifier oid) throws GeneralSecurityException {
+		this.transformation = algorithm + "/CBC/PKCS5Padding";
+		this.key = CryptoPool.generateKey(algorithm, keySize);
+		this.iv = CryptoPool.nextIv(blockSize);
+		this.algId = new AlgorithmIdentifier(oid, new DEROctetString(iv));
+	}
+
+	public AlgorithmIdentifier getAlgorithmIdentifier() {
+		return algId;
+	}
+
+	public OutputStream getOutputStream(OutputStream encOut) {
+		final Cipher cipher;
+		try {
+			cipher = CryptoPool.borrowCipher(transformation);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+
+		return new CipherOutputStream(encOut, cipher) {
+			private boolean released;
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (!released) {
+					released = true;
+					CryptoPool.releaseCipher(transformation, cipher);
+				}
+			}
+		};
+	}
+
+	public GenericKey getKey() {
+		return new GenericKey(key);
+	}
+}
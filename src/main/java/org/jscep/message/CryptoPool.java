@@ -0,0 +1,201 @@
+package org.jscep.message;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECParameterSpec;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * This class pools the JCA objects used for enveloping and opening a
+ * <tt>pkcsPkiEnvelope</tt>.
+ * <p>
+ * Looking up a <tt>Cipher</tt> or <tt>KeyGenerator</tt> involves a walk over
+ * the installed providers, and seeding a new <tt>SecureRandom</tt> can be
+ * slower still, so these objects are created once and shared between
+ * messages. A borrowed <tt>Cipher</tt> must be initialised before use, and
+ * should be released once the operation is complete. At most a fixed number
+ * of idle objects are kept for each algorithm; the rest are discarded.
+ */
+@ThreadSafe
+final class CryptoPool {
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final int MAX_IDLE = 32;
+	private static final ConcurrentMap<String, Queue<Cipher>> CIPHERS = new ConcurrentHashMap<String, Queue<Cipher>>();
+	private static final ConcurrentMap<String, Queue<KeyGenerator>> KEY_GENERATORS = new ConcurrentHashMap<String, Queue<KeyGenerator>>();
+
+	private CryptoPool() {
+	}
+
+	/**
+	 * Borrows a <tt>Cipher</tt> for the given transformation.
+	 * 
+	 * @param transformation
+	 *            the transformation.
+	 * @return an uninitialised <tt>Cipher</tt>.
+	 * @throws GeneralSecurityException
+	 *             if the transformation is not supported.
+	 */
+	static Cipher borrowCipher(String transformation)
+			throws GeneralSecurityException {
+		Cipher cipher = getQueue(CIPHERS, transformation).poll();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(transformation);
+		}
+		return cipher;
+	}
+
+	/**
+	 * Returns a <tt>Cipher</tt> to the pool.
+	 * 
+	 * @param transformation
+	 *            the transformation the <tt>Cipher</tt> was borrowed for.
+	 * @param cipher
+	 *            the <tt>Cipher</tt> to return.
+	 */
+	static void releaseCipher(String transformation, Cipher cipher) {
+		getQueue(CIPHERS, transformation).offer(cipher);
+	}
+
+	/**
+	 * Generates a new secret key.
+	 * 
+	 * @param algorithm
+	 *            the key algorithm.
+	 * @param keySize
+	 *            the key size in bits.
+	 * @return the new key.
+	 * @throws GeneralSecurityException
+	 *             if the algorithm is not supported.
+	 */
+	static SecretKey generateKey(String algorithm, int keySize)
+			throws GeneralSecurityException {
+		String poolKey = algorithm + "/" + keySize;
+		Queue<KeyGenerator> queue = getQueue(KEY_GENERATORS, poolKey);
+		KeyGenerator keyGen = queue.poll();
+		if (keyGen == null) {
+			keyGen = KeyGenerator.getInstance(algorithm);
+			keyGen.init(keySize, RANDOM);
+		}
+		try {
+			return keyGen.generateKey();
+		} finally {
+			queue.offer(keyGen);
+		}
+	}
+
+	/**
+	 * Generates a new ephemeral elliptic curve key pair on the provided curve.
+	 * 
+	 * @param params
+	 *            the curve parameters.
+	 * @return the new key pair.
+	 * @throws GeneralSecurityException
+	 *             if the curve is not supported.
+	 */
+	static KeyPair generateEcKeyPair(ECParameterSpec params)
+			throws GeneralSecurityException {
+		KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("EC",
+				getKeyAgreementProvider());
+		keyPairGen.initialize(params, RANDOM);
+
+		return keyPairGen.generateKeyPair();
+	}
+
+	/**
+	 * Returns the provider used for elliptic curve key agreement.
+	 * <p>
+	 * The CMS key agreement scheme (ECDH with the X9.63 SHA-1 KDF) is not
+	 * offered by the JRE providers, so a private Bouncy Castle provider is
+	 * used. It is not added to the installed providers.
+	 * 
+	 * @return the key agreement provider.
+	 */
+	static Provider getKeyAgreementProvider() {
+		return KeyAgreementProviderHolder.PROVIDER;
+	}
+
+	/**
+	 * Converts the provided certificate for use with the key agreement
+	 * provider, which only accepts its own key classes.
+	 * 
+	 * @param cert
+	 *            the certificate to convert.
+	 * @return the converted certificate.
+	 * @throws GeneralSecurityException
+	 *             if the certificate cannot be converted.
+	 */
+	static X509Certificate toKeyAgreementCertificate(X509Certificate cert)
+			throws GeneralSecurityException {
+		CertificateFactory factory = CertificateFactory.getInstance("X.509",
+				getKeyAgreementProvider());
+
+		return (X509Certificate) factory
+				.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
+	}
+
+	/**
+	 * Converts the provided elliptic curve key for use with the key agreement
+	 * provider, which only accepts its own key classes.
+	 * 
+	 * @param key
+	 *            the key to convert.
+	 * @return the converted key.
+	 * @throws GeneralSecurityException
+	 *             if the key cannot be converted.
+	 */
+	static PrivateKey toKeyAgreementKey(PrivateKey key)
+			throws GeneralSecurityException {
+		return (PrivateKey) KeyFactory.getInstance("EC",
+				getKeyAgreementProvider()).translateKey(key);
+	}
+
+	/**
+	 * Generates a random initialisation vector.
+	 * 
+	 * @param length
+	 *            the length of the IV in bytes.
+	 * @return the IV.
+	 */
+	static byte[] nextIv(int length) {
+		byte[] iv = new byte[length];
+		RANDOM.nextBytes(iv);
+
+		return iv;
+	}
+
+	private static final class KeyAgreementProviderHolder {
+		private static final Provider PROVIDER = new BouncyCastleProvider();
+	}
+
+	private static <T> Queue<T> getQueue(ConcurrentMap<String, Queue<T>> pool,
+			String key) {
+		Queue<T> queue = pool.get(key);
+		if (queue == null) {
+			queue = new ArrayBlockingQueue<T>(MAX_IDLE);
+			Queue<T> existing = pool.putIfAbsent(key, queue);
+			if (existing != null) {
+				queue = existing;
+			}
+		}
+		return queue;
+	}
+}
@@ -0,0 +1,93 @@
+package org.jscep.message;
+
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.jscep.util.SignatureUtils;
+
+/**
+ * This class is a <tt>ContentSigner</tt> which delegates the private key
+ * operation to a {@link PrivateKeyOperator}.
+ * <p>
+ * The content is digested on the calling thread, and only the digest is
+ * passed to the operator for signing. Like the signers built by
+ * <tt>JcaContentSignerBuilder</tt>, an instance should be used for a single
+ * signature.
+ */
+public final class OperatorContentSigner implements ContentSigner {
+	private final PrivateKeyOperator operator;
+	private final AlgorithmIdentifier sigAlgId;
+	private final DigestCalculator digest;
+
+	/**
+	 * Creates a new <tt>OperatorContentSigner</tt>.
+	 * 
+	 * @param signatureAlgorithm
+	 *            the JCA name of the signature algorithm, for example
+	 *            <tt>SHA1withRSA</tt>.
+	 * @param operator
+	 *            the operator holding the signing key.
+	 * @throws OperatorCreationException
+	 *             if the signature algorithm is not supported.
+	 */
+	public OperatorContentSigner(String signatureAlgorithm,
+			PrivateKeyOperator operator) throws OperatorCreationException {
+		this.operator = operator;
+		try {
+			this.sigAlgId = new DefaultSignatureAlgorithmIdentifierFinder()
+					.find(signatureAlgorithm);
+		} catch (IllegalArgumentException e) {
+			throw new OperatorCreationException("Unknown signature algorithm "
+					+ signatureAlgorithm, e);
+		}
+		this.digest = SignatureUtils.getDigestCalculatorProvider().get(
+				new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId));
+	}
+
+	public AlgorithmIdentifier getAlgorithmIdentifier() {
+		return sigAlgId;
+	}
+
+	public OutputStream getOutputStream() {
+		return digest.getOutputStream();
+	}
+
+	public byte[] getSignature() {
+		try {
+			return await(operator.sign(digest.getAlgorithmIdentifier(),
+					digest.getDigest()));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeOperatorException("Could not sign digest", e);
+		}
+	}
+
+	/**
+	 * Waits for the result of a private key operation. A failure other than
+	 * a <tt>GeneralSecurityException</tt> is a failure of the operator.
+	 */
+	static byte[] await(Future<byte[]> result)
+			throws GeneralSecurityException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PrivateKeyOperatorException(
+					"Interrupted waiting for private key operation", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) e.getCause();
+			}
+			throw new PrivateKeyOperatorException(
+					"Private key operation failed", e.getCause());
+		}
+	}
+}
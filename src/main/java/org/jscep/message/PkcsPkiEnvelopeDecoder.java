@@ -1,41 +1,71 @@
 package org.jscep.message;
 
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes128_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes192_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes256_CBC;
+import static org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers.des_EDE3_CBC;
+import static org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers.rsaEncryption;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.cms.EnvelopedData;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cms.CMSEnvelopedData;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
 import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.KeyAgreeRecipientInformation;
+import org.bouncycastle.cms.Recipient;
 import org.bouncycastle.cms.RecipientInformation;
 import org.bouncycastle.cms.RecipientInformationStore;
 import org.bouncycastle.cms.RecipientOperator;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeRecipientId;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
 import org.bouncycastle.operator.InputDecryptor;
+import org.bouncycastle.util.io.Streams;
 import org.slf4j.Logger;
 
 /**
  * This class is used to decrypt the <tt>pkcsPkiEnvelope</tt> of a SCEP secure
  * message object and extract the <tt>messageData</tt> from within.
+ * <p>
+ * Envelopes encrypted using DES, triple DES and AES (128, 192 and 256-bit
+ * keys) in CBC mode are supported. The content encryption key may be
+ * transported to an RSA recipient, or agreed with an elliptic curve recipient.
  * 
  * @see PkcsPkiEnvelopeEncoder
  */
 public final class PkcsPkiEnvelopeDecoder {
 	private static final Logger LOGGER = getLogger(PkcsPkiEnvelopeDecoder.class);
+	private static final String KEY_TRANSPORT = "RSA";
+	private static final Map<ASN1ObjectIdentifier, String> CBC_CIPHERS = new HashMap<ASN1ObjectIdentifier, String>();
+	static {
+		CBC_CIPHERS.put(new ASN1ObjectIdentifier("1.3.14.3.2.7"), "DES");
+		CBC_CIPHERS.put(des_EDE3_CBC, "DESede");
+		CBC_CIPHERS.put(id_aes128_CBC, "AES");
+		CBC_CIPHERS.put(id_aes192_CBC, "AES");
+		CBC_CIPHERS.put(id_aes256_CBC, "AES");
+	}
 	private final X509Certificate recipient;
 	private final PrivateKey priKey;
+	private final PrivateKeyOperator operator;
 
 	/**
 	 * Creates a <tt>PkcsPkiEnveloperDecoder</tt> for the provided certificate
@@ -52,6 +82,28 @@ public final class PkcsPkiEnvelopeDecoder {
 	public PkcsPkiEnvelopeDecoder(X509Certificate recipient, PrivateKey priKey) {
 		this.recipient = recipient;
 		this.priKey = priKey;
+		this.operator = null;
+	}
+
+	/**
+	 * Creates a <tt>PkcsPkiEnveloperDecoder</tt> for the provided certificate
+	 * which delegates unwrapping of the symmetric encrypting key to the
+	 * provided operator.
+	 * <p>
+	 * Only envelopes which transport the key to an RSA recipient can be
+	 * decoded in this way.
+	 * 
+	 * @param recipient
+	 *            the entity for whom the message was enveloped.
+	 * @param operator
+	 *            the operator holding the key to unwrap the symmetric
+	 *            encrypting key.
+	 */
+	public PkcsPkiEnvelopeDecoder(X509Certificate recipient,
+			PrivateKeyOperator operator) {
+		this.recipient = recipient;
+		this.priKey = null;
+		this.operator = operator;
 	}
 
 	/**
@@ -69,13 +121,76 @@ public final class PkcsPkiEnvelopeDecoder {
 		LOGGER.debug("Decoding pkcsPkiEnvelope");
 		validate(pkcsPkiEnvelope);
 
+		RecipientInformation info = getRecipientInfo(pkcsPkiEnvelope
+				.getRecipientInfos());
+
+		try {
+			// Closing the stream returns its cipher to the pool
+			InputStream content = info.getContentStream(getRecipient(info))
+					.getContentStream();
+			try {
+				byte[] messageData = Streams.readAll(content);
+				LOGGER.debug("Finished decoding pkcsPkiEnvelope");
+				return messageData;
+			} finally {
+				content.close();
+			}
+		} catch (CMSException e) {
+			throw new MessageDecodingException(e);
+		} catch (IOException e) {
+			throw new MessageDecodingException(e);
+		}
+	}
+
+	/**
+	 * Decrypts the provided <tt>pkcsPkiEnvelope</tt> stream.
+	 * <p>
+	 * Unlike {@link #decode(CMSEnvelopedData)}, this method does not buffer
+	 * the <tt>messageData</tt>. Instead, the returned stream decrypts the
+	 * content as it is read. Callers should close the stream once the content
+	 * has been read.
+	 * 
+	 * @param pkcsPkiEnvelope
+	 *            the envelope stream to decrypt and open.
+	 * @return a stream of the SCEP <tt>messageData</tt>.
+	 * @throws MessageDecodingException
+	 *             if the envelope cannot be decoded.
+	 */
+	public InputStream decode(InputStream pkcsPkiEnvelope)
+			throws MessageDecodingException {
+		LOGGER.debug("Decoding pkcsPkiEnvelope stream");
+		RecipientInformation info;
+		try {
+			CMSEnvelopedDataParser parser = new CMSEnvelopedDataParser(
+					pkcsPkiEnvelope);
+			info = getRecipientInfo(parser.getRecipientInfos());
+		} catch (CMSException e) {
+			throw new MessageDecodingException(e);
+		} catch (IOException e) {
+			throw new MessageDecodingException(e);
+		}
+
+		try {
+			return info.getContentStream(getRecipient(info))
+					.getContentStream();
+		} catch (CMSException e) {
+			throw new MessageDecodingException(e);
+		} catch (IOException e) {
+			throw new MessageDecodingException(e);
+		}
+	}
+
+	private RecipientInformation getRecipientInfo(
+			RecipientInformationStore recipientInfos)
+			throws MessageDecodingException {
 		LOGGER.debug(
 				"Decrypting pkcsPkiEnvelope using key belonging to [issuer={}; serial={}]",
 				recipient.getIssuerDN(), recipient.getSerialNumber());
-		final RecipientInformationStore recipientInfos = pkcsPkiEnvelope
-				.getRecipientInfos();
 		RecipientInformation info = recipientInfos
 				.get(new JceKeyTransRecipientId(recipient));
+		if (info == null) {
+			info = recipientInfos.get(new JceKeyAgreeRecipientId(recipient));
+		}
 
 		if (info == null) {
 			throw new MessageDecodingException(
@@ -85,13 +200,25 @@ public final class PkcsPkiEnvelopeDecoder {
 		LOGGER.debug("pkcsPkiEnvelope encryption algorithm: {}", info
 				.getKeyEncryptionAlgorithm().getAlgorithm());
 
-		try {
-			byte[] messageData = info.getContent(getKeyTransRecipient());
-			LOGGER.debug("Finished decoding pkcsPkiEnvelope");
-			return messageData;
-		} catch (CMSException e) {
-			throw new MessageDecodingException(e);
+		return info;
+	}
+
+	private Recipient getRecipient(RecipientInformation info)
+			throws MessageDecodingException {
+		if (info instanceof KeyAgreeRecipientInformation) {
+			if (priKey == null) {
+				throw new MessageDecodingException(
+						"Key agreement requires the recipient private key");
+			}
+			try {
+				return new JceKeyAgreeEnvelopedRecipient(
+						CryptoPool.toKeyAgreementKey(priKey))
+						.setProvider(CryptoPool.getKeyAgreementProvider());
+			} catch (GeneralSecurityException e) {
+				throw new MessageDecodingException(e);
+			}
 		}
+		return getKeyTransRecipient();
 	}
 
 	private JceKeyTransEnvelopedRecipient getKeyTransRecipient() {
@@ -100,39 +227,104 @@ public final class PkcsPkiEnvelopeDecoder {
 					AlgorithmIdentifier keyEncryptionAlgorithm,
 					final AlgorithmIdentifier contentEncryptionAlgorithm,
 					byte[] encryptedContentEncryptionKey) throws CMSException {
-				if ("1.3.14.3.2.7".equals(contentEncryptionAlgorithm
-						.getAlgorithm().getId())) {
-					final Cipher dataCipher;
-					try {
-						Cipher unwrapper = Cipher.getInstance("RSA");
-						unwrapper.init(Cipher.UNWRAP_MODE, priKey);
-						Key encKey = unwrapper.unwrap(encryptedContentEncryptionKey, "DES", Cipher.SECRET_KEY);
-						ASN1Encodable sParams = contentEncryptionAlgorithm.getParameters();
-						
-						dataCipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
-						dataCipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(
-                                ASN1OctetString.getInstance(sParams).getOctets()));
-					} catch (GeneralSecurityException e) {
-						throw new CMSException("Could not create DES cipher", e);
+				final String cipherName = CBC_CIPHERS
+						.get(contentEncryptionAlgorithm.getAlgorithm());
+				if (cipherName == null
+						|| !rsaEncryption.equals(keyEncryptionAlgorithm
+								.getAlgorithm())) {
+					if (priKey == null) {
+						throw new CMSException(
+								"Unsupported key transport for key operator: "
+										+ keyEncryptionAlgorithm.getAlgorithm()
+										+ " with "
+										+ contentEncryptionAlgorithm
+												.getAlgorithm());
 					}
+					return super.getRecipientOperator(keyEncryptionAlgorithm,
+							contentEncryptionAlgorithm,
+							encryptedContentEncryptionKey);
+				}
 
-					return new RecipientOperator(new InputDecryptor() {
-						public AlgorithmIdentifier getAlgorithmIdentifier() {
-							return contentEncryptionAlgorithm;
-						}
+				final String transformation = cipherName + "/CBC/PKCS5Padding";
+				final Cipher dataCipher;
+				try {
+					Key encKey = unwrap(encryptedContentEncryptionKey,
+							cipherName);
+					ASN1Encodable sParams = contentEncryptionAlgorithm
+							.getParameters();
 
-						public InputStream getInputStream(InputStream dataIn) {
-							return new CipherInputStream(dataIn, dataCipher);
-						}
-					});
+					dataCipher = CryptoPool.borrowCipher(transformation);
+					dataCipher.init(Cipher.DECRYPT_MODE, encKey,
+							new IvParameterSpec(ASN1OctetString.getInstance(
+									sParams).getOctets()));
+				} catch (GeneralSecurityException e) {
+					throw new CMSException("Could not create " + cipherName
+							+ " cipher", e);
 				}
-				return super.getRecipientOperator(keyEncryptionAlgorithm,
-						contentEncryptionAlgorithm,
-						encryptedContentEncryptionKey);
+
+				return new RecipientOperator(new InputDecryptor() {
+					public AlgorithmIdentifier getAlgorithmIdentifier() {
+						return contentEncryptionAlgorithm;
+					}
+
+					public InputStream getInputStream(InputStream dataIn) {
+						return new PooledCipherInputStream(dataIn, dataCipher,
+								transformation);
+					}
+				});
 			}
 		};
 	}
 
+	private Key unwrap(byte[] encryptedKey, String cipherName)
+			throws GeneralSecurityException {
+		if (operator != null) {
+			return new SecretKeySpec(
+					OperatorContentSigner.await(operator.decrypt(encryptedKey)),
+					cipherName);
+		}
+		Cipher unwrapper = CryptoPool.borrowCipher(KEY_TRANSPORT);
+		try {
+			unwrapper.init(Cipher.UNWRAP_MODE, priKey);
+			return unwrapper.unwrap(encryptedKey, cipherName,
+					Cipher.SECRET_KEY);
+		} finally {
+			CryptoPool.releaseCipher(KEY_TRANSPORT, unwrapper);
+		}
+	}
+
+	/**
+	 * Returns the pooled <tt>Cipher</tt> once the stream is closed. Reaching
+	 * the end of the content is not enough, because closing the stream may
+	 * still finalise the <tt>Cipher</tt>.
+	 */
+	private static final class PooledCipherInputStream extends
+			CipherInputStream {
+		private final Cipher cipher;
+		private final String transformation;
+		private boolean released;
+
+		PooledCipherInputStream(InputStream in, Cipher cipher,
+				String transformation) {
+			super(in, cipher);
+			this.cipher = cipher;
+			this.transformation = transformation;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (released) {
+				return;
+			}
+			released = true;
+			try {
+				super.close();
+			} finally {
+				CryptoPool.releaseCipher(transformation, cipher);
+			}
+		}
+	}
+
 	private void validate(CMSEnvelopedData pkcsPkiEnvelope) {
 		EnvelopedData ed = EnvelopedData.getInstance(pkcsPkiEnvelope
 				.toASN1Structure().getContent());
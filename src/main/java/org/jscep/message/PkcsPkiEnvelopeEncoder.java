@@ -1,17 +1,24 @@
 package org.jscep.message;
 
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes128_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes192_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes256_CBC;
 import static org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers.des_EDE3_CBC;
 
-import java.security.cert.CertificateEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
 
+import org.bouncycastle.cms.CMSAlgorithm;
 import org.bouncycastle.cms.CMSEnvelopedData;
 import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSTypedData;
 import org.bouncycastle.cms.RecipientInfoGenerator;
-import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeRecipientInfoGenerator;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.bouncycastle.operator.OutputEncryptor;
 import org.slf4j.Logger;
@@ -20,6 +27,9 @@ import org.slf4j.LoggerFactory;
 /**
  * This class is used for enveloping and encrypting a <tt>messageData</tt> to
  * produce the <tt>pkcsPkiEnvelope</tt> part of a SCEP secure message object.
+ * <p>
+ * The content encryption key is transported to RSA recipients, and agreed
+ * using ephemeral-static ECDH for elliptic curve recipients.
  * 
  * @see PkcsPkiEnvelopeDecoder
  */
@@ -48,7 +58,9 @@ public final class PkcsPkiEnvelopeEncoder {
 	 * @param recipient
 	 *            the entity for whom the <tt>pkcsPkiEnvelope</tt> is intended.
 	 * @param encAlg
-	 *            the encryption algorithm to use.
+	 *            the encryption algorithm to use: one of <tt>DES</tt>,
+	 *            <tt>DESede</tt>, <tt>AES</tt> (128-bit key), <tt>AES192</tt>
+	 *            or <tt>AES256</tt>.
 	 */
 	public PkcsPkiEnvelopeEncoder(X509Certificate recipient, String encAlg) {
 		this.recipient = recipient;
@@ -71,9 +83,8 @@ public final class PkcsPkiEnvelopeEncoder {
 		CMSTypedData envelopable = new CMSProcessableByteArray(messageData);
 		RecipientInfoGenerator recipientGenerator;
 		try {
-			recipientGenerator = new JceKeyTransRecipientInfoGenerator(
-					recipient);
-		} catch (CertificateEncodingException e) {
+			recipientGenerator = getRecipientInfoGenerator();
+		} catch (GeneralSecurityException e) {
 			throw new MessageEncodingException(e);
 		}
 		edGenerator.addRecipientInfoGenerator(recipientGenerator);
@@ -98,11 +109,38 @@ public final class PkcsPkiEnvelopeEncoder {
 		}
 	}
 
+	private RecipientInfoGenerator getRecipientInfoGenerator()
+			throws GeneralSecurityException {
+		PublicKey pubKey = recipient.getPublicKey();
+		if (!(pubKey instanceof ECPublicKey)) {
+			return new JceKeyTransRecipientInfoGenerator(recipient);
+		}
+		// EC keys cannot transport a key, so agree one with an ephemeral key
+		KeyPair ephemeral = CryptoPool.generateEcKeyPair(((ECPublicKey) pubKey)
+				.getParams());
+		return new JceKeyAgreeRecipientInfoGenerator(
+				CMSAlgorithm.ECDH_SHA1KDF, ephemeral.getPrivate(),
+				ephemeral.getPublic(), CMSAlgorithm.AES128_WRAP)
+				.addRecipient(CryptoPool.toKeyAgreementCertificate(recipient))
+				.setProvider(
+						CryptoPool.getKeyAgreementProvider());
+	}
+
 	private OutputEncryptor getEncryptor() throws CMSException {
-		if ("DES".equals(encAlg)) {
-			return new DesOutputEncryptor();
-		} else {
-			return new JceCMSContentEncryptorBuilder(des_EDE3_CBC).build();
+		try {
+			if ("DES".equals(encAlg)) {
+				return new DesOutputEncryptor();
+			} else if ("AES".equals(encAlg) || "AES128".equals(encAlg)) {
+				return new CbcOutputEncryptor("AES", 128, 16, id_aes128_CBC);
+			} else if ("AES192".equals(encAlg)) {
+				return new CbcOutputEncryptor("AES", 192, 16, id_aes192_CBC);
+			} else if ("AES256".equals(encAlg)) {
+				return new CbcOutputEncryptor("AES", 256, 16, id_aes256_CBC);
+			} else {
+				return new CbcOutputEncryptor("DESede", 168, 8, des_EDE3_CBC);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new CMSException("Could not create " + encAlg + " cipher", e);
 		}
 	}
 }
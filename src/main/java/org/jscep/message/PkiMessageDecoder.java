@@ -9,10 +9,14 @@ import static org.jscep.asn1.ScepObjectIdentifier.TRANS_ID;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Hashtable;
 
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERPrintableString;
@@ -24,14 +28,19 @@ import org.bouncycastle.cms.CMSEnvelopedData;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.DefaultCMSSignatureAlgorithmNameGenerator;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
 import org.bouncycastle.cms.SignerInformationVerifier;
 import org.bouncycastle.cms.jcajce.JcaSignerId;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.bouncycastle.util.Store;
 import org.bouncycastle.util.StoreException;
+import org.bouncycastle.util.io.Streams;
 import org.jscep.asn1.IssuerAndSubject;
 import org.jscep.asn1.ScepObjectIdentifier;
 import org.jscep.transaction.FailInfo;
@@ -39,6 +48,8 @@ import org.jscep.transaction.MessageType;
 import org.jscep.transaction.Nonce;
 import org.jscep.transaction.PkiStatus;
 import org.jscep.transaction.TransactionId;
+import org.jscep.util.SignatureUtils;
+import org.jscep.util.SignedDataUtils;
 import org.slf4j.Logger;
 
 /**
@@ -51,6 +62,7 @@ public final class PkiMessageDecoder {
     private static final Logger LOGGER = getLogger(PkiMessageDecoder.class);
     private final PkcsPkiEnvelopeDecoder decoder;
     private final X509Certificate signer;
+    private ASN1ObjectIdentifier contentEncryptionAlgorithm;
 
     /**
      * Creates a new <tt>PkiMessageDecoder</tt>.
@@ -77,7 +89,6 @@ public final class PkiMessageDecoder {
      * @throws MessageDecodingException
      *             if there is a problem decoding the <tt>signedData</tt>
      */
-    @SuppressWarnings("unchecked")
     public PkiMessage<?> decode(CMSSignedData pkiMessage)
 	    throws MessageDecodingException {
 	LOGGER.debug("Decoding pkiMessage");
@@ -86,55 +97,10 @@ public final class PkiMessageDecoder {
 	// The signed content is always an octet string
 	CMSProcessable signedContent = pkiMessage.getSignedContent();
 
-	SignerInformationStore signerStore = pkiMessage.getSignerInfos();
-	SignerInformation signerInfo = signerStore.get(new JcaSignerId(signer));
-	if (signerInfo == null) {
-	    throw new MessageDecodingException("Could not for signerInfo for "
-		    + signer.getIssuerDN());
-	}
-
-	LOGGER.debug("pkiMessage digest algorithm: {}",
-		signerInfo.getDigestAlgorithmID().getAlgorithm());
-	LOGGER.debug("pkiMessage encryption algorithm: {}",
-		signerInfo.getEncryptionAlgOID());
-
-	Store store = pkiMessage.getCertificates();
-	Collection<?> certColl;
-	try {
-	    certColl = store.getMatches(signerInfo.getSID());
-	} catch (StoreException e) {
-	    throw new MessageDecodingException(e);
-	}
-	if (certColl.size() > 0) {
-	    X509CertificateHolder cert = (X509CertificateHolder) certColl
-		    .iterator().next();
-	    LOGGER.debug(
-		    "Verifying pkiMessage using key belonging to [issuer={}; serial={}]",
-		    cert.getIssuer(), cert.getSerialNumber());
-	    SignerInformationVerifier verifier;
-	    try {
-		verifier = new JcaSimpleSignerInfoVerifierBuilder().build(cert);
-		signerInfo.verify(verifier);
-
-		LOGGER.debug("pkiMessage verified.");
-	    } catch (Exception e) {
-		throw new MessageDecodingException(e);
-	    }
-	} else {
-	    LOGGER.warn("Unable to verify message because the signedData contained no certificates.");
-	}
-
-	Hashtable<DERObjectIdentifier, Attribute> attrTable = signerInfo
-		.getSignedAttributes().toHashtable();
+	SignerInformation signerInfo = getSignerInfo(pkiMessage.getSignerInfos());
+	verify(signerInfo, pkiMessage.getCertificates());
 
-	if (LOGGER.isDebugEnabled()) {
-	    LOGGER.debug("pkiMessage has {} signed attributes:", signerInfo
-		    .getSignedAttributes().size());
-	    for (DERObjectIdentifier oid : attrTable.keySet()) {
-		LOGGER.debug("  {}: {}", oid.getId(), attrTable.get(oid)
-			.getAttrValues());
-	    }
-	}
+	Hashtable<DERObjectIdentifier, Attribute> attrTable = getAttributeTable(signerInfo);
 
 	MessageType messageType = toMessageType(attrTable
 		.get(toOid(MESSAGE_TYPE)));
@@ -198,6 +164,153 @@ public final class PkiMessageDecoder {
 	}
     }
 
+    /**
+     * Decodes the provided PKCS #7 <tt>signedData</tt> stream into a
+     * <tt>CertRep</tt>.
+     * <p>
+     * Unlike {@link #decode(CMSSignedData)}, this method verifies, decrypts
+     * and extracts the <tt>messageData</tt> as the stream is read, so neither
+     * the <tt>pkcsPkiEnvelope</tt> nor the enclosed certificates and CRLs are
+     * ever buffered in their encoded form. The certificates and CRLs of a
+     * successful response are added to the provided collection once the
+     * signature has been verified, and the returned <tt>CertRep</tt> carries
+     * no <tt>messageData</tt>.
+     * 
+     * @param pkiMessage
+     *            the <tt>signedData</tt> stream to decode.
+     * @param certsAndCrls
+     *            the collection to add the certificates and CRLs to.
+     * @return the decoded <tt>CertRep</tt>
+     * @throws MessageDecodingException
+     *             if there is a problem decoding the <tt>signedData</tt>
+     */
+    public CertRep decode(InputStream pkiMessage,
+	    Collection<Object> certsAndCrls) throws MessageDecodingException {
+	LOGGER.debug("Decoding pkiMessage stream");
+	Collection<Object> messageData = new ArrayList<Object>();
+	SignerInformation signerInfo;
+	Store store;
+	try {
+	    CMSSignedDataParser parser = new CMSSignedDataParser(
+		    SignatureUtils.getDigestCalculatorProvider(), pkiMessage);
+	    // The signed content must be read before the signerInfos, since the
+	    // digest is calculated as the content is read.
+	    CMSTypedStream signedContent = parser.getSignedContent();
+	    if (signedContent != null) {
+		// Responses without messageData may still encapsulate an empty
+		// octet string.
+		PushbackInputStream envelope = new PushbackInputStream(
+			signedContent.getContentStream());
+		int first = envelope.read();
+		if (first != -1) {
+		    envelope.unread(first);
+		    InputStream content = decoder.decode(envelope);
+		    SignedDataUtils.readCertsAndCrls(content, messageData);
+		    Streams.drain(content);
+		}
+		signedContent.drain();
+	    }
+	    signerInfo = getSignerInfo(parser.getSignerInfos());
+	    store = parser.getCertificates();
+	} catch (CMSException e) {
+	    throw new MessageDecodingException(e);
+	} catch (IOException e) {
+	    throw new MessageDecodingException(e);
+	}
+	verify(signerInfo, store);
+
+	Hashtable<DERObjectIdentifier, Attribute> attrTable = getAttributeTable(signerInfo);
+	MessageType messageType = toMessageType(attrTable
+		.get(toOid(MESSAGE_TYPE)));
+	if (messageType != MessageType.CERT_REP) {
+	    throw new MessageDecodingException("Expected CertRep, but was "
+		    + messageType);
+	}
+	Nonce senderNonce = toNonce(attrTable.get(toOid(SENDER_NONCE)));
+	Nonce recipientNonce = toNonce(attrTable.get(toOid(RECIPIENT_NONCE)));
+	TransactionId transId = toTransactionId(attrTable.get(toOid(TRANS_ID)));
+	PkiStatus pkiStatus = toPkiStatus(attrTable.get(toOid(PKI_STATUS)));
+
+	LOGGER.debug("Finished decoding pkiMessage stream");
+	if (pkiStatus == PkiStatus.FAILURE) {
+	    FailInfo failInfo = toFailInfo(attrTable.get(toOid(FAIL_INFO)));
+	    return new CertRep(transId, senderNonce, recipientNonce, failInfo);
+	} else if (pkiStatus == PkiStatus.PENDING) {
+	    return new CertRep(transId, senderNonce, recipientNonce);
+	} else {
+	    certsAndCrls.addAll(messageData);
+	    return new CertRep(transId, senderNonce, recipientNonce,
+		    (CMSSignedData) null);
+	}
+    }
+
+    private SignerInformation getSignerInfo(SignerInformationStore signerStore)
+	    throws MessageDecodingException {
+	SignerInformation signerInfo = signerStore.get(new JcaSignerId(signer));
+	if (signerInfo == null) {
+	    throw new MessageDecodingException("Could not for signerInfo for "
+		    + signer.getIssuerDN());
+	}
+
+	LOGGER.debug("pkiMessage digest algorithm: {}",
+		signerInfo.getDigestAlgorithmID().getAlgorithm());
+	LOGGER.debug("pkiMessage encryption algorithm: {}",
+		signerInfo.getEncryptionAlgOID());
+
+	return signerInfo;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verify(SignerInformation signerInfo, Store store)
+	    throws MessageDecodingException {
+	Collection<?> certColl;
+	try {
+	    certColl = store.getMatches(signerInfo.getSID());
+	} catch (StoreException e) {
+	    throw new MessageDecodingException(e);
+	}
+	if (certColl.size() > 0) {
+	    X509CertificateHolder cert = (X509CertificateHolder) certColl
+		    .iterator().next();
+	    LOGGER.debug(
+		    "Verifying pkiMessage using key belonging to [issuer={}; serial={}]",
+		    cert.getIssuer(), cert.getSerialNumber());
+	    SignerInformationVerifier verifier;
+	    try {
+		verifier = new SignerInformationVerifier(
+			new DefaultCMSSignatureAlgorithmNameGenerator(),
+			new DefaultSignatureAlgorithmIdentifierFinder(),
+			new JcaContentVerifierProviderBuilder().build(cert),
+			SignatureUtils.getDigestCalculatorProvider());
+		signerInfo.verify(verifier);
+
+		LOGGER.debug("pkiMessage verified.");
+	    } catch (Exception e) {
+		throw new MessageDecodingException(e);
+	    }
+	} else {
+	    LOGGER.warn("Unable to verify message because the signedData contained no certificates.");
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private Hashtable<DERObjectIdentifier, Attribute> getAttributeTable(
+	    SignerInformation signerInfo) {
+	Hashtable<DERObjectIdentifier, Attribute> attrTable = signerInfo
+		.getSignedAttributes().toHashtable();
+
+	if (LOGGER.isDebugEnabled()) {
+	    LOGGER.debug("pkiMessage has {} signed attributes:", signerInfo
+		    .getSignedAttributes().size());
+	    for (DERObjectIdentifier oid : attrTable.keySet()) {
+		LOGGER.debug("  {}: {}", oid.getId(), attrTable.get(oid)
+			.getAttrValues());
+	    }
+	}
+
+	return attrTable;
+    }
+
     private void validate(CMSSignedData pkiMessage) {
 	SignedData sd = SignedData.getInstance(pkiMessage.toASN1Structure()
 		.getContent());
@@ -210,13 +323,26 @@ public final class PkiMessageDecoder {
 	return new DERObjectIdentifier(oid.id());
     }
 
+    /**
+     * Returns the content encryption algorithm of the <tt>pkcsPkiEnvelope</tt>
+     * most recently decoded by this decoder.
+     * 
+     * @return the algorithm, or <tt>null</tt> if no envelope has been decoded.
+     */
+    public ASN1ObjectIdentifier getContentEncryptionAlgorithm() {
+	return contentEncryptionAlgorithm;
+    }
+
     private CMSEnvelopedData getEnvelopedData(Object bytes)
 	    throws MessageDecodingException {
 	// We expect the byte array to be a sequence
 	// ... and that sequence to be a ContentInfo (but might be the
 	// EnvelopedData)
 	try {
-	    return new CMSEnvelopedData((byte[]) bytes);
+	    CMSEnvelopedData ed = new CMSEnvelopedData((byte[]) bytes);
+	    contentEncryptionAlgorithm = ed.getContentEncryptionAlgorithm()
+		    .getAlgorithm();
+	    return ed;
 	} catch (CMSException e) {
 	    throw new MessageDecodingException(e);
 	}
@@ -47,9 +47,9 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.jscep.transaction.PkiStatus;
+import org.jscep.util.SignatureUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,12 +64,17 @@ public final class PkiMessageEncoder {
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(PkiMessageEncoder.class);
 	private final PrivateKey signerKey;
+	private final PrivateKeyOperator operator;
 	private final X509Certificate signerId;
 	private final PkcsPkiEnvelopeEncoder enveloper;
 	private final String signatureAlgorithm;
 
 	/**
 	 * Creates a new <tt>PkiMessageEncoder</tt> instance.
+	 * <p>
+	 * The <tt>signedData</tt> is signed using the default signature algorithm
+	 * for the key: <tt>SHA1withRSA</tt> for RSA keys, or ECDSA with a digest
+	 * matching the curve for elliptic curve keys.
 	 * 
 	 * @param signerKey
 	 *            the key to use to sign the <tt>signedData</tt>.
@@ -80,10 +85,7 @@ public final class PkiMessageEncoder {
 	 */
 	public PkiMessageEncoder(PrivateKey signerKey, X509Certificate signerId,
 			PkcsPkiEnvelopeEncoder enveloper) {
-		this.signerKey = signerKey;
-		this.signerId = signerId;
-		this.enveloper = enveloper;
-		this.signatureAlgorithm = "SHA1withRSA";
+		this(signerKey, signerId, enveloper, null);
 	}
 	
 	/**
@@ -95,13 +97,53 @@ public final class PkiMessageEncoder {
 	 *            the certificate to use to identify the signer.
 	 * @param enveloper
 	 *            the enveloper used for encoding the <tt>messageData</tt>
+	 * @param signatureAlgorithm
+	 *            the algorithm used to sign the <tt>signedData</tt>, or
+	 *            <tt>null</tt> to use the default for the key.
 	 */
 	public PkiMessageEncoder(PrivateKey signerKey, X509Certificate signerId,
 			PkcsPkiEnvelopeEncoder enveloper, String signatureAlgorithm) {
 		this.signerKey = signerKey;
+		this.operator = null;
 		this.signerId = signerId;
 		this.enveloper = enveloper;
-		this.signatureAlgorithm = signatureAlgorithm;
+		if (signatureAlgorithm == null) {
+			this.signatureAlgorithm = SignatureUtils
+					.getDefaultSignatureAlgorithm(signerKey);
+		} else {
+			this.signatureAlgorithm = signatureAlgorithm;
+		}
+	}
+
+	/**
+	 * Creates a new <tt>PkiMessageEncoder</tt> instance which delegates
+	 * signing to the provided operator.
+	 * 
+	 * @param operator
+	 *            the operator holding the key to use to sign the
+	 *            <tt>signedData</tt>.
+	 * @param signerId
+	 *            the certificate to use to identify the signer.
+	 * @param enveloper
+	 *            the enveloper used for encoding the <tt>messageData</tt>
+	 * @param signatureAlgorithm
+	 *            the algorithm used to sign the <tt>signedData</tt>, or
+	 *            <tt>null</tt> to use the default for the key in the signer
+	 *            certificate.
+	 */
+	public PkiMessageEncoder(PrivateKeyOperator operator,
+			X509Certificate signerId, PkcsPkiEnvelopeEncoder enveloper,
+			String signatureAlgorithm) {
+		this.signerKey = null;
+		this.operator = operator;
+		this.signerId = signerId;
+		this.enveloper = enveloper;
+		if (signatureAlgorithm == null) {
+			this.signatureAlgorithm = SignatureUtils
+					.getDefaultSignatureAlgorithm(signerId.getPublicKey());
+		} else {
+			this.signatureAlgorithm = signatureAlgorithm;
+		}
 	}
 
 	/**
@@ -226,16 +268,14 @@ public final class PkiMessageEncoder {
 		return atGen;
 	}
 
-	private DigestCalculatorProvider getDigestCalculator()
-			throws MessageEncodingException {
-		try {
-			return new JcaDigestCalculatorProviderBuilder().build();
-		} catch (OperatorCreationException e) {
-			throw new MessageEncodingException(e);
-		}
+	private DigestCalculatorProvider getDigestCalculator() {
+		return SignatureUtils.getDigestCalculatorProvider();
 	}
 
 	private ContentSigner getContentSigner() throws OperatorCreationException {
+		if (operator != null) {
+			return new OperatorContentSigner(signatureAlgorithm, operator);
+		}
 		return new JcaContentSignerBuilder(signatureAlgorithm).build(signerKey);
 	}
 }
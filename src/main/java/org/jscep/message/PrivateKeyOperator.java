@@ -0,0 +1,49 @@
+package org.jscep.message;
+
+import java.util.concurrent.Future;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+/**
+ * This interface performs the private key operations of a SCEP entity on its
+ * behalf.
+ * <p>
+ * Implementations may hold the key in a hardware module, or queue operations
+ * on a pool of worker threads, so each operation returns a <tt>Future</tt>.
+ * The caller waits on the result; implementations are free to batch, queue
+ * or parallelise operations from many callers in the meantime. A
+ * <tt>Future</tt> which fails with a <tt>GeneralSecurityException</tt> means
+ * that the input was rejected; any other failure is reported as a
+ * {@link PrivateKeyOperatorException}.
+ * <p>
+ * Implementations must be thread-safe.
+ * 
+ * @see PkcsPkiEnvelopeDecoder
+ * @see PkiMessageEncoder
+ */
+public interface PrivateKeyOperator {
+	/**
+	 * Decrypts a content encryption key transported to the holder of the
+	 * private key using PKCS #1 v1.5 RSA encryption.
+	 * 
+	 * @param encryptedKey
+	 *            the encrypted key.
+	 * @return the decrypted key.
+	 */
+	Future<byte[]> decrypt(byte[] encryptedKey);
+
+	/**
+	 * Signs a digest using the private key.
+	 * <p>
+	 * RSA signatures are PKCS #1 v1.5 signatures over the <tt>DigestInfo</tt>
+	 * for the digest. ECDSA signatures are over the digest itself, and are DER
+	 * encoded.
+	 * 
+	 * @param digestAlgorithm
+	 *            the algorithm used to calculate the digest.
+	 * @param digest
+	 *            the digest to sign.
+	 * @return the signature.
+	 */
+	Future<byte[]> sign(AlgorithmIdentifier digestAlgorithm, byte[] digest);
+}
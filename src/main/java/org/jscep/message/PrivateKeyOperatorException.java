@@ -0,0 +1,24 @@
+package org.jscep.message;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * This <tt>Exception</tt> is thrown when a {@link PrivateKeyOperator} fails
+ * to complete an operation, rather than rejecting its input.
+ */
+public class PrivateKeyOperatorException extends GeneralSecurityException {
+	private static final long serialVersionUID = 2871516392870162519L;
+
+	/**
+	 * Creates a new <tt>PrivateKeyOperatorException</tt> with the provided
+	 * error message and cause.
+	 * 
+	 * @param message
+	 *            the description of the failure.
+	 * @param cause
+	 *            the initial cause of the failure.
+	 */
+	public PrivateKeyOperatorException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,43 @@
+package org.jscep.server;
+
+import java.security.cert.X509Certificate;
+
+import org.jscep.transport.request.Operation;
+
+/**
+ * This interface is implemented by classes which decide whether a
+ * <tt>ScepServlet</tt> should handle a request at all.
+ * <p>
+ * The decision is taken before any private key operation, so it must be cheap.
+ * Requests which are turned away are answered with HTTP 503.
+ * 
+ * @see ScepServlet#getAdmissionController()
+ * @see RateLimiter
+ */
+public interface AdmissionController {
+    /**
+     * Decides whether to handle a request.
+     * 
+     * @param op
+     *            the operation requested.
+     * @param requester
+     *            the certificate which signed a <tt>PKIOperation</tt>, or
+     *            <tt>null</tt> for other operations. The signature has not
+     *            yet been verified.
+     * @param remoteAddress
+     *            the address of the client.
+     * @return a permit which is released once the request has been handled,
+     *         or <tt>null</tt> to turn the request away.
+     */
+    Permit admit(Operation op, X509Certificate requester, String remoteAddress);
+
+    /**
+     * This interface represents the right to handle a single request.
+     */
+    interface Permit {
+	/**
+	 * Called once, after the request has been handled.
+	 */
+	void release();
+    }
+}
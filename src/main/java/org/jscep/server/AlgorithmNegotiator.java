@@ -0,0 +1,96 @@
+package org.jscep.server;
+
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes128_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes192_CBC;
+import static org.bouncycastle.asn1.nist.NISTObjectIdentifiers.id_aes256_CBC;
+import static org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers.des_EDE3_CBC;
+
+import java.security.Key;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.jscep.transport.response.Capability;
+import org.jscep.util.SignatureUtils;
+
+/**
+ * This class chooses the algorithms for a <tt>CertRep</tt> by mirroring those
+ * of the request, where the servlet allows them.
+ */
+final class AlgorithmNegotiator {
+    private static final String DEFAULT_CIPHER = "DESede";
+    private static final Map<ASN1ObjectIdentifier, String> CIPHERS = new HashMap<ASN1ObjectIdentifier, String>();
+    private static final Map<ASN1ObjectIdentifier, Capability> CIPHER_CAPS = new HashMap<ASN1ObjectIdentifier, Capability>();
+    private static final Map<String, String> DIGESTS = new HashMap<String, String>();
+    private static final Map<String, Capability> DIGEST_CAPS = new HashMap<String, Capability>();
+    static {
+	CIPHERS.put(des_EDE3_CBC, "DESede");
+	CIPHERS.put(id_aes128_CBC, "AES");
+	CIPHERS.put(id_aes192_CBC, "AES192");
+	CIPHERS.put(id_aes256_CBC, "AES256");
+	CIPHER_CAPS.put(des_EDE3_CBC, Capability.TRIPLE_DES);
+	CIPHER_CAPS.put(id_aes128_CBC, Capability.AES);
+	CIPHER_CAPS.put(id_aes192_CBC, Capability.AES);
+	CIPHER_CAPS.put(id_aes256_CBC, Capability.AES);
+
+	DIGESTS.put(OIWObjectIdentifiers.idSHA1.getId(), "SHA1");
+	DIGESTS.put(NISTObjectIdentifiers.id_sha256.getId(), "SHA256");
+	DIGESTS.put(NISTObjectIdentifiers.id_sha512.getId(), "SHA512");
+	DIGEST_CAPS.put(OIWObjectIdentifiers.idSHA1.getId(), Capability.SHA_1);
+	DIGEST_CAPS.put(NISTObjectIdentifiers.id_sha256.getId(),
+		Capability.SHA_256);
+	DIGEST_CAPS.put(NISTObjectIdentifiers.id_sha512.getId(),
+		Capability.SHA_512);
+    }
+
+    private AlgorithmNegotiator() {
+    }
+
+    /**
+     * Returns the name of the cipher used to envelope the request, if it is
+     * allowed, or <tt>DESede</tt> otherwise.
+     * 
+     * @param oid
+     *            the content encryption algorithm of the request, as read by
+     *            the <tt>PkiMessageDecoder</tt>, or <tt>null</tt>.
+     */
+    static String getCipher(ASN1ObjectIdentifier oid, Set<Capability> allowed) {
+	if (allowed.isEmpty()) {
+	    return DEFAULT_CIPHER;
+	}
+	if (oid != null && allowed.contains(CIPHER_CAPS.get(oid))) {
+	    return CIPHERS.get(oid);
+	}
+	return DEFAULT_CIPHER;
+    }
+
+    /**
+     * Returns the signature algorithm using the digest with which the request
+     * was signed, if it is allowed, or <tt>null</tt> for the default for the
+     * key.
+     */
+    static String getSignatureAlgorithm(CMSSignedData request,
+	    Key signerKey, Set<Capability> allowed) {
+	if (allowed.isEmpty()) {
+	    return null;
+	}
+	Iterator<?> signers = request.getSignerInfos().getSigners().iterator();
+	if (!signers.hasNext()) {
+	    return null;
+	}
+	String oid = ((SignerInformation) signers.next()).getDigestAlgOID();
+	if (!allowed.contains(DIGEST_CAPS.get(oid))) {
+	    return null;
+	}
+	String keyAlg = SignatureUtils.isEllipticCurve(signerKey) ? "ECDSA"
+		: "RSA";
+
+	return DIGESTS.get(oid) + "with" + keyAlg;
+    }
+}
@@ -0,0 +1,194 @@
+package org.jscep.server;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.TransactionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class runs backend calls for a <tt>ScepServlet</tt> on an executor, so
+ * that the request thread waits for no longer than a fixed time.
+ * <p>
+ * Calls which issue certificates and outlast the wait are left running and
+ * remembered by message type and <tt>transactionID</tt>, so the client can be
+ * told that its request is pending and the outcome handed to its next
+ * <tt>GetCertInitial</tt>.
+ *
+ * @see BackendQueue
+ */
+@ThreadSafe
+final class BackendDispatcher {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(BackendDispatcher.class);
+    private final ConcurrentMap<Key, Future<List<X509Certificate>>> inFlight = new ConcurrentHashMap<Key, Future<List<X509Certificate>>>();
+    private final int capacity;
+
+    BackendDispatcher(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Runs the call on the executor, and waits for its result.
+     *
+     * @throws TimeoutException
+     *             if the executor rejects the call, or the call does not
+     *             complete in time. The call is cancelled.
+     */
+    <T> T call(ExecutorService executor, long timeout, Callable<T> call)
+	    throws Exception {
+	Future<T> future = submit(executor, call);
+	try {
+	    return get(future, timeout);
+	} catch (TimeoutException e) {
+	    future.cancel(true);
+	    throw e;
+	}
+    }
+
+    /**
+     * Runs a call which issues certificates for the given message type and
+     * transaction, unless one is already running, and waits for its result.
+     * A <tt>GetCertInitial</tt> collects a <tt>PKCSReq</tt> call still
+     * running for the same transaction.
+     *
+     * @return the issued certificates, or an empty list if the call has not
+     *         completed in time.
+     * @throws TimeoutException
+     *             if the executor rejects the call, or too many calls are
+     *             already running.
+     */
+    List<X509Certificate> issue(ExecutorService executor, long timeout,
+	    MessageType msgType, TransactionId transId,
+	    Callable<List<X509Certificate>> call) throws Exception {
+	// An overloaded queue will not reach this call within the timeout, so
+	// answer at once and leave the client to poll.
+	if (executor instanceof BackendQueue
+		&& ((BackendQueue) executor).isBacklogged()) {
+	    timeout = 0;
+	}
+	Key key = new Key(msgType, transId);
+	Future<List<X509Certificate>> future = inFlight.get(key);
+	if (future == null && msgType == MessageType.GET_CERT_INITIAL) {
+	    Key enrolment = new Key(MessageType.PKCS_REQ, transId);
+	    future = inFlight.get(enrolment);
+	    if (future != null) {
+		key = enrolment;
+	    }
+	}
+	if (future == null) {
+	    if (inFlight.size() >= capacity) {
+		purge();
+	    }
+	    if (inFlight.size() >= capacity) {
+		throw new TimeoutException("Too many pending backend calls");
+	    }
+	    future = submit(executor, call);
+	    Future<List<X509Certificate>> running = inFlight.putIfAbsent(key,
+		    future);
+	    if (running != null) {
+		future.cancel(true);
+		future = running;
+	    }
+	}
+	try {
+	    List<X509Certificate> issued = get(future, timeout);
+	    inFlight.remove(key, future);
+	    return issued;
+	} catch (TimeoutException e) {
+	    LOGGER.debug("Backend call for {} is still running", key);
+	    return Collections.emptyList();
+	} catch (Exception e) {
+	    inFlight.remove(key, future);
+	    throw e;
+	}
+    }
+
+    /**
+     * Forgets completed calls whose outcome has not been collected. A later
+     * poll reaches the backend again.
+     */
+    private void purge() {
+	Iterator<Future<List<X509Certificate>>> iter = inFlight.values()
+		.iterator();
+	while (iter.hasNext()) {
+	    if (iter.next().isDone()) {
+		iter.remove();
+	    }
+	}
+    }
+
+    private static <T> Future<T> submit(ExecutorService executor,
+	    Callable<T> call) throws TimeoutException {
+	try {
+	    return executor.submit(call);
+	} catch (RejectedExecutionException e) {
+	    TimeoutException te = new TimeoutException(
+		    "Backend executor rejected call");
+	    te.initCause(e);
+
+	    throw te;
+	}
+    }
+
+    private static <T> T get(Future<T> future, long timeout)
+	    throws Exception {
+	try {
+	    return future.get(timeout, TimeUnit.MILLISECONDS);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof Exception) {
+		throw (Exception) cause;
+	    }
+	    throw (Error) cause;
+	}
+    }
+
+    private static final class Key {
+	private final MessageType msgType;
+	private final TransactionId transId;
+
+	Key(MessageType msgType, TransactionId transId) {
+	    this.msgType = msgType;
+	    this.transId = transId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (this == o) {
+		return true;
+	    }
+	    if (o == null || getClass() != o.getClass()) {
+		return false;
+	    }
+	    Key that = (Key) o;
+
+	    return msgType == that.msgType && transId.equals(that.transId);
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * msgType.hashCode() + transId.hashCode();
+	}
+
+	@Override
+	public String toString() {
+	    return msgType + " " + transId;
+	}
+    }
+}
@@ -0,0 +1,76 @@
+package org.jscep.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * This class provides a bounded pool of backend workers, which lets a
+ * <tt>ScepServlet</tt> answer <tt>PENDING</tt> instead of waiting when the
+ * backend is overloaded.
+ * <p>
+ * Return an instance from {@link ScepServlet#getBackendExecutor()} to enable
+ * this mode. While every worker is busy and requests are waiting in the
+ * queue, a <tt>PKCSReq</tt> is queued and answered with <tt>PENDING</tt> at
+ * once, rather than after the backend timeout. Each client then polls with
+ * <tt>GetCertInitial</tt>, which is answered from the queued request without
+ * calling the backend again: <tt>PENDING</tt> until the request has been
+ * processed, and its outcome after that. When the queue is full, further
+ * requests are answered with HTTP 503.
+ * <p>
+ * Worker threads are daemon threads, and should be stopped with
+ * {@link #shutdown()} when the servlet is destroyed.
+ */
+@ThreadSafe
+public final class BackendQueue extends ThreadPoolExecutor {
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    /**
+     * Creates a new <tt>BackendQueue</tt>.
+     * 
+     * @param workers
+     *            the number of backend calls to run at once.
+     * @param depth
+     *            the maximum number of backend calls waiting for a worker.
+     * @throws IllegalArgumentException
+     *             if either argument is not positive.
+     */
+    public BackendQueue(int workers, int depth) {
+	super(workers, workers, 0L, TimeUnit.MILLISECONDS,
+		new LinkedBlockingQueue<Runnable>(checkDepth(depth)),
+		new WorkerFactory());
+    }
+
+    /**
+     * Returns <tt>true</tt> if backend calls are waiting for a worker.
+     * 
+     * @return <tt>true</tt> if the backend is overloaded.
+     */
+    public boolean isBacklogged() {
+	return !getQueue().isEmpty();
+    }
+
+    private static int checkDepth(int depth) {
+	if (depth <= 0) {
+	    throw new IllegalArgumentException("Depth must be positive");
+	}
+	return depth;
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+	private final int pool = POOLS.incrementAndGet();
+	private final AtomicInteger workers = new AtomicInteger();
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "scep-backend-" + pool + "-"
+		    + workers.incrementAndGet());
+	    thread.setDaemon(true);
+
+	    return thread;
+	}
+    }
+}
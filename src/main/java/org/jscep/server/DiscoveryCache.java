@@ -0,0 +1,149 @@
+package org.jscep.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transport.request.Operation;
+
+/**
+ * This class holds encoded responses to the GetCACaps, GetCACert and
+ * GetNextCACert operations, keyed by operation and CA identifier.
+ * <p>
+ * The CA identifier is chosen by the client, so the number of responses held
+ * is bounded. When the cache is full, expired responses are discarded, and
+ * then the response closest to expiry.
+ */
+@ThreadSafe
+final class DiscoveryCache {
+    private final ConcurrentMap<Key, Response> responses = new ConcurrentHashMap<Key, Response>();
+    private final int capacity;
+
+    DiscoveryCache(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached response, or <tt>null</tt> if there is no live
+     * response for the operation and identifier.
+     */
+    Response get(Operation op, String identifier) {
+	Key key = new Key(op, identifier);
+	Response response = responses.get(key);
+	if (response != null && response.isExpired(System.nanoTime())) {
+	    responses.remove(key, response);
+	    return null;
+	}
+	return response;
+    }
+
+    void put(Operation op, String identifier, Response response) {
+	if (responses.size() >= capacity) {
+	    evict(System.nanoTime());
+	}
+	responses.put(new Key(op, identifier), response);
+    }
+
+    int size() {
+	return responses.size();
+    }
+
+    private void evict(long now) {
+	Map.Entry<Key, Response> oldest = null;
+	Iterator<Map.Entry<Key, Response>> iter = responses.entrySet()
+		.iterator();
+	while (iter.hasNext()) {
+	    Map.Entry<Key, Response> entry = iter.next();
+	    if (entry.getValue().isExpired(now)) {
+		iter.remove();
+	    } else if (oldest == null
+		    || entry.getValue().expires - oldest.getValue().expires < 0) {
+		oldest = entry;
+	    }
+	}
+	if (responses.size() >= capacity && oldest != null) {
+	    responses.remove(oldest.getKey(), oldest.getValue());
+	}
+    }
+
+    void invalidate() {
+	responses.clear();
+    }
+
+    void invalidate(String identifier) {
+	Iterator<Map.Entry<Key, Response>> iter = responses.entrySet()
+		.iterator();
+	while (iter.hasNext()) {
+	    if (iter.next().getKey().identifier.equals(normalise(identifier))) {
+		iter.remove();
+	    }
+	}
+    }
+
+    private static String normalise(String identifier) {
+	if (identifier == null) {
+	    return "";
+	}
+	return identifier;
+    }
+
+    /**
+     * An encoded response, and the time at which it expires.
+     */
+    @Immutable
+    static final class Response {
+	private final String contentType;
+	private final byte[] body;
+	private final long expires;
+
+	Response(String contentType, byte[] body, long ttlNanos) {
+	    this.contentType = contentType;
+	    this.body = body;
+	    this.expires = System.nanoTime() + ttlNanos;
+	}
+
+	String getContentType() {
+	    return contentType;
+	}
+
+	byte[] getBody() {
+	    return body;
+	}
+
+	boolean isExpired(long now) {
+	    return now - expires >= 0;
+	}
+    }
+
+    private static final class Key {
+	private final Operation op;
+	private final String identifier;
+
+	Key(Operation op, String identifier) {
+	    this.op = op;
+	    this.identifier = normalise(identifier);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (this == o) {
+		return true;
+	    }
+	    if (o == null || getClass() != o.getClass()) {
+		return false;
+	    }
+	    Key that = (Key) o;
+
+	    return op == that.op && identifier.equals(that.identifier);
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * op.hashCode() + identifier.hashCode();
+	}
+    }
+}
@@ -0,0 +1,127 @@
+package org.jscep.server;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.OperationFailureException;
+import org.jscep.transaction.TransactionId;
+
+/**
+ * This class represents one enrollment in a batch passed to
+ * {@link ScepServlet#doEnrolBatch(List)}.
+ * <p>
+ * The backend records the outcome of each enrollment with
+ * {@link #setCertificates(List)}, {@link #setFailInfo(FailInfo)} or
+ * {@link #setError(Exception)}. An enrollment left without an outcome is
+ * reported to the client as pending.
+ */
+@ThreadSafe
+public final class Enrollment {
+    private final PKCS10CertificationRequest certificationRequest;
+    private final TransactionId transId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile List<X509Certificate> issued = Collections.emptyList();
+    private volatile FailInfo failInfo;
+    private volatile Exception error;
+    private volatile boolean decided;
+
+    Enrollment(PKCS10CertificationRequest certificationRequest,
+	    TransactionId transId) {
+	this.certificationRequest = certificationRequest;
+	this.transId = transId;
+    }
+
+    /**
+     * Returns the certification request.
+     * 
+     * @return the PKCS #10 certification request.
+     */
+    public PKCS10CertificationRequest getCertificationRequest() {
+	return certificationRequest;
+    }
+
+    /**
+     * Returns the <tt>transactionID</tt> of the request.
+     * 
+     * @return the transaction ID.
+     */
+    public TransactionId getTransactionId() {
+	return transId;
+    }
+
+    /**
+     * Records the certificates issued for this enrollment. An empty list
+     * leaves the enrollment pending.
+     * 
+     * @param issued
+     *            the certificate chain.
+     */
+    public void setCertificates(List<X509Certificate> issued) {
+	if (issued != null) {
+	    this.issued = issued;
+	}
+	decided = true;
+    }
+
+    /**
+     * Records that this enrollment has been rejected.
+     * 
+     * @param failInfo
+     *            the reason for the rejection.
+     */
+    public void setFailInfo(FailInfo failInfo) {
+	this.failInfo = failInfo;
+	decided = true;
+    }
+
+    /**
+     * Records that this enrollment could not be processed. The client is
+     * answered as if {@link ScepServlet#doEnrol} had thrown the error.
+     * 
+     * @param error
+     *            the error.
+     */
+    public void setError(Exception error) {
+	this.error = error;
+	decided = true;
+    }
+
+    /**
+     * Returns <tt>true</tt> if an outcome has been recorded.
+     */
+    boolean isDecided() {
+	return decided;
+    }
+
+    void complete() {
+	done.countDown();
+    }
+
+    /**
+     * Waits for the batch holding this enrollment to complete, and returns
+     * its outcome.
+     * 
+     * @throws TimeoutException
+     *             if the batch does not complete in time.
+     */
+    List<X509Certificate> get(long timeoutNanos) throws Exception {
+	if (!done.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+	    throw new TimeoutException("Batch did not complete in time");
+	}
+	if (error != null) {
+	    throw error;
+	}
+	if (failInfo != null) {
+	    throw new OperationFailureException(failInfo);
+	}
+	return issued;
+    }
+}
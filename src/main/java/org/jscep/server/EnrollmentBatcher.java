@@ -0,0 +1,124 @@
+package org.jscep.server;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.jscep.transaction.TransactionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class gathers concurrent enrollments into batches, so that a backend
+ * can issue several certificates in one call.
+ * <p>
+ * The first enrollment to arrive opens a batch and waits for up to the
+ * configured window for others to join it. The batch closes when the window
+ * ends or the batch is full, and that first thread then passes the whole
+ * batch to the backend, while the others wait for their own outcome. No
+ * thread is dedicated to batching.
+ */
+@ThreadSafe
+final class EnrollmentBatcher {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(EnrollmentBatcher.class);
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private List<Enrollment> open;
+
+    /**
+     * The backend which issues a batch of enrollments.
+     */
+    interface Backend {
+	void enrol(List<Enrollment> batch) throws Exception;
+    }
+
+    /**
+     * Adds an enrollment to the open batch, and waits for its outcome for no
+     * longer than the window and the timeout together.
+     * 
+     * @return the issued certificates, or an empty list if the enrollment is
+     *         pending or its batch has not completed in time.
+     */
+    List<X509Certificate> enrol(PKCS10CertificationRequest csr,
+	    TransactionId transId, int size, long windowNanos,
+	    long timeoutNanos, Backend backend) throws Exception {
+	Enrollment enrollment = new Enrollment(csr, transId);
+	List<Enrollment> batch;
+	boolean leader = false;
+	synchronized (lock) {
+	    if (open == null) {
+		open = new ArrayList<Enrollment>(size);
+		leader = true;
+	    }
+	    batch = open;
+	    batch.add(enrollment);
+	    if (batch.size() >= size) {
+		open = null;
+		lock.notifyAll();
+	    }
+	}
+	if (leader) {
+	    boolean interrupted = collect(batch, windowNanos);
+	    run(batch, backend);
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	try {
+	    return enrollment.get(windowNanos + timeoutNanos);
+	} catch (TimeoutException e) {
+	    LOGGER.debug("Batch holding {} is still running", transId);
+	    return Collections.emptyList();
+	}
+    }
+
+    /**
+     * Waits until the batch is closed or the window ends, and closes it.
+     * 
+     * @return <tt>true</tt> if the wait was interrupted.
+     */
+    private boolean collect(List<Enrollment> batch, long windowNanos) {
+	long deadline = System.nanoTime() + windowNanos;
+	synchronized (lock) {
+	    try {
+		long remaining = windowNanos;
+		while (open == batch && remaining > 0) {
+		    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+		    remaining = deadline - System.nanoTime();
+		}
+		return false;
+	    } catch (InterruptedException e) {
+		return true;
+	    } finally {
+		if (open == batch) {
+		    open = null;
+		}
+	    }
+	}
+    }
+
+    private static void run(List<Enrollment> batch, Backend backend) {
+	LOGGER.debug("Issuing batch of {} enrollments", batch.size());
+	try {
+	    backend.enrol(batch);
+	} catch (Exception e) {
+	    for (Enrollment enrollment : batch) {
+		if (!enrollment.isDecided()) {
+		    enrollment.setError(e);
+		}
+	    }
+	} finally {
+	    for (Enrollment enrollment : batch) {
+		enrollment.complete();
+	    }
+	}
+    }
+}
@@ -0,0 +1,126 @@
+package org.jscep.server;
+
+import java.io.ByteArrayInputStream;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import net.jcip.annotations.Immutable;
+
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.jscep.message.OperatorContentSigner;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.message.PrivateKeyOperator;
+import org.jscep.util.SignatureUtils;
+
+/**
+ * This class holds the keys and certificates of a <tt>ScepServlet</tt>,
+ * together with the message machinery built from them, so that it can be
+ * shared by every request until the keys change.
+ */
+@Immutable
+final class KeyMaterial {
+    private static final ThreadLocal<CertificateFactory> FACTORIES = new ThreadLocal<CertificateFactory>() {
+	@Override
+	protected CertificateFactory initialValue() {
+	    try {
+		return CertificateFactory.getInstance("X.509");
+	    } catch (CertificateException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+    };
+    private final X509Certificate recipient;
+    private final PrivateKey recipientKey;
+    private final PrivateKeyOperator recipientOperator;
+    private final X509Certificate signer;
+    private final PrivateKey signerKey;
+    private final PrivateKeyOperator signerOperator;
+    private final String signatureAlgorithm;
+    private final PkcsPkiEnvelopeDecoder envelopeDecoder;
+
+    /**
+     * Creates a new <tt>KeyMaterial</tt>. Where an operator is provided, it is
+     * used in place of the corresponding private key.
+     */
+    KeyMaterial(X509Certificate recipient, PrivateKey recipientKey,
+	    PrivateKeyOperator recipientOperator, X509Certificate signer,
+	    PrivateKey signerKey, PrivateKeyOperator signerOperator) {
+	this.recipient = recipient;
+	this.recipientKey = recipientKey;
+	this.recipientOperator = recipientOperator;
+	this.signer = signer;
+	this.signerKey = signerKey;
+	this.signerOperator = signerOperator;
+	this.signatureAlgorithm = SignatureUtils
+		.getDefaultSignatureAlgorithm(signer.getPublicKey());
+	if (recipientOperator == null) {
+	    this.envelopeDecoder = new PkcsPkiEnvelopeDecoder(recipient,
+		    recipientKey);
+	} else {
+	    this.envelopeDecoder = new PkcsPkiEnvelopeDecoder(recipient,
+		    recipientOperator);
+	}
+    }
+
+    X509Certificate getRecipient() {
+	return recipient;
+    }
+
+    /**
+     * Returns a signer for the recipient key, used to sign the degenerate
+     * <tt>signedData</tt> of a <tt>GetNextCACert</tt> response.
+     */
+    ContentSigner getRecipientSigner() throws OperatorCreationException {
+	String sigAlg = SignatureUtils.getDefaultSignatureAlgorithm(recipient
+		.getPublicKey());
+	if (recipientOperator == null) {
+	    return new JcaContentSignerBuilder(sigAlg).build(recipientKey);
+	}
+	return new OperatorContentSigner(sigAlg, recipientOperator);
+    }
+
+    /**
+     * Parses an encoded certificate, using a factory local to the calling
+     * thread.
+     */
+    X509Certificate toCertificate(byte[] encoded) throws CertificateException {
+	return (X509Certificate) FACTORIES.get().generateCertificate(
+		new ByteArrayInputStream(encoded));
+    }
+
+    PkiMessageDecoder getDecoder(X509Certificate requester) {
+	return new PkiMessageDecoder(requester, envelopeDecoder);
+    }
+
+    X509Certificate getSigner() {
+	return signer;
+    }
+
+    /**
+     * Returns an encoder for responses to the given requester.
+     * 
+     * @param cipher
+     *            the name of the cipher used to envelope the response.
+     * @param sigAlg
+     *            the signature algorithm, or <tt>null</tt> for the default
+     *            for the signer key.
+     */
+    PkiMessageEncoder getEncoder(X509Certificate requester, String cipher,
+	    String sigAlg) {
+	PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+		requester, cipher);
+	if (signerOperator != null) {
+	    return new PkiMessageEncoder(signerOperator, signer, envEncoder,
+		    sigAlg == null ? signatureAlgorithm : sigAlg);
+	}
+	return new PkiMessageEncoder(signerKey, signer, envEncoder,
+		sigAlg == null ? signatureAlgorithm : sigAlg);
+    }
+}
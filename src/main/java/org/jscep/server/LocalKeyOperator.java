@@ -0,0 +1,126 @@
+package org.jscep.server;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.jscep.message.PrivateKeyOperator;
+import org.jscep.util.SignatureUtils;
+
+/**
+ * This class performs private key operations in software, on a fixed pool of
+ * worker threads.
+ * <p>
+ * Return an instance from {@link ScepServlet#getRecipientKeyOperator()} or
+ * {@link ScepServlet#getSignerKeyOperator()} to move RSA and ECDSA operations
+ * off the request threads. The number of workers bounds the CPU given to
+ * private key operations, independently of the number of requests being
+ * handled; operations beyond that wait in an unbounded queue.
+ * <p>
+ * Worker threads are daemon threads, and should be stopped with
+ * {@link #shutdown()} when the servlet is destroyed.
+ */
+@ThreadSafe
+public final class LocalKeyOperator implements PrivateKeyOperator {
+    private static final String KEY_TRANSPORT = "RSA/ECB/PKCS1Padding";
+    private static final AtomicInteger POOLS = new AtomicInteger();
+    private final PrivateKey key;
+    private final ExecutorService executor;
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
+    /**
+     * Creates a new <tt>LocalKeyOperator</tt>.
+     * 
+     * @param key
+     *            the RSA or elliptic curve private key.
+     * @param workers
+     *            the number of operations to run at once.
+     * @throws IllegalArgumentException
+     *             if the number of workers is not positive.
+     */
+    public LocalKeyOperator(PrivateKey key, int workers) {
+	this.key = key;
+	this.executor = Executors.newFixedThreadPool(workers,
+		new WorkerFactory());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<byte[]> decrypt(final byte[] encryptedKey) {
+	return executor.submit(new Callable<byte[]>() {
+	    public byte[] call() throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+		    cipher = Cipher.getInstance(KEY_TRANSPORT);
+		    ciphers.set(cipher);
+		}
+		cipher.init(Cipher.DECRYPT_MODE, key);
+
+		return cipher.doFinal(encryptedKey);
+	    }
+	});
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<byte[]> sign(final AlgorithmIdentifier digestAlgorithm,
+	    final byte[] digest) {
+	return executor.submit(new Callable<byte[]>() {
+	    public byte[] call() throws Exception {
+		Signature signature = signatures.get();
+		if (signature == null) {
+		    signature = Signature.getInstance("NONEwith"
+			    + SignatureUtils.getSignatureKeyAlgorithm(key
+				    .getAlgorithm()));
+		    signatures.set(signature);
+		}
+		signature.initSign(key);
+		if (SignatureUtils.isEllipticCurve(key)) {
+		    signature.update(digest);
+		} else {
+		    signature.update(new DigestInfo(new AlgorithmIdentifier(
+			    digestAlgorithm.getAlgorithm(), DERNull.INSTANCE),
+			    digest).getEncoded("DER"));
+		}
+
+		return signature.sign();
+	    }
+	});
+    }
+
+    /**
+     * Stops the worker threads once queued operations are complete.
+     */
+    public void shutdown() {
+	executor.shutdown();
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+	private final int pool = POOLS.incrementAndGet();
+	private final AtomicInteger workers = new AtomicInteger();
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "scep-key-" + pool + "-"
+		    + workers.incrementAndGet());
+	    thread.setDaemon(true);
+
+	    return thread;
+	}
+    }
+}
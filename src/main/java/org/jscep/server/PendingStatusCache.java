@@ -0,0 +1,66 @@
+package org.jscep.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transaction.TransactionId;
+
+/**
+ * This class remembers, for a short time, which transactions were last
+ * answered with <tt>PENDING</tt>, so that repeated <tt>GetCertInitial</tt>
+ * polls need not reach the backend.
+ * <p>
+ * When the cache is full of live entries, further transactions are not
+ * remembered, and their polls are processed as usual.
+ */
+@ThreadSafe
+final class PendingStatusCache {
+    private final ConcurrentMap<TransactionId, Long> expiries = new ConcurrentHashMap<TransactionId, Long>();
+    private final int capacity;
+
+    PendingStatusCache(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the transaction was answered with
+     * <tt>PENDING</tt> within its time to live.
+     */
+    boolean isPending(TransactionId transId) {
+	Long expires = expiries.get(transId);
+	if (expires == null) {
+	    return false;
+	}
+	if (System.nanoTime() - expires >= 0) {
+	    expiries.remove(transId, expires);
+	    return false;
+	}
+	return true;
+    }
+
+    void put(TransactionId transId, long ttlNanos) {
+	long now = System.nanoTime();
+	if (expiries.size() >= capacity) {
+	    purge(now);
+	}
+	if (expiries.size() < capacity) {
+	    expiries.put(transId, now + ttlNanos);
+	}
+    }
+
+    void invalidate(TransactionId transId) {
+	expiries.remove(transId);
+    }
+
+    private void purge(long now) {
+	Iterator<Long> iter = expiries.values().iterator();
+	while (iter.hasNext()) {
+	    if (now - iter.next() >= 0) {
+		iter.remove();
+	    }
+	}
+    }
+}
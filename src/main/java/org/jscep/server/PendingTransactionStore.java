@@ -0,0 +1,421 @@
+package org.jscep.server;
+
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.TransactionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class holds enrollments which are waiting for a decision from the CA,
+ * so that a <tt>ScepServlet</tt> can answer <tt>GetCertInitial</tt> polls
+ * without calling
+ * {@link ScepServlet#doGetCertInitial(X500Name, X500Name, TransactionId)}.
+ * <p>
+ * An implementation records a transaction with
+ * {@link #addPending(X500Name, X500Name, TransactionId)} when
+ * <tt>doEnrol</tt> leaves it pending, and later records the decision with
+ * {@link #complete(TransactionId, List)} or
+ * {@link #fail(TransactionId, FailInfo)}. Transactions are found by
+ * <tt>transactionID</tt>, or by issuer and subject, in constant time.
+ * <p>
+ * Each transaction is forgotten once it has been held for longer than the
+ * configured time to live, counted from when it was added or decided. The
+ * store accounts for the approximate memory held by each transaction, and
+ * refuses new transactions once the configured budget is spent on live
+ * entries.
+ *
+ * @see ScepServlet#getPendingTransactionStore()
+ */
+@ThreadSafe
+public final class PendingTransactionStore {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(PendingTransactionStore.class);
+    /**
+     * The approximate size of a transaction and its index entries, excluding
+     * encoded names and certificates.
+     */
+    private static final int OVERHEAD = 256;
+    private final ConcurrentMap<TransactionId, Transaction> transactions = new ConcurrentHashMap<TransactionId, Transaction>();
+    private final ConcurrentMap<Subject, TransactionId> subjects = new ConcurrentHashMap<Subject, TransactionId>();
+    private final AtomicLong memory = new AtomicLong();
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    /**
+     * Creates a new <tt>PendingTransactionStore</tt>.
+     *
+     * @param maxBytes
+     *            the approximate number of bytes the store may hold.
+     * @param ttl
+     *            how long to hold each transaction.
+     * @param unit
+     *            the unit of the <tt>ttl</tt> argument.
+     * @throws IllegalArgumentException
+     *             if the budget or time to live is not positive.
+     */
+    public PendingTransactionStore(long maxBytes, long ttl, TimeUnit unit) {
+	if (maxBytes <= 0) {
+	    throw new IllegalArgumentException("Budget must be positive");
+	}
+	if (ttl <= 0) {
+	    throw new IllegalArgumentException("TTL must be positive");
+	}
+	this.maxBytes = maxBytes;
+	this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Records a pending transaction, replacing any transaction with the same
+     * <tt>transactionID</tt>.
+     *
+     * @param issuer
+     *            the name of the CA.
+     * @param subject
+     *            the subject of the certification request.
+     * @param transId
+     *            the <tt>transactionID</tt> of the request.
+     * @return <tt>true</tt> if the transaction was recorded, or
+     *         <tt>false</tt> if the store is full.
+     */
+    public boolean addPending(X500Name issuer, X500Name subject,
+	    TransactionId transId) {
+	Transaction trans = new Transaction(transId, issuer, subject,
+		Collections.<X509Certificate> emptyList(), null, deadline());
+	if (!store(trans)) {
+	    return false;
+	}
+	subjects.put(trans.subjectKey, transId);
+	return true;
+    }
+
+    /**
+     * Records that the given transaction has issued certificates.
+     *
+     * @param transId
+     *            the <tt>transactionID</tt> of the request.
+     * @param issued
+     *            the issued certificates.
+     * @return <tt>true</tt> if the decision was recorded, or <tt>false</tt>
+     *         if the transaction is unknown or the store is full.
+     * @throws IllegalArgumentException
+     *             if no certificates are provided.
+     */
+    public boolean complete(TransactionId transId, List<X509Certificate> issued) {
+	if (issued.isEmpty()) {
+	    throw new IllegalArgumentException("No certificates issued");
+	}
+	return decide(transId, new ArrayList<X509Certificate>(issued), null);
+    }
+
+    /**
+     * Records that the given transaction has been rejected.
+     *
+     * @param transId
+     *            the <tt>transactionID</tt> of the request.
+     * @param failInfo
+     *            the reason for the rejection.
+     * @return <tt>true</tt> if the decision was recorded, or <tt>false</tt>
+     *         if the transaction is unknown.
+     */
+    public boolean fail(TransactionId transId, FailInfo failInfo) {
+	if (failInfo == null) {
+	    throw new NullPointerException();
+	}
+	return decide(transId, Collections.<X509Certificate> emptyList(),
+		failInfo);
+    }
+
+    /**
+     * Returns the transaction with the given <tt>transactionID</tt>.
+     *
+     * @param transId
+     *            the <tt>transactionID</tt>.
+     * @return the transaction, or <tt>null</tt> if there is no live
+     *         transaction.
+     */
+    public Transaction get(TransactionId transId) {
+	Transaction trans = transactions.get(transId);
+	if (trans != null && trans.isExpired(System.nanoTime())) {
+	    evict(trans);
+	    return null;
+	}
+	return trans;
+    }
+
+    /**
+     * Returns the most recent transaction for the given issuer and subject.
+     * <p>
+     * This lookup is provided for implementations. Polls are only answered
+     * from a transaction with the same <tt>transactionID</tt>, since a
+     * transaction for the same issuer and subject may belong to another
+     * client.
+     *
+     * @param issuer
+     *            the name of the CA.
+     * @param subject
+     *            the subject of the certification request.
+     * @return the transaction, or <tt>null</tt> if there is no live
+     *         transaction.
+     */
+    public Transaction get(X500Name issuer, X500Name subject) {
+	TransactionId transId = subjects.get(new Subject(issuer, subject));
+	if (transId == null) {
+	    return null;
+	}
+	return get(transId);
+    }
+
+    /**
+     * Forgets the transaction with the given <tt>transactionID</tt>.
+     *
+     * @param transId
+     *            the <tt>transactionID</tt>.
+     * @return the forgotten transaction, or <tt>null</tt> if there was none.
+     */
+    public Transaction remove(TransactionId transId) {
+	Transaction trans = transactions.get(transId);
+	if (trans != null && evict(trans)) {
+	    return trans;
+	}
+	return null;
+    }
+
+    /**
+     * Returns the number of transactions held.
+     *
+     * @return the number of transactions.
+     */
+    public int size() {
+	return transactions.size();
+    }
+
+    /**
+     * Returns the approximate number of bytes held.
+     *
+     * @return the number of bytes.
+     */
+    public long getMemoryUsage() {
+	return memory.get();
+    }
+
+    private boolean decide(TransactionId transId,
+	    List<X509Certificate> issued, FailInfo failInfo) {
+	while (true) {
+	    Transaction current = get(transId);
+	    if (current == null) {
+		return false;
+	    }
+	    Transaction decided = new Transaction(transId, current.issuer,
+		    current.subject, issued, failInfo, deadline());
+	    if (!reserve(decided.size - current.size)) {
+		return false;
+	    }
+	    if (transactions.replace(transId, current, decided)) {
+		return true;
+	    }
+	    memory.addAndGet(current.size - decided.size);
+	}
+    }
+
+    private boolean store(Transaction trans) {
+	if (!reserve(trans.size)) {
+	    LOGGER.warn("Pending transaction store is full; not storing {}",
+		    trans.transId);
+	    return false;
+	}
+	Transaction previous = transactions.put(trans.transId, trans);
+	if (previous != null) {
+	    memory.addAndGet(-previous.size);
+	    if (!previous.subjectKey.equals(trans.subjectKey)) {
+		subjects.remove(previous.subjectKey, previous.transId);
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Reserves memory for a transaction, purging expired transactions if the
+     * budget would be exceeded.
+     */
+    private boolean reserve(long bytes) {
+	if (memory.addAndGet(bytes) <= maxBytes || bytes <= 0) {
+	    return true;
+	}
+	memory.addAndGet(-bytes);
+	purge(System.nanoTime());
+	if (memory.addAndGet(bytes) <= maxBytes) {
+	    return true;
+	}
+	memory.addAndGet(-bytes);
+	return false;
+    }
+
+    private void purge(long now) {
+	Iterator<Transaction> iter = transactions.values().iterator();
+	while (iter.hasNext()) {
+	    Transaction trans = iter.next();
+	    if (trans.isExpired(now)) {
+		evict(trans);
+	    }
+	}
+    }
+
+    private boolean evict(Transaction trans) {
+	if (!transactions.remove(trans.transId, trans)) {
+	    return false;
+	}
+	subjects.remove(trans.subjectKey, trans.transId);
+	memory.addAndGet(-trans.size);
+	return true;
+    }
+
+    private long deadline() {
+	return System.nanoTime() + ttlNanos;
+    }
+
+    /**
+     * A transaction, and the decision on it if one has been made.
+     */
+    @Immutable
+    public static final class Transaction {
+	private final TransactionId transId;
+	private final X500Name issuer;
+	private final X500Name subject;
+	private final List<X509Certificate> issued;
+	private final FailInfo failInfo;
+	private final long expires;
+	private final Subject subjectKey;
+	private final long size;
+
+	Transaction(TransactionId transId, X500Name issuer, X500Name subject,
+		List<X509Certificate> issued, FailInfo failInfo, long expires) {
+	    this.transId = transId;
+	    this.issuer = issuer;
+	    this.subject = subject;
+	    this.issued = Collections.unmodifiableList(issued);
+	    this.failInfo = failInfo;
+	    this.expires = expires;
+	    this.subjectKey = new Subject(issuer, subject);
+	    this.size = sizeOf(this);
+	}
+
+	/**
+	 * Returns the <tt>transactionID</tt> of this transaction.
+	 *
+	 * @return the <tt>transactionID</tt>.
+	 */
+	public TransactionId getTransactionId() {
+	    return transId;
+	}
+
+	/**
+	 * Returns the name of the CA.
+	 *
+	 * @return the issuer.
+	 */
+	public X500Name getIssuer() {
+	    return issuer;
+	}
+
+	/**
+	 * Returns the subject of the certification request.
+	 *
+	 * @return the subject.
+	 */
+	public X500Name getSubject() {
+	    return subject;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if no decision has been made.
+	 *
+	 * @return <tt>true</tt> if the transaction is pending.
+	 */
+	public boolean isPending() {
+	    return failInfo == null && issued.isEmpty();
+	}
+
+	/**
+	 * Returns the issued certificates, or an empty list if the transaction
+	 * is pending or has been rejected.
+	 *
+	 * @return the issued certificates.
+	 */
+	public List<X509Certificate> getCertificates() {
+	    return issued;
+	}
+
+	/**
+	 * Returns the reason the transaction was rejected.
+	 *
+	 * @return the reason, or <tt>null</tt> if it has not been rejected.
+	 */
+	public FailInfo getFailInfo() {
+	    return failInfo;
+	}
+
+	boolean isExpired(long now) {
+	    return now - expires >= 0;
+	}
+    }
+
+    private static long sizeOf(Transaction trans) {
+	long size = OVERHEAD + trans.transId.toString().length();
+	try {
+	    size += trans.issuer.getEncoded().length;
+	    size += trans.subject.getEncoded().length;
+	    for (X509Certificate cert : trans.issued) {
+		size += cert.getEncoded().length;
+	    }
+	} catch (IOException e) {
+	    throw new IllegalArgumentException(e);
+	} catch (CertificateEncodingException e) {
+	    throw new IllegalArgumentException(e);
+	}
+	return size;
+    }
+
+    private static final class Subject {
+	private final X500Name issuer;
+	private final X500Name subject;
+
+	Subject(X500Name issuer, X500Name subject) {
+	    this.issuer = issuer;
+	    this.subject = subject;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (this == o) {
+		return true;
+	    }
+	    if (o == null || getClass() != o.getClass()) {
+		return false;
+	    }
+	    Subject that = (Subject) o;
+
+	    return issuer.equals(that.issuer) && subject.equals(that.subject);
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * issuer.hashCode() + subject.hashCode();
+	}
+    }
+}
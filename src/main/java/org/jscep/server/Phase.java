@@ -0,0 +1,40 @@
+package org.jscep.server;
+
+/**
+ * This enum represents the phases of handling a request in a
+ * <tt>ScepServlet</tt>.
+ * 
+ * @see PhaseTrace
+ */
+public enum Phase {
+    /**
+     * Reading and parsing the request.
+     */
+    READ,
+    /**
+     * Validating the structure of a <tt>PKIOperation</tt> and extracting the
+     * requester certificate.
+     */
+    CERTIFICATE,
+    /**
+     * Verifying the signature of a <tt>PKIOperation</tt> and decrypting its
+     * <tt>pkcsPkiEnvelope</tt>.
+     */
+    DECODE,
+    /**
+     * Waiting for backend methods, such as <tt>doEnrol</tt>.
+     */
+    BACKEND,
+    /**
+     * Building the response.
+     */
+    RESPONSE,
+    /**
+     * Enveloping and signing a <tt>CertRep</tt>.
+     */
+    ENCODE,
+    /**
+     * Writing the response.
+     */
+    WRITE;
+}
@@ -0,0 +1,75 @@
+package org.jscep.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class records the time spent in each {@link Phase} of a single
+ * request.
+ * <p>
+ * A phase may be entered more than once, in which case its times are added
+ * together.
+ * 
+ * @see PhaseTracer
+ */
+public final class PhaseTrace {
+    private final long[] nanos = new long[Phase.values().length];
+    private final long started;
+    private Phase current;
+    private long entered;
+    private long total = -1;
+
+    PhaseTrace() {
+	this.started = System.nanoTime();
+	this.current = Phase.READ;
+	this.entered = started;
+    }
+
+    /**
+     * Returns the time spent in the given phase.
+     * 
+     * @param phase
+     *            the phase.
+     * @return the time, in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+	return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the time taken by the whole request.
+     * 
+     * @return the time, in nanoseconds.
+     */
+    public long getTotalNanos() {
+	return total;
+    }
+
+    void enter(Phase phase) {
+	long now = System.nanoTime();
+	if (current != null) {
+	    nanos[current.ordinal()] += now - entered;
+	}
+	current = phase;
+	entered = now;
+    }
+
+    void end() {
+	enter(null);
+	total = entered - started;
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder("PhaseTrace [");
+	for (Phase phase : Phase.values()) {
+	    sb.append(phase).append('=');
+	    sb.append(TimeUnit.NANOSECONDS.toMicros(getNanos(phase)));
+	    sb.append("us, ");
+	}
+	sb.append("total=");
+	sb.append(TimeUnit.NANOSECONDS.toMicros(total));
+	sb.append("us]");
+
+	return sb.toString();
+    }
+}
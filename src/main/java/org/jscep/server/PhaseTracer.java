@@ -0,0 +1,100 @@
+package org.jscep.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class samples requests handled by a <tt>ScepServlet</tt>, times each
+ * {@link Phase} of the sampled requests, and reports those which are slow.
+ * <p>
+ * Requests which are not sampled are not timed at all, so a low sampling rate
+ * costs next to nothing.
+ * 
+ * @see ScepServlet#getPhaseTracer()
+ */
+@ThreadSafe
+public final class PhaseTracer {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(PhaseTracer.class);
+    private final AtomicLong requests = new AtomicLong();
+    private final int sampleEvery;
+    private final long thresholdNanos;
+    private final Callback callback;
+
+    /**
+     * Creates a new <tt>PhaseTracer</tt>.
+     * 
+     * @param sampleEvery
+     *            trace one in this many requests.
+     * @param threshold
+     *            the duration at or above which a traced request is reported.
+     * @param unit
+     *            the unit of the <tt>threshold</tt> argument.
+     * @param callback
+     *            the callback to report slow requests to.
+     * @throws IllegalArgumentException
+     *             if the sampling interval is not positive, or the threshold
+     *             is negative.
+     */
+    public PhaseTracer(int sampleEvery, long threshold, TimeUnit unit,
+	    Callback callback) {
+	if (sampleEvery <= 0) {
+	    throw new IllegalArgumentException(
+		    "Sampling interval must be positive");
+	}
+	if (threshold < 0) {
+	    throw new IllegalArgumentException("Threshold must not be negative");
+	}
+	if (callback == null) {
+	    throw new NullPointerException();
+	}
+	this.sampleEvery = sampleEvery;
+	this.thresholdNanos = unit.toNanos(threshold);
+	this.callback = callback;
+    }
+
+    /**
+     * Returns a new trace if this request is sampled, or <tt>null</tt>
+     * otherwise.
+     */
+    PhaseTrace begin() {
+	if (requests.getAndIncrement() % sampleEvery != 0) {
+	    return null;
+	}
+	return new PhaseTrace();
+    }
+
+    void end(ScepRequestEvent event, PhaseTrace trace) {
+	trace.end();
+	if (trace.getTotalNanos() < thresholdNanos) {
+	    return;
+	}
+	try {
+	    callback.slowRequest(event, trace);
+	} catch (RuntimeException e) {
+	    LOGGER.warn("Slow request callback failed", e);
+	}
+    }
+
+    /**
+     * This interface is implemented by classes which are told about slow
+     * requests.
+     */
+    public interface Callback {
+	/**
+	 * Called once a traced request which took at least the threshold has
+	 * been handled, on the thread which handled it.
+	 * 
+	 * @param event
+	 *            the request.
+	 * @param trace
+	 *            the time spent in each phase of the request.
+	 */
+	void slowRequest(ScepRequestEvent event, PhaseTrace trace);
+    }
+}
@@ -0,0 +1,122 @@
+package org.jscep.server;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessable;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.jscep.asn1.ScepObjectIdentifier;
+import org.jscep.message.MessageDecodingException;
+import org.jscep.transaction.MessageType;
+
+/**
+ * This class makes the cheap checks on an incoming <tt>pkiMessage</tt>, so that
+ * malformed or unwanted messages are rejected before any signature is
+ * verified or key is unwrapped.
+ * <p>
+ * The checks are made in order of cost: the structure of the
+ * <tt>signedData</tt>, the <tt>messageType</tt> and <tt>transactionID</tt>
+ * attributes, and finally the certificate of the signer, which must be
+ * present and within its validity period, allowing for the configured clock
+ * skew. The signature itself is verified
+ * by the <tt>PkiMessageDecoder</tt>, before the <tt>pkcsPkiEnvelope</tt> is
+ * decrypted.
+ */
+final class PkiOperationValidator {
+    private static final Set<MessageType> ACCEPTED = EnumSet.of(
+	    MessageType.PKCS_REQ, MessageType.GET_CERT_INITIAL,
+	    MessageType.GET_CERT, MessageType.GET_CRL);
+    private static final ASN1ObjectIdentifier MESSAGE_TYPE = new ASN1ObjectIdentifier(
+	    ScepObjectIdentifier.MESSAGE_TYPE.id());
+    private static final ASN1ObjectIdentifier TRANS_ID = new ASN1ObjectIdentifier(
+	    ScepObjectIdentifier.TRANS_ID.id());
+
+    private PkiOperationValidator() {
+    }
+
+    /**
+     * Validates the provided <tt>pkiMessage</tt>, and returns the certificate
+     * of its signer.
+     * 
+     * @param pkiMessage
+     *            the message to validate.
+     * @param now
+     *            the time against which to check the signer certificate.
+     * @param clockSkew
+     *            the tolerated difference, in milliseconds, between the clock
+     *            of the signer and <tt>now</tt>, or a negative value to skip
+     *            the check of the validity period.
+     * @return the signer certificate.
+     * @throws MessageDecodingException
+     *             if the message is rejected.
+     */
+    static X509CertificateHolder validate(CMSSignedData pkiMessage, Date now,
+	    long clockSkew) throws MessageDecodingException {
+	Collection<?> signers = pkiMessage.getSignerInfos().getSigners();
+	if (signers.size() != 1) {
+	    throw new MessageDecodingException("Expected one signerInfo, found "
+		    + signers.size());
+	}
+	CMSProcessable content = pkiMessage.getSignedContent();
+	if (content == null || !(content.getContent() instanceof byte[])) {
+	    throw new MessageDecodingException("Missing pkcsPkiEnvelope");
+	}
+
+	SignerInformation signer = (SignerInformation) signers.iterator()
+		.next();
+	AttributeTable attrs = signer.getSignedAttributes();
+	if (attrs == null) {
+	    throw new MessageDecodingException("Missing signed attributes");
+	}
+	MessageType messageType;
+	try {
+	    messageType = MessageType.valueOf(Integer.parseInt(getString(attrs,
+		    MESSAGE_TYPE)));
+	} catch (IllegalArgumentException e) {
+	    throw new MessageDecodingException("Unknown messageType");
+	}
+	if (!ACCEPTED.contains(messageType)) {
+	    throw new MessageDecodingException("Unexpected messageType "
+		    + messageType);
+	}
+	getString(attrs, TRANS_ID);
+
+	Collection<?> certs = pkiMessage.getCertificates().getMatches(
+		signer.getSID());
+	if (certs.isEmpty()) {
+	    throw new MessageDecodingException("Missing signer certificate");
+	}
+	X509CertificateHolder cert = (X509CertificateHolder) certs.iterator()
+		.next();
+	if (clockSkew >= 0
+		&& (cert.getNotBefore().getTime() - clockSkew > now.getTime() || cert
+			.getNotAfter().getTime() + clockSkew < now.getTime())) {
+	    throw new MessageDecodingException("Signer certificate not valid on "
+		    + now);
+	}
+
+	return cert;
+    }
+
+    private static String getString(AttributeTable attrs,
+	    ASN1ObjectIdentifier oid) throws MessageDecodingException {
+	Attribute attr = attrs.get(oid);
+	if (attr == null || attr.getAttrValues().size() != 1) {
+	    throw new MessageDecodingException("Missing attribute " + oid);
+	}
+	ASN1Encodable value = attr.getAttrValues().getObjectAt(0);
+	if (!(value instanceof DERPrintableString)) {
+	    throw new MessageDecodingException("Invalid attribute " + oid);
+	}
+	return ((DERPrintableString) value).getString();
+    }
+}
@@ -0,0 +1,171 @@
+package org.jscep.server;
+
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transport.request.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class limits the rate of requests from each client address, and the
+ * number of <tt>PKIOperation</tt>s handled at once.
+ * <p>
+ * Each client address has a token bucket, which holds up to <tt>burst</tt>
+ * tokens and is refilled at a fixed rate. Every request takes a token, and
+ * requests which find the bucket empty are turned away. The certificate which
+ * signed a <tt>PKIOperation</tt> is not used to choose the bucket: its
+ * signature has not been verified yet, so a sender could present any number
+ * of issuers and serial numbers to get a fresh bucket for each.
+ * <p>
+ * Separately, at most <tt>maxConcurrent</tt> <tt>PKIOperation</tt>s are
+ * admitted at once. Other operations are cheap, and are not counted. A
+ * request turned away by this limit does not spend a token.
+ * <p>
+ * The number of tracked addresses is bounded. When the bound is reached,
+ * buckets which have refilled completely are forgotten. If that is not
+ * enough, requests from new addresses are turned away until buckets refill,
+ * so that the limits of known addresses are never reset.
+ */
+@ThreadSafe
+public final class RateLimiter implements AdmissionController {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(RateLimiter.class);
+    private static final int MAX_REQUESTERS = 10000;
+    private static final Permit NO_OP_PERMIT = new Permit() {
+	public void release() {
+	}
+    };
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final int maxRequesters;
+    private final double tokensPerNano;
+    private final int burst;
+    private final Semaphore concurrent;
+    private final Permit concurrentPermit = new Permit() {
+	public void release() {
+	    concurrent.release();
+	}
+    };
+
+    /**
+     * Creates a new <tt>RateLimiter</tt>.
+     * 
+     * @param requestsPerSecond
+     *            the sustained rate of requests allowed for each address.
+     * @param burst
+     *            the number of requests an address may make at once.
+     * @param maxConcurrent
+     *            the maximum number of <tt>PKIOperation</tt>s to handle at
+     *            once.
+     * @throws IllegalArgumentException
+     *             if any argument is not positive.
+     */
+    public RateLimiter(double requestsPerSecond, int burst, int maxConcurrent) {
+	this(requestsPerSecond, burst, maxConcurrent, MAX_REQUESTERS);
+    }
+
+    RateLimiter(double requestsPerSecond, int burst, int maxConcurrent,
+	    int maxRequesters) {
+	if (requestsPerSecond <= 0) {
+	    throw new IllegalArgumentException("Rate must be positive");
+	}
+	if (burst <= 0) {
+	    throw new IllegalArgumentException("Burst must be positive");
+	}
+	if (maxConcurrent <= 0) {
+	    throw new IllegalArgumentException(
+		    "Concurrency limit must be positive");
+	}
+	this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+	this.burst = burst;
+	this.concurrent = new Semaphore(maxConcurrent);
+	this.maxRequesters = maxRequesters;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Permit admit(Operation op, X509Certificate requester,
+	    String remoteAddress) {
+	String key = remoteAddress;
+	boolean limited = op == Operation.PKI_OPERATION;
+	if (limited && !concurrent.tryAcquire()) {
+	    LOGGER.debug("Concurrency limit reached; turning away {}", key);
+	    return null;
+	}
+	long now = System.nanoTime();
+	Bucket bucket = getBucket(key, now);
+	if (bucket == null || !bucket.take(now)) {
+	    LOGGER.debug("Rate limit exceeded by {}", key);
+	    if (limited) {
+		concurrent.release();
+	    }
+	    return null;
+	}
+	return limited ? concurrentPermit : NO_OP_PERMIT;
+    }
+
+    private Bucket getBucket(String key, long now) {
+	Bucket bucket = buckets.get(key);
+	if (bucket != null) {
+	    return bucket;
+	}
+	if (buckets.size() >= maxRequesters) {
+	    purge(now);
+	    if (buckets.size() >= maxRequesters) {
+		LOGGER.warn("Too many requesters; turning away {}", key);
+		return null;
+	    }
+	}
+	Bucket fresh = new Bucket(now);
+	bucket = buckets.putIfAbsent(key, fresh);
+	if (bucket == null) {
+	    return fresh;
+	}
+	return bucket;
+    }
+
+    private void purge(long now) {
+	Iterator<Bucket> iter = buckets.values().iterator();
+	while (iter.hasNext()) {
+	    if (iter.next().isFull(now)) {
+		iter.remove();
+	    }
+	}
+    }
+
+    private final class Bucket {
+	private double tokens;
+	private long updated;
+
+	Bucket(long now) {
+	    this.tokens = burst;
+	    this.updated = now;
+	}
+
+	synchronized boolean take(long now) {
+	    refill(now);
+	    if (tokens < 1) {
+		return false;
+	    }
+	    tokens--;
+	    return true;
+	}
+
+	synchronized boolean isFull(long now) {
+	    refill(now);
+	    return tokens >= burst;
+	}
+
+	private void refill(long now) {
+	    tokens = Math.min(burst, tokens + (now - updated) * tokensPerNano);
+	    updated = now;
+	}
+    }
+}
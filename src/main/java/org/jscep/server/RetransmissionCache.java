@@ -0,0 +1,220 @@
+package org.jscep.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transaction.TransactionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class remembers the outcome of recent enrollments, so that a
+ * <tt>ScepServlet</tt> can answer a retransmitted <tt>PKCSReq</tt> without
+ * issuing a second certificate.
+ * <p>
+ * An enrollment is identified by its <tt>transactionID</tt> together with a
+ * digest of the certification request, so a different request which reuses a
+ * <tt>transactionID</tt> is not mistaken for a retransmission. Concurrent
+ * duplicates share a single call to the backend.
+ * <p>
+ * Only enrollments which issue certificates are remembered, for up to the
+ * configured time to live. Pending and failed enrollments are forgotten once
+ * complete, so a later retransmission reaches the backend again. When the
+ * cache is full of live entries, new enrollments are processed as usual but
+ * not remembered.
+ *
+ * @see ScepServlet#getRetransmissionCache()
+ */
+@ThreadSafe
+public final class RetransmissionCache {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(RetransmissionCache.class);
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final int capacity;
+    private final long ttlNanos;
+
+    /**
+     * Creates a new <tt>RetransmissionCache</tt>.
+     *
+     * @param capacity
+     *            the maximum number of enrollments to remember.
+     * @param ttl
+     *            how long to remember each enrollment.
+     * @param unit
+     *            the unit of the <tt>ttl</tt> argument.
+     * @throws IllegalArgumentException
+     *             if the capacity or time to live is not positive.
+     */
+    public RetransmissionCache(int capacity, long ttl, TimeUnit unit) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive");
+	}
+	if (ttl <= 0) {
+	    throw new IllegalArgumentException("TTL must be positive");
+	}
+	this.capacity = capacity;
+	this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Returns the certificates issued for the given request, calling the
+     * provided enrollment only if the request has not been seen before.
+     *
+     * @param transId
+     *            the <tt>transactionID</tt> of the request.
+     * @param request
+     *            the encoded certification request.
+     * @param enrollment
+     *            the backend call which issues the certificates.
+     * @return the issued certificates, or an empty list if the enrollment is
+     *         pending.
+     * @throws Exception
+     *             if the enrollment fails.
+     */
+    public List<X509Certificate> enrol(TransactionId transId, byte[] request,
+	    Callable<List<X509Certificate>> enrollment) throws Exception {
+	Key key = new Key(transId, digest(request));
+	long now = System.nanoTime();
+
+	Entry entry = entries.get(key);
+	if (entry != null && entry.isExpired(now)) {
+	    entries.remove(key, entry);
+	    entry = null;
+	}
+	boolean owner = false;
+	if (entry == null) {
+	    Entry fresh = new Entry(enrollment, now);
+	    if (entries.size() >= capacity) {
+		purge(now);
+	    }
+	    if (entries.size() >= capacity) {
+		LOGGER.warn("Retransmission cache is full; not remembering {}",
+			transId);
+		fresh.task.run();
+		return fresh.get();
+	    }
+	    entry = entries.putIfAbsent(key, fresh);
+	    if (entry == null) {
+		entry = fresh;
+		owner = true;
+	    }
+	}
+
+	if (owner) {
+	    entry.task.run();
+	} else {
+	    LOGGER.debug("Answering retransmission of {} from cache", transId);
+	}
+	try {
+	    List<X509Certificate> issued = entry.get();
+	    if (owner && issued.isEmpty()) {
+		entries.remove(key, entry);
+	    }
+	    return issued;
+	} catch (Exception e) {
+	    if (owner) {
+		entries.remove(key, entry);
+	    }
+	    throw e;
+	}
+    }
+
+    /**
+     * Returns <tt>true</tt> if an enrollment for the given transaction and
+     * request is in progress, or its certificates are held by this cache.
+     * 
+     * @param transId
+     *            the transaction ID.
+     * @param request
+     *            the encoded certification request.
+     * @return <tt>true</tt> if a resend would be answered from this cache.
+     */
+    public boolean contains(TransactionId transId, byte[] request) {
+	Entry entry = entries.get(new Key(transId, digest(request)));
+	return entry != null && !entry.isExpired(System.nanoTime());
+    }
+
+    private void purge(long now) {
+	Iterator<Entry> iter = entries.values().iterator();
+	while (iter.hasNext()) {
+	    if (iter.next().isExpired(now)) {
+		iter.remove();
+	    }
+	}
+    }
+
+    private static byte[] digest(byte[] request) {
+	try {
+	    return MessageDigest.getInstance("SHA-256").digest(request);
+	} catch (NoSuchAlgorithmException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    private final class Entry {
+	private final FutureTask<List<X509Certificate>> task;
+	private final long created;
+
+	Entry(Callable<List<X509Certificate>> enrollment, long created) {
+	    this.task = new FutureTask<List<X509Certificate>>(enrollment);
+	    this.created = created;
+	}
+
+	boolean isExpired(long now) {
+	    return task.isDone() && now - created >= ttlNanos;
+	}
+
+	List<X509Certificate> get() throws Exception {
+	    try {
+		return task.get();
+	    } catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Exception) {
+		    throw (Exception) cause;
+		}
+		throw (Error) cause;
+	    }
+	}
+    }
+
+    private static final class Key {
+	private final TransactionId transId;
+	private final byte[] digest;
+
+	Key(TransactionId transId, byte[] digest) {
+	    this.transId = transId;
+	    this.digest = digest;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (this == o) {
+		return true;
+	    }
+	    if (o == null || getClass() != o.getClass()) {
+		return false;
+	    }
+	    Key that = (Key) o;
+
+	    return transId.equals(that.transId)
+		    && Arrays.equals(digest, that.digest);
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * transId.hashCode() + Arrays.hashCode(digest);
+	}
+    }
+}
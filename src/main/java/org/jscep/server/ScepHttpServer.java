@@ -0,0 +1,425 @@
+package org.jscep.server;
+
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_REQ_TOO_LONG;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.io.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class hosts a {@link ScepServlet} on the HTTP server built into the
+ * JDK, without a servlet container.
+ * <p>
+ * Requests are handled by a fixed pool of worker threads, behind a bounded
+ * queue. When the queue is full, requests are handed to a small pool of
+ * rejection threads, which answer HTTP 503 without reaching the servlet. The
+ * thread accepting connections never reads a request itself, so a slow client
+ * cannot stall it. When the rejection pool is full as well, requests are
+ * dropped. The time a rejection thread spends reading a slow request is
+ * bounded by the JDK's <tt>sun.net.httpserver.maxReqTime</tt> system
+ * property. Every response
+ * carries a <tt>Content-Length</tt>, so connections are kept alive between
+ * requests; the idle timeout is governed by the JDK's
+ * <tt>sun.net.httpserver.idleInterval</tt> system property. Requests whose
+ * URL or declared body exceeds the configured size are answered with HTTP 414
+ * or 413 before they reach the servlet.
+ * <p>
+ * The servlet is initialised by {@link #start()} and destroyed by
+ * {@link #stop(int)}, or by <tt>start()</tt> if the server cannot be
+ * started. It has no <tt>ServletContext</tt>, so it must not
+ * depend on one.
+ */
+@ThreadSafe
+public final class ScepHttpServer {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(ScepHttpServer.class);
+    private static final String POST = "POST";
+    private static final String MSG_PARAM = "message";
+    private static final String OP_PARAM = "operation";
+    private static final int DEFAULT_BACKLOG = 128;
+    private static final int DEFAULT_MAX_REQUEST_SIZE = 256 * 1024;
+    private static final int DEFAULT_QUEUE_DEPTH = 64;
+    private static final int REJECTION_WORKERS = 2;
+    private static final int REJECTION_QUEUE_DEPTH = 64;
+    /**
+     * Set while a request turned away by the worker pool is answered.
+     */
+    private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<Boolean>();
+    private final ScepServlet servlet;
+    private final InetSocketAddress address;
+    private final String path;
+    private final int workers;
+    private final Map<String, String> initParameters = new HashMap<String, String>();
+    private int backlog = DEFAULT_BACKLOG;
+    private int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private HttpServer server;
+    private ExecutorService executor;
+    private ExecutorService rejections;
+
+    /**
+     * Creates a new <tt>ScepHttpServer</tt>.
+     * 
+     * @param servlet
+     *            the servlet to host, which must not yet be initialised.
+     * @param address
+     *            the address to listen on. Use port <tt>0</tt> for any free
+     *            port.
+     * @param path
+     *            the path at which to serve SCEP requests, such as
+     *            <tt>/scep</tt>.
+     * @param workers
+     *            the number of requests to handle at once.
+     * @throws IllegalArgumentException
+     *             if the number of workers is not positive.
+     */
+    public ScepHttpServer(ScepServlet servlet, InetSocketAddress address,
+	    String path, int workers) {
+	if (workers <= 0) {
+	    throw new IllegalArgumentException("Workers must be positive");
+	}
+	this.servlet = servlet;
+	this.address = address;
+	this.path = path;
+	this.workers = workers;
+    }
+
+    /**
+     * Sets the maximum number of connections waiting to be accepted. The
+     * default is 128.
+     * 
+     * @param backlog
+     *            the backlog.
+     */
+    public synchronized void setBacklog(int backlog) {
+	this.backlog = backlog;
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of a request URL or body. The default
+     * is 256 KiB.
+     * 
+     * @param maxRequestSize
+     *            the maximum request size.
+     */
+    public synchronized void setMaxRequestSize(int maxRequestSize) {
+	this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting for a worker. The default
+     * is 64.
+     * 
+     * @param queueDepth
+     *            the queue depth.
+     * @throws IllegalArgumentException
+     *             if the queue depth is not positive.
+     */
+    public synchronized void setQueueDepth(int queueDepth) {
+	if (queueDepth <= 0) {
+	    throw new IllegalArgumentException("Queue depth must be positive");
+	}
+	this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Sets an initialisation parameter of the servlet.
+     * 
+     * @param name
+     *            the parameter name.
+     * @param value
+     *            the parameter value.
+     */
+    public synchronized void setInitParameter(String name, String value) {
+	initParameters.put(name, value);
+    }
+
+    /**
+     * Initialises the servlet, and starts listening for requests.
+     * 
+     * @throws IOException
+     *             if the server cannot listen on its address.
+     * @throws ServletException
+     *             if the servlet cannot be initialised.
+     * @throws IllegalStateException
+     *             if the server has already been started.
+     */
+    public synchronized void start() throws IOException, ServletException {
+	if (server != null) {
+	    throw new IllegalStateException("Server already started");
+	}
+	servlet.init(new Config(servlet.getClass().getName(),
+		new HashMap<String, String>(initParameters)));
+
+	ThreadPoolExecutor rejectionPool = new ThreadPoolExecutor(
+		REJECTION_WORKERS, REJECTION_WORKERS, 0L, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<Runnable>(REJECTION_QUEUE_DEPTH),
+		new WorkerFactory("scep-http-reject-"), new Dropper());
+	ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L,
+		TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+			queueDepth), new WorkerFactory("scep-http-"), new Rejector(
+			rejectionPool));
+	HttpServer http;
+	boolean started = false;
+	try {
+	    http = HttpServer.create(address, backlog);
+	    http.createContext(path, new Handler(servlet.getRequestProcessor(),
+		    maxRequestSize));
+	    http.setExecutor(pool);
+	    http.start();
+	    started = true;
+	} finally {
+	    if (!started) {
+		pool.shutdown();
+		rejectionPool.shutdown();
+		servlet.destroy();
+	    }
+	}
+	executor = pool;
+	rejections = rejectionPool;
+	server = http;
+	LOGGER.info("Serving SCEP on {}{}", http.getAddress(), path);
+    }
+
+    /**
+     * Stops listening for requests, and destroys the servlet.
+     * 
+     * @param delay
+     *            the maximum number of seconds to wait for requests in
+     *            progress to complete.
+     */
+    public synchronized void stop(int delay) {
+	if (server == null) {
+	    return;
+	}
+	server.stop(delay);
+	executor.shutdown();
+	rejections.shutdown();
+	servlet.destroy();
+	server = null;
+	executor = null;
+	rejections = null;
+    }
+
+    /**
+     * Returns the address the server is listening on.
+     * 
+     * @return the address.
+     * @throws IllegalStateException
+     *             if the server has not been started.
+     */
+    public synchronized InetSocketAddress getAddress() {
+	if (server == null) {
+	    throw new IllegalStateException("Server not started");
+	}
+	return server.getAddress();
+    }
+
+    private static final class Handler implements HttpHandler {
+	private final ScepRequestProcessor processor;
+	private final int maxRequestSize;
+
+	Handler(ScepRequestProcessor processor, int maxRequestSize) {
+	    this.processor = processor;
+	    this.maxRequestSize = maxRequestSize;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+	    try {
+		String query = exchange.getRequestURI().getRawQuery();
+		ExchangeResponse res = new ExchangeResponse(exchange);
+		if (REJECTED.get() != null) {
+		    res.sendError(HTTP_UNAVAILABLE, "Service Unavailable");
+		    return;
+		}
+		if (query != null && query.length() > maxRequestSize) {
+		    res.sendError(HTTP_REQ_TOO_LONG, "Request-URI Too Long");
+		    return;
+		}
+		String method = exchange.getRequestMethod();
+		int contentLength = getContentLength(exchange);
+		if (contentLength > maxRequestSize) {
+		    res.sendError(HTTP_ENTITY_TOO_LARGE,
+			    "Request Entity Too Large");
+		    return;
+		}
+		String remoteAddress = exchange.getRemoteAddress()
+			.getAddress().getHostAddress();
+		ScepRequest req;
+		if (method.equals(POST)) {
+		    req = new ScepRequest(method,
+			    ScepServlet.getQueryParameter(query, OP_PARAM), null,
+			    exchange.getRequestBody(), contentLength,
+			    remoteAddress);
+		} else {
+		    req = new ScepRequest(method,
+			    ScepServlet.getQueryParameter(query, OP_PARAM),
+			    ScepServlet.getQueryParameter(query, MSG_PARAM),
+			    null, -1, remoteAddress);
+		}
+		processor.process(req, res);
+	    } catch (RuntimeException e) {
+		LOGGER.error("Error handling request", e);
+		throw e;
+	    } finally {
+		exchange.close();
+	    }
+	}
+
+	private static int getContentLength(HttpExchange exchange) {
+	    String value = exchange.getRequestHeaders().getFirst(
+		    "Content-Length");
+	    if (value == null) {
+		return -1;
+	    }
+	    try {
+		return Integer.parseInt(value.trim());
+	    } catch (NumberFormatException e) {
+		return -1;
+	    }
+	}
+    }
+
+    private static final class ExchangeResponse implements ScepResponse {
+	private final HttpExchange exchange;
+
+	ExchangeResponse(HttpExchange exchange) {
+	    this.exchange = exchange;
+	}
+
+	public void setHeader(String name, String value) {
+	    exchange.getResponseHeaders().set(name, value);
+	}
+
+	public void sendError(int status, String message) throws IOException {
+	    byte[] body = message.getBytes(Charsets.US_ASCII.name());
+	    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+	    exchange.sendResponseHeaders(status, body.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(body);
+	    out.close();
+	}
+
+	public OutputStream send(String contentType, long contentLength)
+		throws IOException {
+	    exchange.getResponseHeaders().set("Content-Type", contentType);
+	    // A length of zero would ask for a chunked body.
+	    exchange.sendResponseHeaders(200, contentLength == 0 ? -1
+		    : contentLength);
+
+	    return exchange.getResponseBody();
+	}
+    }
+
+    private static final class Config implements ServletConfig {
+	private final String name;
+	private final Map<String, String> parameters;
+
+	Config(String name, Map<String, String> parameters) {
+	    this.name = name;
+	    this.parameters = parameters;
+	}
+
+	public String getServletName() {
+	    return name;
+	}
+
+	public ServletContext getServletContext() {
+	    return null;
+	}
+
+	public String getInitParameter(String param) {
+	    return parameters.get(param);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getInitParameterNames() {
+	    return Collections.enumeration(parameters.keySet());
+	}
+    }
+
+    /**
+     * Hands requests which find the queue full to the rejection threads.
+     */
+    private static final class Rejector implements RejectedExecutionHandler {
+	private final ExecutorService rejections;
+
+	Rejector(ExecutorService rejections) {
+	    this.rejections = rejections;
+	}
+
+	public void rejectedExecution(final Runnable r,
+		ThreadPoolExecutor executor) {
+	    if (executor.isShutdown()) {
+		throw new RejectedExecutionException("Server stopped");
+	    }
+	    LOGGER.warn("Worker queue full; turning away request");
+	    rejections.execute(new Runnable() {
+		public void run() {
+		    REJECTED.set(Boolean.TRUE);
+		    try {
+			r.run();
+		    } finally {
+			REJECTED.remove();
+		    }
+		}
+	    });
+	}
+    }
+
+    /**
+     * Drops requests which find the rejection threads busy.
+     */
+    private static final class Dropper implements RejectedExecutionHandler {
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+	    if (executor.isShutdown()) {
+		throw new RejectedExecutionException("Server stopped");
+	    }
+	    LOGGER.warn("Rejection queue full; dropping request");
+	}
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+	private final String prefix;
+	private final AtomicInteger workers = new AtomicInteger();
+
+	WorkerFactory(String prefix) {
+	    this.prefix = prefix;
+	}
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, prefix + workers.incrementAndGet());
+	    thread.setDaemon(true);
+
+	    return thread;
+	}
+    }
+}
@@ -0,0 +1,103 @@
+package org.jscep.server;
+
+import java.io.InputStream;
+
+/**
+ * This class represents a SCEP request received over HTTP, independently of
+ * the HTTP stack which received it.
+ * 
+ * @see ScepRequestProcessor
+ */
+public final class ScepRequest {
+    private final String method;
+    private final String operation;
+    private final String message;
+    private final InputStream body;
+    private final int contentLength;
+    private final String remoteAddress;
+
+    /**
+     * Creates a new <tt>ScepRequest</tt>.
+     * 
+     * @param method
+     *            the HTTP method, such as <tt>GET</tt> or <tt>POST</tt>.
+     * @param operation
+     *            the <tt>operation</tt> parameter, or <tt>null</tt> if it is
+     *            absent.
+     * @param message
+     *            the <tt>message</tt> parameter, or <tt>null</tt> if it is
+     *            absent. This is the CA identifier of a discovery request,
+     *            or the Base64 encoded <tt>PKIOperation</tt> of a
+     *            <tt>GET</tt>.
+     * @param body
+     *            the body of a <tt>POST</tt>, or <tt>null</tt>.
+     * @param contentLength
+     *            the declared length of the body, or <tt>-1</tt> if it is
+     *            unknown.
+     * @param remoteAddress
+     *            the address of the client.
+     */
+    public ScepRequest(String method, String operation, String message,
+	    InputStream body, int contentLength, String remoteAddress) {
+	this.method = method;
+	this.operation = operation;
+	this.message = message;
+	this.body = body;
+	this.contentLength = contentLength;
+	this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Returns the HTTP method.
+     * 
+     * @return the HTTP method.
+     */
+    public String getMethod() {
+	return method;
+    }
+
+    /**
+     * Returns the <tt>operation</tt> parameter.
+     * 
+     * @return the operation name, or <tt>null</tt>.
+     */
+    public String getOperation() {
+	return operation;
+    }
+
+    /**
+     * Returns the <tt>message</tt> parameter.
+     * 
+     * @return the message, or <tt>null</tt>.
+     */
+    public String getMessage() {
+	return message;
+    }
+
+    /**
+     * Returns the body of a <tt>POST</tt>.
+     * 
+     * @return the body, or <tt>null</tt>.
+     */
+    public InputStream getBody() {
+	return body;
+    }
+
+    /**
+     * Returns the declared length of the body.
+     * 
+     * @return the length, or <tt>-1</tt> if it is unknown.
+     */
+    public int getContentLength() {
+	return contentLength;
+    }
+
+    /**
+     * Returns the address of the client.
+     * 
+     * @return the address.
+     */
+    public String getRemoteAddress() {
+	return remoteAddress;
+    }
+}
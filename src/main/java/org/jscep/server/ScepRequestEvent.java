@@ -0,0 +1,179 @@
+package org.jscep.server;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.PkiStatus;
+import org.jscep.transport.request.Operation;
+
+/**
+ * This class describes a request handled by a <tt>ScepServlet</tt>.
+ * <p>
+ * An event is filled in by the servlet as the request is processed, and
+ * passed to the {@link ScepServletListener} once the response has been
+ * written. Properties which do not apply to the request, or which were not
+ * reached because processing stopped early, are <tt>null</tt> or
+ * <tt>-1</tt>.
+ */
+public final class ScepRequestEvent {
+    private final long started;
+    private Operation operation;
+    private MessageType messageType;
+    private PkiStatus pkiStatus;
+    private FailInfo failInfo;
+    private long requestSize = -1;
+    private long responseSize = -1;
+    private long backendNanos;
+    private long durationNanos = -1;
+    private PhaseTrace trace;
+    private AdmissionController.Permit permit;
+
+    ScepRequestEvent() {
+	this.started = System.nanoTime();
+    }
+
+    /**
+     * Returns the operation requested.
+     * 
+     * @return the operation, or <tt>null</tt> if it was missing or invalid.
+     */
+    public Operation getOperation() {
+	return operation;
+    }
+
+    /**
+     * Returns the message type of a <tt>PKIOperation</tt>.
+     * 
+     * @return the message type, or <tt>null</tt> for other operations.
+     */
+    public MessageType getMessageType() {
+	return messageType;
+    }
+
+    /**
+     * Returns the status of the <tt>CertRep</tt> sent in response to a
+     * <tt>PKIOperation</tt>.
+     * 
+     * @return the status, or <tt>null</tt> if no <tt>CertRep</tt> was sent.
+     */
+    public PkiStatus getPkiStatus() {
+	return pkiStatus;
+    }
+
+    /**
+     * Returns the failure reason of a <tt>CertRep</tt> with a status of
+     * {@link PkiStatus#FAILURE}.
+     * 
+     * @return the failure reason, or <tt>null</tt>.
+     */
+    public FailInfo getFailInfo() {
+	return failInfo;
+    }
+
+    /**
+     * Returns the size of the <tt>PKIOperation</tt> message received.
+     * 
+     * @return the size in bytes, or <tt>-1</tt> if no message was read.
+     */
+    public long getRequestSize() {
+	return requestSize;
+    }
+
+    /**
+     * Returns the size of the response body written.
+     * 
+     * @return the size in bytes, or <tt>-1</tt> if no body was written.
+     */
+    public long getResponseSize() {
+	return responseSize;
+    }
+
+    /**
+     * Returns the time spent in backend methods, such as <tt>doEnrol</tt>.
+     * 
+     * @return the backend time, in nanoseconds.
+     */
+    public long getBackendNanos() {
+	return backendNanos;
+    }
+
+    /**
+     * Returns the time taken to handle the request.
+     * 
+     * @return the duration, in nanoseconds.
+     */
+    public long getDurationNanos() {
+	return durationNanos;
+    }
+
+    /**
+     * Returns the time spent in each phase of this request, if it was traced.
+     * 
+     * @return the trace, or <tt>null</tt> if this request was not traced.
+     * @see ScepServlet#getPhaseTracer()
+     */
+    public PhaseTrace getPhaseTrace() {
+	return trace;
+    }
+
+    void setPhaseTrace(PhaseTrace trace) {
+	this.trace = trace;
+    }
+
+    void enter(Phase phase) {
+	if (trace != null) {
+	    trace.enter(phase);
+	}
+    }
+
+    void setPermit(AdmissionController.Permit permit) {
+	this.permit = permit;
+    }
+
+    /**
+     * Releases the admission permit, if one was granted.
+     */
+    void releasePermit() {
+	if (permit != null) {
+	    permit.release();
+	    permit = null;
+	}
+    }
+
+    void setOperation(Operation operation) {
+	this.operation = operation;
+    }
+
+    void setMessageType(MessageType messageType) {
+	this.messageType = messageType;
+    }
+
+    void setOutcome(PkiStatus pkiStatus, FailInfo failInfo) {
+	this.pkiStatus = pkiStatus;
+	this.failInfo = failInfo;
+    }
+
+    void setRequestSize(long requestSize) {
+	this.requestSize = requestSize;
+    }
+
+    void setResponseSize(long responseSize) {
+	this.responseSize = responseSize;
+    }
+
+    void addBackendNanos(long nanos) {
+	this.backendNanos += nanos;
+    }
+
+    void complete() {
+	this.durationNanos = System.nanoTime() - started;
+    }
+
+    @Override
+    public String toString() {
+	return "ScepRequestEvent [operation=" + operation + ", messageType="
+		+ messageType + ", pkiStatus=" + pkiStatus + ", failInfo="
+		+ failInfo + ", requestSize=" + requestSize
+		+ ", responseSize=" + responseSize + ", backendNanos="
+		+ backendNanos + ", durationNanos=" + durationNanos + "]";
+    }
+}
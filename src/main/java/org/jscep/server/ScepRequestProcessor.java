@@ -0,0 +1,876 @@
+package org.jscep.server;
+
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OutputStream;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCRLStore;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Base64;
+import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.message.CertRep;
+import org.jscep.message.MessageDecodingException;
+import org.jscep.message.PrivateKeyOperatorException;
+import org.jscep.message.MessageEncodingException;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.server.PendingTransactionStore.Transaction;
+import org.jscep.server.SizeLimitedInputStream.SizeLimitExceededException;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.OperationFailureException;
+import org.jscep.transaction.PkiStatus;
+import org.jscep.transaction.TransactionId;
+import org.jscep.transport.request.Operation;
+import org.jscep.transport.response.Capability;
+import org.jscep.util.SignatureUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class implements the SCEP protocol for a {@link ScepServlet},
+ * independently of the HTTP stack which receives the requests.
+ * <p>
+ * A <tt>ScepServlet</tt> hosted in a servlet container uses its processor
+ * directly. To host the same servlet on another HTTP stack, obtain its
+ * processor with {@link ScepServlet#getRequestProcessor()} and pass each
+ * request to {@link #process(ScepRequest, ScepResponse)}, after initialising
+ * the servlet.
+ */
+@ThreadSafe
+public final class ScepRequestProcessor {
+    private static final String GET = "GET";
+    private static final String POST = "POST";
+    private static final String PKI_MESSAGE = "application/x-pki-message";
+    private static final int DEFAULT_MAX_PENDING = 4096;
+    private static final int DEFAULT_MAX_DISCOVERY = 64;
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(ScepRequestProcessor.class);
+    private final ScepServlet servlet;
+    private final DiscoveryCache discoveryCache = new DiscoveryCache(
+	    DEFAULT_MAX_DISCOVERY);
+    private volatile KeyMaterial keyMaterial;
+    private final BackendDispatcher dispatcher = new BackendDispatcher(
+	    DEFAULT_MAX_PENDING);
+    private final PendingStatusCache pendingStatus = new PendingStatusCache(
+	    DEFAULT_MAX_PENDING);
+    private final EnrollmentBatcher batcher = new EnrollmentBatcher();
+    private final EnrollmentBatcher.Backend batchBackend;
+
+    ScepRequestProcessor(final ScepServlet servlet) {
+	this.servlet = servlet;
+	this.batchBackend = new EnrollmentBatcher.Backend() {
+	    public void enrol(List<Enrollment> batch) throws Exception {
+		servlet.doEnrolBatch(batch);
+	    }
+	};
+    }
+
+    /**
+     * Processes the given request, and writes the outcome to the given
+     * response.
+     * <p>
+     * Requests which cannot be processed because of an error in this server
+     * or its backend are answered with HTTP 500, and the error is logged.
+     * 
+     * @param req
+     *            the request.
+     * @param res
+     *            the response.
+     * @throws IOException
+     *             if the request cannot be read or the response written.
+     */
+    public void process(ScepRequest req, ScepResponse res) throws IOException {
+	ScepRequestEvent event = new ScepRequestEvent();
+	PhaseTracer tracer = servlet.getPhaseTracer();
+	if (tracer != null) {
+	    event.setPhaseTrace(tracer.begin());
+	}
+	try {
+	    process(req, res, event);
+	} catch (ProcessingException e) {
+	    LOGGER.error("Error processing request", e);
+	    res.sendError(HTTP_INTERNAL_ERROR, "Internal Server Error");
+	} finally {
+	    event.releasePermit();
+	    event.complete();
+	    if (event.getPhaseTrace() != null) {
+		tracer.end(event, event.getPhaseTrace());
+	    }
+	    ScepServletListener listener = servlet.getListener();
+	    if (listener != null) {
+		try {
+		    listener.requestCompleted(event);
+		} catch (RuntimeException e) {
+		    LOGGER.warn("Listener failed", e);
+		}
+	    }
+	}
+    }
+
+    void invalidateDiscoveryCache() {
+	discoveryCache.invalidate();
+    }
+
+    void invalidateDiscoveryCache(String identifier) {
+	discoveryCache.invalidate(identifier);
+    }
+
+    void invalidateKeyMaterial() {
+	keyMaterial = null;
+	discoveryCache.invalidate();
+    }
+
+    void invalidatePendingStatus(TransactionId transId) {
+	pendingStatus.invalidate(transId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void process(ScepRequest req, ScepResponse res,
+	    ScepRequestEvent event) throws ProcessingException, IOException {
+	if (req.getOperation() == null) {
+	    // The operation parameter must be set.
+	    res.sendError(HTTP_BAD_REQUEST, "Missing \"operation\" parameter.");
+
+	    return;
+	}
+	final Operation op;
+	try {
+	    op = Operation.forName(req.getOperation());
+	} catch (IllegalArgumentException e) {
+	    // The operation was not recognised.
+	    res.sendError(HTTP_BAD_REQUEST, "Invalid \"operation\" parameter.");
+
+	    return;
+	}
+
+	LOGGER.debug("Incoming Operation: " + op);
+	event.setOperation(op);
+
+	final String reqMethod = req.getMethod();
+
+	if (op == Operation.PKI_OPERATION) {
+	    if (!reqMethod.equals(POST) && !reqMethod.equals(GET)) {
+		// PKIOperation must be sent using GET or POST
+
+		res.setHeader("Allow", GET + ", " + POST);
+		res.sendError(HTTP_BAD_METHOD, "Method Not Allowed");
+
+		return;
+	    }
+	} else {
+	    if (!reqMethod.equals(GET)) {
+		// Operations other than PKIOperation must be sent using GET
+
+		res.setHeader("Allow", GET);
+		res.sendError(HTTP_BAD_METHOD, "Method Not Allowed");
+
+		return;
+	    }
+	}
+
+	LOGGER.debug("Method " + reqMethod + " Allowed for Operation: " + op);
+
+	if (op == Operation.GET_CA_CAPS || op == Operation.GET_CA_CERT
+		|| op == Operation.GET_NEXT_CA_CERT) {
+	    try {
+		if (!admit(op, null, req, res, event)) {
+		    return;
+		}
+		LOGGER.debug("Invoking {}", op);
+		event.enter(Phase.RESPONSE);
+		doDiscovery(op, req, res, event);
+	    } catch (Exception e) {
+		throw new ProcessingException(e);
+	    }
+	} else if (op == Operation.PKI_OPERATION) {
+	    // PKIOperation
+
+	    CMSSignedData sd;
+	    try {
+		sd = readSignedData(req, event);
+	    } catch (SizeLimitExceededException e) {
+		LOGGER.warn("Rejecting request: {}", e.getMessage());
+		res.sendError(HTTP_ENTITY_TOO_LARGE, e.getMessage());
+		return;
+	    } catch (CMSException e) {
+		reject(res, e);
+		return;
+	    }
+
+	    // Cheap checks first, so that garbage never reaches the keys
+	    event.enter(Phase.CERTIFICATE);
+	    X509CertificateHolder holder;
+	    try {
+		holder = PkiOperationValidator.validate(sd, new Date(),
+			servlet.getClockSkew());
+	    } catch (MessageDecodingException e) {
+		reject(res, e);
+		return;
+	    }
+	    final KeyMaterial keys = getKeyMaterial();
+	    X509Certificate reqCert;
+	    try {
+		reqCert = keys.toCertificate(holder.getEncoded());
+	    } catch (CertificateException e) {
+		throw new ProcessingException(e);
+	    }
+	    if (!admit(op, reqCert, req, res, event)) {
+		return;
+	    }
+
+	    event.enter(Phase.DECODE);
+	    PkiMessage<?> msg;
+	    PkiMessageDecoder decoder = keys.getDecoder(reqCert);
+	    try {
+		msg = decoder.decode(sd);
+	    } catch (MessageDecodingException e) {
+		if (isOperatorFailure(e)) {
+		    throw new ProcessingException(e);
+		}
+		reject(res, e);
+		return;
+	    }
+
+	    LOGGER.debug("Processing message {}", msg);
+	    event.enter(Phase.RESPONSE);
+
+	    MessageType msgType = msg.getMessageType();
+	    event.setMessageType(msgType);
+	    Object msgData = msg.getMessageData();
+
+	    Nonce senderNonce = Nonce.nextNonce();
+	    final TransactionId transId = msg.getTransactionId();
+	    Nonce recipientNonce = msg.getSenderNonce();
+	    CertRep certRep;
+	    SenderNonceCache nonceCache = servlet.getSenderNonceCache();
+
+	    if (nonceCache != null && recipientNonce != null
+		    && !nonceCache.addIfAbsent(recipientNonce)
+		    && !isRetransmission(msgType, msgData, transId)) {
+		// Not a final FAILURE, as the original may yet be answered
+		LOGGER.warn("Rejecting replayed {} with {}", msgType,
+			recipientNonce);
+		res.sendError(HTTP_BAD_REQUEST, "Replayed senderNonce");
+		return;
+	    }
+
+	    if (msgType == MessageType.GET_CERT) {
+		final IssuerAndSerialNumber iasn =
+			(IssuerAndSerialNumber) msgData;
+		final X500Name principal = iasn.getName();
+		final BigInteger serial = iasn.getSerialNumber().getValue();
+
+		try {
+		    List<X509Certificate> issued = dispatch(event,
+			    new Callable<List<X509Certificate>>() {
+				public List<X509Certificate> call()
+					throws Exception {
+				    return servlet.doGetCert(principal, serial);
+				}
+			    });
+		    if (issued.size() == 0) {
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce, FailInfo.badCertId);
+		    } else {
+			CMSSignedData messageData = getMessageData(issued);
+
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce, messageData);
+		    }
+		} catch (OperationFailureException e) {
+		    certRep = new CertRep(transId, senderNonce, recipientNonce,
+			    e.getFailInfo());
+		} catch (TimeoutException e) {
+		    sendUnavailable(res, e);
+		    return;
+		} catch (Exception e) {
+		    throw new ProcessingException(e);
+		}
+	    } else if (msgType == MessageType.GET_CERT_INITIAL
+		    && pendingStatus.isPending(transId)) {
+		LOGGER.debug("Answering poll for {} as still pending", transId);
+		certRep = new CertRep(transId, senderNonce, recipientNonce);
+	    } else if (msgType == MessageType.GET_CERT_INITIAL) {
+		final IssuerAndSubject ias = (IssuerAndSubject) msgData;
+		final X500Name issuer = X500Name.getInstance(ias.getIssuer());
+		final X500Name subject = X500Name.getInstance(ias.getSubject());
+
+		try {
+		    List<X509Certificate> issued;
+		    Transaction pending = findPending(transId);
+		    if (pending == null) {
+			issued = issue(event, msgType, transId,
+				new Callable<List<X509Certificate>>() {
+				    public List<X509Certificate> call()
+					    throws Exception {
+					return servlet.doGetCertInitial(issuer,
+						subject, transId);
+				    }
+				});
+		    } else if (pending.getFailInfo() != null) {
+			throw new OperationFailureException(
+				pending.getFailInfo());
+		    } else {
+			LOGGER.debug("Answering poll for {} from store",
+				transId);
+			issued = pending.getCertificates();
+		    }
+
+		    if (issued.size() == 0) {
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce);
+		    } else {
+			CMSSignedData messageData = getMessageData(issued);
+
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce, messageData);
+		    }
+		} catch (OperationFailureException e) {
+		    certRep = new CertRep(transId, senderNonce, recipientNonce,
+			    e.getFailInfo());
+		} catch (TimeoutException e) {
+		    sendUnavailable(res, e);
+		    return;
+		} catch (Exception e) {
+		    throw new ProcessingException(e);
+		}
+	    } else if (msgType == MessageType.GET_CRL) {
+		final IssuerAndSerialNumber iasn =
+			(IssuerAndSerialNumber) msgData;
+		final X500Name issuer = iasn.getName();
+		final BigInteger serialNumber = iasn.getSerialNumber()
+			.getValue();
+
+		try {
+		    LOGGER.debug("Invoking doGetCrl");
+		    X509CRL crl = dispatch(event, new Callable<X509CRL>() {
+			public X509CRL call() throws Exception {
+			    return servlet.doGetCrl(issuer, serialNumber);
+			}
+		    });
+		    CMSSignedData messageData = getMessageData(crl);
+
+		    certRep = new CertRep(transId, senderNonce, recipientNonce,
+			    messageData);
+		} catch (OperationFailureException e) {
+		    LOGGER.error("Error executing GetCRL request", e);
+		    certRep = new CertRep(transId, senderNonce, recipientNonce,
+			    e.getFailInfo());
+		} catch (TimeoutException e) {
+		    sendUnavailable(res, e);
+		    return;
+		} catch (Exception e) {
+		    LOGGER.error("Error executing GetCRL request", e);
+		    throw new ProcessingException(e);
+		}
+	    } else if (msgType == MessageType.PKCS_REQ) {
+		final PKCS10CertificationRequest certReq =
+			(PKCS10CertificationRequest) msgData;
+
+		try {
+		    LOGGER.debug("Invoking doEnrol");
+		    List<X509Certificate> issued = enrol(certReq, transId,
+			    event);
+
+		    if (issued.size() == 0) {
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce);
+		    } else {
+			CMSSignedData messageData = getMessageData(issued);
+
+			certRep = new CertRep(transId, senderNonce,
+				recipientNonce, messageData);
+		    }
+		} catch (OperationFailureException e) {
+		    certRep = new CertRep(transId, senderNonce, recipientNonce,
+			    e.getFailInfo());
+		} catch (TimeoutException e) {
+		    sendUnavailable(res, e);
+		    return;
+		} catch (Exception e) {
+		    throw new ProcessingException(e);
+		}
+	    } else {
+		throw new ProcessingException("Unknown Message for Operation");
+	    }
+
+	    event.enter(Phase.ENCODE);
+	    Set<Capability> allowed = servlet.getNegotiableAlgorithms();
+	    PkiMessageEncoder encoder = keys.getEncoder(reqCert,
+		    AlgorithmNegotiator.getCipher(
+			    decoder.getContentEncryptionAlgorithm(), allowed),
+		    AlgorithmNegotiator.getSignatureAlgorithm(sd,
+			    keys.getSigner().getPublicKey(), allowed));
+	    CMSSignedData signedData;
+	    try {
+		signedData = encoder.encode(certRep);
+	    } catch (MessageEncodingException e) {
+		LOGGER.error("Error decoding response", e);
+		throw new ProcessingException(e);
+	    }
+
+	    if (certRep.getPkiStatus() == PkiStatus.FAILURE) {
+		event.setOutcome(PkiStatus.FAILURE, certRep.getFailInfo());
+	    } else if (certRep.getPkiStatus() == PkiStatus.PENDING) {
+		pending(transId, res);
+		event.setOutcome(PkiStatus.PENDING, null);
+	    } else {
+		event.setOutcome(certRep.getPkiStatus(), null);
+	    }
+	    event.enter(Phase.WRITE);
+	    event.setResponseSize(writeEncoded(res,
+		    signedData.toASN1Structure()));
+	} else {
+	    res.sendError(HTTP_BAD_REQUEST,
+		    "Unknown Operation");
+	}
+    }
+
+    /**
+     * Returns <tt>true</tt> if the message is a resend of an enrolment held in
+     * the retransmission cache, which is answered from the cache rather than
+     * rejected as a replay.
+     */
+    private boolean isRetransmission(MessageType msgType, Object msgData,
+	    TransactionId transId) throws IOException {
+	RetransmissionCache cache = servlet.getRetransmissionCache();
+	if (cache == null || msgType != MessageType.PKCS_REQ) {
+	    return false;
+	}
+	return cache.contains(transId,
+		((PKCS10CertificationRequest) msgData).getEncoded());
+    }
+
+    /**
+     * Returns <tt>true</tt> if the exception was caused by a failure of a
+     * private key operator, which is not the fault of the client.
+     */
+    private static boolean isOperatorFailure(Throwable e) {
+	for (Throwable t = e; t != null; t = t.getCause()) {
+	    if (t instanceof PrivateKeyOperatorException) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private void reject(ScepResponse res, Exception e) throws IOException {
+	LOGGER.warn("Rejecting invalid PKIOperation: {}", e.getMessage());
+	res.sendError(HTTP_BAD_REQUEST, "Invalid PKIOperation message");
+    }
+
+    private List<X509Certificate> enrol(
+	    final PKCS10CertificationRequest certReq,
+	    final TransactionId transId, ScepRequestEvent event)
+	    throws Exception {
+	final RetransmissionCache cache = servlet.getRetransmissionCache();
+	final Callable<List<X509Certificate>> enrollment =
+		new Callable<List<X509Certificate>>() {
+		    public List<X509Certificate> call() throws Exception {
+			int batchSize = servlet.getEnrolBatchSize();
+			if (batchSize > 1) {
+			    return batcher.enrol(certReq, transId, batchSize,
+				    TimeUnit.MILLISECONDS.toNanos(servlet
+					    .getEnrolBatchWindow()),
+				    TimeUnit.MILLISECONDS.toNanos(servlet
+					    .getBackendTimeout()),
+				    batchBackend);
+			}
+			return servlet.doEnrol(certReq, transId);
+		    }
+		};
+	if (cache == null) {
+	    return issue(event, MessageType.PKCS_REQ, transId, enrollment);
+	}
+	return issue(event, MessageType.PKCS_REQ, transId,
+		new Callable<List<X509Certificate>>() {
+		    public List<X509Certificate> call() throws Exception {
+			return cache.enrol(transId, certReq.getEncoded(),
+				enrollment);
+		    }
+		});
+    }
+
+    private List<X509Certificate> issue(ScepRequestEvent event,
+	    MessageType msgType, TransactionId transId,
+	    Callable<List<X509Certificate>> call) throws Exception {
+	long start = System.nanoTime();
+	event.enter(Phase.BACKEND);
+	try {
+	    ExecutorService executor = servlet.getBackendExecutor();
+	    if (executor == null) {
+		return call.call();
+	    }
+	    return dispatcher.issue(executor, servlet.getBackendTimeout(),
+		    msgType, transId, call);
+	} finally {
+	    event.addBackendNanos(System.nanoTime() - start);
+	    event.enter(Phase.RESPONSE);
+	}
+    }
+
+    private <T> T dispatch(ScepRequestEvent event, Callable<T> call)
+	    throws Exception {
+	long start = System.nanoTime();
+	event.enter(Phase.BACKEND);
+	try {
+	    ExecutorService executor = servlet.getBackendExecutor();
+	    if (executor == null) {
+		return call.call();
+	    }
+	    return dispatcher.call(executor, servlet.getBackendTimeout(), call);
+	} finally {
+	    event.addBackendNanos(System.nanoTime() - start);
+	    event.enter(Phase.RESPONSE);
+	}
+    }
+
+    /**
+     * Asks the admission controller, if any, whether to handle the request,
+     * and answers the request with HTTP 503 if not.
+     */
+    private boolean admit(Operation op, X509Certificate requester,
+	    ScepRequest req, ScepResponse res,
+	    ScepRequestEvent event) throws IOException {
+	AdmissionController controller = servlet.getAdmissionController();
+	if (controller == null) {
+	    return true;
+	}
+	AdmissionController.Permit permit = controller.admit(op, requester,
+		req.getRemoteAddress());
+	if (permit == null) {
+	    LOGGER.debug("Turning away {} from {}", op, req.getRemoteAddress());
+	    res.sendError(HTTP_UNAVAILABLE,
+		    "Too Many Requests");
+	    return false;
+	}
+	event.setPermit(permit);
+
+	return true;
+    }
+
+    private void sendUnavailable(ScepResponse res, TimeoutException e)
+	    throws IOException {
+	LOGGER.warn("Backend unavailable: {}", e.getMessage());
+	res.sendError(HTTP_UNAVAILABLE,
+		"Backend Unavailable");
+    }
+
+    /**
+     * Writes the encoding of the given object, with its length, without
+     * holding a copy of the encoding, and returns the length.
+     */
+    private static long writeEncoded(ScepResponse res,
+	    ASN1Encodable obj) throws IOException {
+	// The first pass only measures the encoding.
+	CountingOutputStream counter = new CountingOutputStream(
+		NullOutputStream.NULL_OUTPUT_STREAM);
+	new ASN1OutputStream(counter).writeObject(obj);
+	OutputStream out = res.send(PKI_MESSAGE, counter.getByteCount());
+	new ASN1OutputStream(out).writeObject(obj);
+	out.close();
+
+	return counter.getByteCount();
+    }
+
+    private CMSSignedData getMessageData(List<X509Certificate> certs)
+	    throws IOException, CMSException, GeneralSecurityException {
+	CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+	JcaCertStore store;
+	try {
+	    store = new JcaCertStore(certs);
+	} catch (CertificateEncodingException e) {
+	    IOException ioe = new IOException();
+	    ioe.initCause(e);
+
+	    throw ioe;
+	}
+	generator.addCertificates(store);
+	return generator.generate(new CMSAbsentContent());
+    }
+
+    private CMSSignedData getMessageData(X509CRL crl) throws IOException,
+	    CMSException, GeneralSecurityException {
+	CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+	JcaCRLStore store;
+	if (crl == null) {
+	    store = new JcaCRLStore(Collections.emptyList());
+	} else {
+	    store = new JcaCRLStore(Collections.singleton(crl));
+	}
+	generator.addCertificates(store);
+	return generator.generate(new CMSAbsentContent());
+    }
+
+    private void doDiscovery(Operation op, ScepRequest req,
+	    ScepResponse res, ScepRequestEvent event) throws Exception {
+	String identifier = req.getMessage();
+	DiscoveryCache.Response response = discoveryCache.get(op, identifier);
+	if (response == null) {
+	    if (op == Operation.GET_CA_CAPS) {
+		response = doGetCaCaps(identifier);
+	    } else if (op == Operation.GET_CA_CERT) {
+		response = doGetCaCert(identifier, res);
+	    } else {
+		response = doGetNextCaCert(identifier, res);
+	    }
+	    if (response == null) {
+		return;
+	    }
+	    if (servlet.getDiscoveryCacheTtl() > 0) {
+		discoveryCache.put(op, identifier, response);
+	    }
+	} else {
+	    LOGGER.debug("Answering {} from cache", op);
+	}
+
+	event.setResponseSize(response.getBody().length);
+	OutputStream out = res.send(response.getContentType(),
+		response.getBody().length);
+	out.write(response.getBody());
+	out.close();
+    }
+
+    private DiscoveryCache.Response doGetNextCaCert(String identifier,
+	    ScepResponse res) throws Exception {
+	List<X509Certificate> certs = servlet.getNextCaCertificate(identifier);
+
+	if (certs.size() == 0) {
+	    res.sendError(HTTP_NOT_IMPLEMENTED,
+		    "GetNextCACert Not Supported");
+	    return null;
+	} else {
+	    CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+	    JcaCertStore store;
+	    try {
+		store = new JcaCertStore(certs);
+	    } catch (CertificateEncodingException e) {
+		IOException ioe = new IOException();
+		ioe.initCause(e);
+
+		throw ioe;
+	    }
+	    generator.addCertificates(store);
+	    DigestCalculatorProvider digestProvider = SignatureUtils
+		    .getDigestCalculatorProvider();
+	    SignerInfoGeneratorBuilder infoGenBuilder = new SignerInfoGeneratorBuilder(
+		    digestProvider);
+	    KeyMaterial keys = getKeyMaterial();
+	    X509CertificateHolder certHolder = new X509CertificateHolder(keys
+		    .getRecipient().getEncoded());
+	    ContentSigner contentSigner = keys.getRecipientSigner();
+	    SignerInfoGenerator infoGen = infoGenBuilder.build(contentSigner,
+		    certHolder);
+	    generator.addSignerInfoGenerator(infoGen);
+
+	    CMSSignedData degenerateSd = generator
+		    .generate(new CMSAbsentContent());
+
+	    return newDiscoveryResponse("application/x-x509-next-ca-cert",
+		    degenerateSd.getEncoded());
+	}
+    }
+
+    private DiscoveryCache.Response doGetCaCert(String identifier,
+	    ScepResponse res) throws Exception {
+	final List<X509Certificate> certs = servlet
+		.doGetCaCertificate(identifier);
+	if (certs.size() == 0) {
+	    res.sendError(HTTP_INTERNAL_ERROR,
+		    "GetCaCert failed to obtain CA from store");
+	    return null;
+	} else if (certs.size() == 1) {
+	    return newDiscoveryResponse("application/x-x509-ca-cert", certs
+		    .get(0).getEncoded());
+	} else {
+	    CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+	    JcaCertStore store;
+	    try {
+		store = new JcaCertStore(certs);
+	    } catch (CertificateEncodingException e) {
+		IOException ioe = new IOException();
+		ioe.initCause(e);
+
+		throw ioe;
+	    }
+	    generator.addCertificates(store);
+	    CMSSignedData degenerateSd = generator
+		    .generate(new CMSAbsentContent());
+
+	    return newDiscoveryResponse("application/x-x509-ca-ra-cert",
+		    degenerateSd.getEncoded());
+	}
+    }
+
+    private DiscoveryCache.Response doGetCaCaps(String identifier)
+	    throws Exception {
+	final Set<Capability> caps = EnumSet.noneOf(Capability.class);
+	caps.addAll(servlet.doCapabilities(identifier));
+	caps.addAll(servlet.getNegotiableAlgorithms());
+	StringBuilder sb = new StringBuilder();
+	for (Capability cap : caps) {
+	    sb.append(cap.toString());
+	    sb.append('\n');
+	}
+
+	return newDiscoveryResponse("text/plain",
+		sb.toString().getBytes(Charsets.US_ASCII.name()));
+    }
+
+    private DiscoveryCache.Response newDiscoveryResponse(String contentType,
+	    byte[] body) {
+	return new DiscoveryCache.Response(contentType, body,
+		TimeUnit.MILLISECONDS.toNanos(servlet.getDiscoveryCacheTtl()));
+    }
+
+    /**
+     * Records that the transaction is pending, and tells the client when to
+     * poll again.
+     */
+    private void pending(TransactionId transId, ScepResponse res) {
+	long ttl = servlet.getPendingStatusTtl();
+	if (ttl > 0) {
+	    pendingStatus.put(transId, TimeUnit.MILLISECONDS.toNanos(ttl));
+	}
+	int retryAfter = servlet.getRetryAfter();
+	if (retryAfter > 0) {
+	    res.setHeader("Retry-After", Integer.toString(retryAfter));
+	}
+    }
+
+    private Transaction findPending(TransactionId transId) {
+	PendingTransactionStore store = servlet.getPendingTransactionStore();
+	if (store == null) {
+	    return null;
+	}
+	return store.get(transId);
+    }
+
+    private KeyMaterial getKeyMaterial() {
+	KeyMaterial keys = keyMaterial;
+	if (keys == null) {
+	    keys = new KeyMaterial(servlet.getRecipient(),
+		    servlet.getRecipientKey(),
+		    servlet.getRecipientKeyOperator(),
+		    servlet.getSigner(), servlet.getSignerKey(),
+		    servlet.getSignerKeyOperator());
+	    keyMaterial = keys;
+	}
+	return keys;
+    }
+
+    private CMSSignedData readSignedData(ScepRequest req,
+	    ScepRequestEvent event) throws IOException, CMSException {
+	final int limit = servlet.getMaxMessageSize();
+	final InputStream in;
+	final SizeLimitedInputStream body;
+	if (req.getMethod().equals(POST)) {
+	    if (req.getContentLength() > limit) {
+		throw new SizeLimitExceededException(limit);
+	    }
+	    body = new SizeLimitedInputStream(req.getBody(), limit);
+	    in = body;
+	} else {
+	    body = null;
+	    String msg = req.getMessage();
+	    if (msg == null) {
+		msg = "";
+	    }
+	    if (msg.length() / 4 * 3 > limit) {
+		throw new SizeLimitExceededException(limit);
+	    }
+	    if (LOGGER.isDebugEnabled()) {
+		LOGGER.debug("Decoding {}", msg);
+	    }
+	    byte[] decoded = Base64.decode(msg);
+	    event.setRequestSize(decoded.length);
+	    in = new ByteArrayInputStream(decoded);
+	}
+
+	// The limit stops a forged length from allocating a large buffer.
+	ASN1InputStream asn1 = new ASN1InputStream(in, limit);
+	ASN1Primitive contentInfo;
+	try {
+	    contentInfo = asn1.readObject();
+	} catch (SizeLimitExceededException e) {
+	    throw e;
+	} catch (IOException e) {
+	    throw new CMSException("Malformed message", e);
+	}
+	if (body != null) {
+	    event.setRequestSize(body.getCount());
+	}
+	if (contentInfo == null) {
+	    throw new CMSException("Empty message");
+	}
+	try {
+	    return new CMSSignedData(ContentInfo.getInstance(contentInfo));
+	} catch (IllegalArgumentException e) {
+	    throw new CMSException("Malformed message", e);
+	}
+    }
+
+    /**
+     * Signals an error in this server or its backend, as opposed to an error
+     * in the request.
+     */
+    private static final class ProcessingException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	ProcessingException(String message) {
+	    super(message);
+	}
+
+	ProcessingException(Throwable cause) {
+	    super(cause);
+	}
+    }
+}
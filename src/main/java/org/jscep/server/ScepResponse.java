@@ -0,0 +1,51 @@
+package org.jscep.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This interface represents the HTTP response to a SCEP request, as provided
+ * by the HTTP stack which received the request.
+ * <p>
+ * A {@link ScepRequestProcessor} sets any headers first, and then either
+ * calls {@link #sendError(int, String)} or writes a body to the stream
+ * returned by {@link #send(String, long)}, exactly once.
+ */
+public interface ScepResponse {
+    /**
+     * Sets a response header.
+     * 
+     * @param name
+     *            the header name.
+     * @param value
+     *            the header value.
+     */
+    void setHeader(String name, String value);
+
+    /**
+     * Sends an error response.
+     * 
+     * @param status
+     *            the HTTP status code.
+     * @param message
+     *            a description of the error.
+     * @throws IOException
+     *             if the response cannot be sent.
+     */
+    void sendError(int status, String message) throws IOException;
+
+    /**
+     * Sends a successful response header, and returns the stream to write the
+     * body to. The processor closes the stream once the body is written.
+     * 
+     * @param contentType
+     *            the content type of the body.
+     * @param contentLength
+     *            the length of the body, in bytes.
+     * @return the stream to write the body to.
+     * @throws IOException
+     *             if the response cannot be sent.
+     */
+    OutputStream send(String contentType, long contentLength)
+	    throws IOException;
+}
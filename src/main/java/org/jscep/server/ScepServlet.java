@@ -23,451 +23,157 @@
 
 package org.jscep.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.security.GeneralSecurityException;
+import java.net.URLDecoder;
 import java.security.PrivateKey;
-import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
-import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
-import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaCRLStore;
-import org.bouncycastle.cert.jcajce.JcaCertStore;
-import org.bouncycastle.cms.CMSAbsentContent;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.CMSSignedDataGenerator;
-import org.bouncycastle.cms.SignerInfoGenerator;
-import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.DigestCalculatorProvider;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
-import org.bouncycastle.util.Store;
-import org.bouncycastle.util.encoders.Base64;
-import org.jscep.asn1.IssuerAndSubject;
 import org.jscep.message.CertRep;
-import org.jscep.message.MessageDecodingException;
-import org.jscep.message.MessageEncodingException;
-import org.jscep.message.PkcsPkiEnvelopeDecoder;
-import org.jscep.message.PkcsPkiEnvelopeEncoder;
-import org.jscep.message.PkiMessage;
-import org.jscep.message.PkiMessageDecoder;
-import org.jscep.message.PkiMessageEncoder;
-import org.jscep.transaction.FailInfo;
-import org.jscep.transaction.MessageType;
-import org.jscep.transaction.Nonce;
+import org.jscep.message.PrivateKeyOperator;
 import org.jscep.transaction.OperationFailureException;
 import org.jscep.transaction.TransactionId;
-import org.jscep.transport.request.Operation;
 import org.jscep.transport.response.Capability;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * This class provides a base Servlet which can be extended using the abstract
  * methods to implement a SCEP CA (or RA).
  */
 public abstract class ScepServlet extends HttpServlet {
-    private static final String GET = "GET";
     private static final String POST = "POST";
     private static final String MSG_PARAM = "message";
     private static final String OP_PARAM = "operation";
-    private static final Logger LOGGER = LoggerFactory
-	    .getLogger(ScepServlet.class);
+    private static final long DEFAULT_BACKEND_TIMEOUT = 10000L;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 128 * 1024;
+    private static final long DEFAULT_ENROL_BATCH_WINDOW = 10L;
+    private static final long DEFAULT_CLOCK_SKEW = 5 * 60 * 1000L;
     /**
      * Serialization ID
      */
     private static final long serialVersionUID = 1L;
+    private final transient ScepRequestProcessor processor = new ScepRequestProcessor(
+	    this);
 
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     @Override
-    public final void service(HttpServletRequest req, HttpServletResponse res)
-	    throws ServletException, IOException {
-	byte[] body = getMessageBytes(req);
-
-	final Operation op;
-	try {
-	    op = getOperation(req);
-	    if (op == null) {
-		// The operation parameter must be set.
-
-		res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-		Writer writer = res.getWriter();
-		writer.write("Missing \"operation\" parameter.");
-		writer.flush();
-
-		return;
-	    }
-	} catch (IllegalArgumentException e) {
-	    // The operation was not recognised.
-
-	    res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-	    Writer writer = res.getWriter();
-	    writer.write("Invalid \"operation\" parameter.");
-	    writer.flush();
-
-	    return;
-	}
-
-	LOGGER.debug("Incoming Operation: " + op);
-
-	final String reqMethod = req.getMethod();
-
-	if (op == Operation.PKI_OPERATION) {
-	    if (!reqMethod.equals(POST) && !reqMethod.equals(GET)) {
-		// PKIOperation must be sent using GET or POST
-
-		res.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
-		res.addHeader("Allow", GET + ", " + POST);
-
-		return;
-	    }
+    public final void service(HttpServletRequest req,
+	    final HttpServletResponse res) throws IOException {
+	ScepRequest request;
+	if (req.getMethod().equals(POST)) {
+	    // Reading a POST parameter would make the container consume the
+	    // body as a form, so the operation is taken from the URL.
+	    String op = getQueryParameter(req.getQueryString(), OP_PARAM);
+	    request = new ScepRequest(POST, op, null, req.getInputStream(),
+		    req.getContentLength(), req.getRemoteAddr());
 	} else {
-	    if (!reqMethod.equals(GET)) {
-		// Operations other than PKIOperation must be sent using GET
-
-		res.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
-		res.addHeader("Allow", GET);
-
-		return;
-	    }
+	    request = new ScepRequest(req.getMethod(),
+		    req.getParameter(OP_PARAM), req.getParameter(MSG_PARAM),
+		    null, -1, req.getRemoteAddr());
 	}
-
-	LOGGER.debug("Method " + reqMethod + " Allowed for Operation: " + op);
-
-	if (op == Operation.GET_CA_CAPS) {
-	    try {
-		LOGGER.debug("Invoking doGetCaCaps");
-		doGetCaCaps(req, res);
-	    } catch (Exception e) {
-		throw new ServletException(e);
-	    }
-	} else if (op == Operation.GET_CA_CERT) {
-	    try {
-		LOGGER.debug("Invoking doGetCaCert");
-		doGetCaCert(req, res);
-	    } catch (Exception e) {
-		throw new ServletException(e);
-	    }
-	} else if (op == Operation.GET_NEXT_CA_CERT) {
-	    try {
-		LOGGER.debug("Invoking doGetNextCaCert");
-		doGetNextCaCert(req, res);
-	    } catch (Exception e) {
-		throw new ServletException(e);
-	    }
-	} else if (op == Operation.PKI_OPERATION) {
-	    // PKIOperation
-
-	    res.setHeader("Content-Type", "application/x-pki-message");
-
-	    CMSSignedData sd;
-	    try {
-		sd = new CMSSignedData(body);
-	    } catch (CMSException e) {
-		throw new ServletException(e);
+	processor.process(request, new ScepResponse() {
+	    public void setHeader(String name, String value) {
+		res.setHeader(name, value);
 	    }
 
-	    Store reqStore = sd.getCertificates();
-	    Collection<X509CertificateHolder> reqCerts = reqStore
-		    .getMatches(null);
-
-	    CertificateFactory factory;
-	    try {
-		factory = CertificateFactory.getInstance("X.509");
-	    } catch (CertificateException e) {
-		throw new ServletException(e);
-	    }
-	    X509CertificateHolder holder = reqCerts.iterator().next();
-	    ByteArrayInputStream bais = new ByteArrayInputStream(
-		    holder.getEncoded());
-	    X509Certificate reqCert;
-	    try {
-		reqCert = (X509Certificate) factory.generateCertificate(bais);
-	    } catch (CertificateException e) {
-		throw new ServletException(e);
+	    public void sendError(int status, String message)
+		    throws IOException {
+		res.sendError(status, message);
 	    }
 
-	    PkiMessage<?> msg;
-	    try {
-		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(
-			getRecipient(), getRecipientKey());
-		PkiMessageDecoder decoder = new PkiMessageDecoder(reqCert,
-			envDecoder);
-		msg = decoder.decode(sd);
-	    } catch (MessageDecodingException e) {
-		LOGGER.error("Error decoding request", e);
-		throw new ServletException(e);
-	    }
+	    public OutputStream send(String contentType, long contentLength)
+		    throws IOException {
+		res.setHeader("Content-Type", contentType);
+		res.setContentLength((int) contentLength);
 
-	    LOGGER.debug("Processing message {}", msg);
-
-	    MessageType msgType = msg.getMessageType();
-	    Object msgData = msg.getMessageData();
-
-	    Nonce senderNonce = Nonce.nextNonce();
-	    TransactionId transId = msg.getTransactionId();
-	    Nonce recipientNonce = msg.getSenderNonce();
-	    CertRep certRep;
-
-	    if (msgType == MessageType.GET_CERT) {
-		final IssuerAndSerialNumber iasn = (IssuerAndSerialNumber) msgData;
-		final X500Name principal = iasn.getName();
-		final BigInteger serial = iasn.getSerialNumber().getValue();
-
-		try {
-		    List<X509Certificate> issued = doGetCert(principal, serial);
-		    if (issued.size() == 0) {
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce, FailInfo.badCertId);
-		    } else {
-			CMSSignedData messageData = getMessageData(issued);
-
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce, messageData);
-		    }
-		} catch (OperationFailureException e) {
-		    certRep = new CertRep(transId, senderNonce, recipientNonce,
-			    e.getFailInfo());
-		} catch (Exception e) {
-		    throw new ServletException(e);
-		}
-	    } else if (msgType == MessageType.GET_CERT_INITIAL) {
-		final IssuerAndSubject ias = (IssuerAndSubject) msgData;
-		final X500Name issuer = X500Name.getInstance(ias.getIssuer());
-		final X500Name subject = X500Name.getInstance(ias.getSubject());
-
-		try {
-		    List<X509Certificate> issued = doGetCertInitial(issuer,
-			    subject, transId);
-
-		    if (issued.size() == 0) {
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce);
-		    } else {
-			CMSSignedData messageData = getMessageData(issued);
-
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce, messageData);
-		    }
-		} catch (OperationFailureException e) {
-		    certRep = new CertRep(transId, senderNonce, recipientNonce,
-			    e.getFailInfo());
-		} catch (Exception e) {
-		    throw new ServletException(e);
-		}
-	    } else if (msgType == MessageType.GET_CRL) {
-		final IssuerAndSerialNumber iasn = (IssuerAndSerialNumber) msgData;
-		final X500Name issuer = iasn.getName();
-		final BigInteger serialNumber = iasn.getSerialNumber()
-			.getValue();
-
-		try {
-		    LOGGER.debug("Invoking doGetCrl");
-		    CMSSignedData messageData = getMessageData(doGetCrl(issuer,
-			    serialNumber));
-
-		    certRep = new CertRep(transId, senderNonce, recipientNonce,
-			    messageData);
-		} catch (OperationFailureException e) {
-		    LOGGER.error("Error executing GetCRL request", e);
-		    certRep = new CertRep(transId, senderNonce, recipientNonce,
-			    e.getFailInfo());
-		} catch (Exception e) {
-		    LOGGER.error("Error executing GetCRL request", e);
-		    throw new ServletException(e);
-		}
-	    } else if (msgType == MessageType.PKCS_REQ) {
-		final PKCS10CertificationRequest certReq = (PKCS10CertificationRequest) msgData;
-
-		try {
-		    LOGGER.debug("Invoking doEnrol");
-		    List<X509Certificate> issued = doEnrol(certReq, transId);
-
-		    if (issued.size() == 0) {
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce);
-		    } else {
-			CMSSignedData messageData = getMessageData(issued);
-
-			certRep = new CertRep(transId, senderNonce,
-				recipientNonce, messageData);
-		    }
-		} catch (OperationFailureException e) {
-		    certRep = new CertRep(transId, senderNonce, recipientNonce,
-			    e.getFailInfo());
-		} catch (Exception e) {
-		    throw new ServletException(e);
-		}
-	    } else {
-		throw new ServletException("Unknown Message for Operation");
+		return res.getOutputStream();
 	    }
-
-	    PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
-		    reqCert, "DESede");
-	    PkiMessageEncoder encoder = new PkiMessageEncoder(getSignerKey(),
-		    getSigner(), envEncoder);
-	    CMSSignedData signedData;
-	    try {
-		signedData = encoder.encode(certRep);
-	    } catch (MessageEncodingException e) {
-		LOGGER.error("Error decoding response", e);
-		throw new ServletException(e);
-	    }
-
-	    res.getOutputStream().write(signedData.getEncoded());
-	    res.getOutputStream().close();
-	} else {
-	    res.sendError(HttpServletResponse.SC_BAD_REQUEST,
-		    "Unknown Operation");
-	}
+	});
     }
 
-    private CMSSignedData getMessageData(List<X509Certificate> certs)
-	    throws IOException, CMSException, GeneralSecurityException {
-	CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-	JcaCertStore store;
-	try {
-	    store = new JcaCertStore(certs);
-	} catch (CertificateEncodingException e) {
-	    IOException ioe = new IOException();
-	    ioe.initCause(e);
-
-	    throw ioe;
-	}
-	generator.addCertificates(store);
-	return generator.generate(new CMSAbsentContent());
+    /**
+     * Returns the processor which implements the SCEP protocol for this
+     * servlet.
+     * <p>
+     * The processor can be used to host this servlet on an HTTP stack other
+     * than a servlet container, once the servlet has been initialised.
+     * 
+     * @return the processor.
+     */
+    public final ScepRequestProcessor getRequestProcessor() {
+	return processor;
     }
 
-    private CMSSignedData getMessageData(X509CRL crl) throws IOException,
-	    CMSException, GeneralSecurityException {
-	CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-	JcaCRLStore store;
-	if (crl == null) {
-	    store = new JcaCRLStore(Collections.emptyList());
-	} else {
-	    store = new JcaCRLStore(Collections.singleton(crl));
+    /**
+     * Returns the first value of the named parameter in the given query
+     * string, or <tt>null</tt> if it is absent.
+     */
+    static String getQueryParameter(String query, String name)
+	    throws UnsupportedEncodingException {
+	if (query == null) {
+	    return null;
 	}
-	generator.addCertificates(store);
-	return generator.generate(new CMSAbsentContent());
-    }
-
-    private void doGetNextCaCert(HttpServletRequest req, HttpServletResponse res)
-	    throws Exception {
-	res.setHeader("Content-Type", "application/x-x509-next-ca-cert");
-
-	List<X509Certificate> certs = getNextCaCertificate(req
-		.getParameter(MSG_PARAM));
-
-	if (certs.size() == 0) {
-	    res.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
-		    "GetNextCACert Not Supported");
-	} else {
-	    CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-	    JcaCertStore store;
-	    try {
-		store = new JcaCertStore(certs);
-	    } catch (CertificateEncodingException e) {
-		IOException ioe = new IOException();
-		ioe.initCause(e);
-
-		throw ioe;
+	for (String pair : query.split("&")) {
+	    int eq = pair.indexOf('=');
+	    String key = eq < 0 ? pair : pair.substring(0, eq);
+	    if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+		return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1),
+			"UTF-8");
 	    }
-	    generator.addCertificates(store);
-	    DigestCalculatorProvider digestProvider = new JcaDigestCalculatorProviderBuilder()
-		    .build();
-	    SignerInfoGeneratorBuilder infoGenBuilder = new SignerInfoGeneratorBuilder(
-		    digestProvider);
-	    X509CertificateHolder certHolder = new X509CertificateHolder(
-		    getRecipient().getEncoded());
-	    ContentSigner contentSigner = new JcaContentSignerBuilder(
-		    "SHA1withRSA").build(getRecipientKey());
-	    SignerInfoGenerator infoGen = infoGenBuilder.build(contentSigner,
-		    certHolder);
-	    generator.addSignerInfoGenerator(infoGen);
-
-	    CMSSignedData degenerateSd = generator
-		    .generate(new CMSAbsentContent());
-	    byte[] bytes = degenerateSd.getEncoded();
-
-	    res.getOutputStream().write(bytes);
-	    res.getOutputStream().close();
 	}
+	return null;
     }
 
-    private void doGetCaCert(HttpServletRequest req, HttpServletResponse res)
-	    throws Exception {
-	final List<X509Certificate> certs = doGetCaCertificate(req
-		.getParameter(MSG_PARAM));
-	final byte[] bytes;
-	if (certs.size() == 0) {
-	    res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-		    "GetCaCert failed to obtain CA from store");
-	    bytes = new byte[0];
-	} else if (certs.size() == 1) {
-	    res.setHeader("Content-Type", "application/x-x509-ca-cert");
-	    bytes = certs.get(0).getEncoded();
-	} else {
-	    res.setHeader("Content-Type", "application/x-x509-ca-ra-cert");
-	    CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-	    JcaCertStore store;
-	    try {
-		store = new JcaCertStore(certs);
-	    } catch (CertificateEncodingException e) {
-		IOException ioe = new IOException();
-		ioe.initCause(e);
-
-		throw ioe;
-	    }
-	    generator.addCertificates(store);
-	    CMSSignedData degenerateSd = generator
-		    .generate(new CMSAbsentContent());
-	    bytes = degenerateSd.getEncoded();
-	}
-
-	res.getOutputStream().write(bytes);
-	res.getOutputStream().close();
+    /**
+     * Returns how long, in milliseconds, the encoded responses to GetCACaps,
+     * GetCACert and GetNextCACert are reused.
+     * <p>
+     * Within this time, the same operation for the same CA identifier is
+     * answered without calling {@link #doCapabilities(String)},
+     * {@link #doGetCaCertificate(String)} or
+     * {@link #getNextCaCertificate(String)}, and without signing. Responses
+     * are held for a bounded number of CA identifiers. By default this method
+     * returns <tt>0</tt>, and the cache is disabled. Implementations which
+     * enable the cache and change their CA certificates or capabilities
+     * should call {@link #invalidateDiscoveryCache()}.
+     * 
+     * @return the time to live of cached responses, in milliseconds.
+     */
+    protected long getDiscoveryCacheTtl() {
+	return 0L;
     }
 
-    private Operation getOperation(HttpServletRequest req) {
-	String op = req.getParameter(OP_PARAM);
-	if (op == null) {
-	    return null;
-	}
-	return Operation.forName(req.getParameter(OP_PARAM));
+    /**
+     * Discards the cached responses to GetCACaps, GetCACert and GetNextCACert
+     * for all CA identifiers.
+     */
+    public void invalidateDiscoveryCache() {
+	processor.invalidateDiscoveryCache();
     }
 
-    private void doGetCaCaps(HttpServletRequest req, HttpServletResponse res)
-	    throws Exception {
-	res.setHeader("Content-Type", "text/plain");
-	final Set<Capability> caps = doCapabilities(req.getParameter("message"));
-	for (Capability cap : caps) {
-	    res.getWriter().write(cap.toString());
-	    res.getWriter().write('\n');
-	}
-	res.getWriter().close();
+    /**
+     * Discards the cached responses to GetCACaps, GetCACert and GetNextCACert
+     * for the given CA identifier.
+     * 
+     * @param identifier
+     *            the CA identifier, which may be <tt>null</tt>.
+     */
+    public void invalidateDiscoveryCache(String identifier) {
+	processor.invalidateDiscoveryCache(identifier);
     }
 
     /**
@@ -581,9 +287,278 @@ public abstract class ScepServlet extends HttpServlet {
 	    PKCS10CertificationRequest certificationRequest,
 	    TransactionId transId) throws OperationFailureException, Exception;
 
+    /**
+     * Enrols a batch of certificates into the PKI represented by this SCEP
+     * interface.
+     * <p>
+     * This method is called instead of
+     * {@link #doEnrol(PKCS10CertificationRequest, TransactionId)} when
+     * {@link #getEnrolBatchSize()} is greater than one. Implementations
+     * record the outcome of each enrollment on the enrollment itself; an
+     * enrollment left without an outcome is pending. If this method throws
+     * an exception, every enrollment in the batch without an outcome fails
+     * with it.
+     * <p>
+     * By default this method calls <tt>doEnrol</tt> for each enrollment in
+     * turn, and records any exception on that enrollment alone. Backends
+     * which can issue several certificates in one call should override it.
+     * Enrollments whose batch does not complete within
+     * {@link #getBackendTimeout()} are reported as pending.
+     * 
+     * @param batch
+     *            the enrollments.
+     * @throws Exception
+     *             if any problem occurs
+     */
+    protected void doEnrolBatch(List<Enrollment> batch) throws Exception {
+	for (Enrollment enrollment : batch) {
+	    try {
+		enrollment.setCertificates(doEnrol(
+			enrollment.getCertificationRequest(),
+			enrollment.getTransactionId()));
+	    } catch (OperationFailureException e) {
+		enrollment.setFailInfo(e.getFailInfo());
+	    } catch (Exception e) {
+		enrollment.setError(e);
+	    }
+	}
+    }
+
+    /**
+     * Returns the maximum number of enrollments passed to
+     * {@link #doEnrolBatch(List)} at once.
+     * <p>
+     * Concurrent <tt>PKCSReq</tt> messages are gathered for up to
+     * {@link #getEnrolBatchWindow()} milliseconds, or until this many have
+     * arrived, and issued together. By default this method returns
+     * <tt>1</tt>, and each enrollment is passed to
+     * {@link #doEnrol(PKCS10CertificationRequest, TransactionId)} on its own.
+     * 
+     * @return the maximum batch size.
+     */
+    protected int getEnrolBatchSize() {
+	return 1;
+    }
+
+    /**
+     * Returns how long, in milliseconds, the first enrollment of a batch
+     * waits for others to join it. This adds up to this much latency to each
+     * enrollment. The default is ten milliseconds.
+     * 
+     * @return the batch window, in milliseconds.
+     */
+    protected long getEnrolBatchWindow() {
+	return DEFAULT_ENROL_BATCH_WINDOW;
+    }
+
+    /**
+     * Returns the cache used to reject replayed <tt>PKIOperation</tt>
+     * messages.
+     * <p>
+     * A request whose <tt>senderNonce</tt> is found in the cache is answered
+     * with HTTP 400, without calling any of the <tt>do</tt> methods. The
+     * exception is a resent <tt>PKCSReq</tt> held by the
+     * {@link #getRetransmissionCache() retransmission cache}, which is
+     * answered from that cache. By default this method returns
+     * <tt>null</tt>, and replayed messages are not detected. Implementations
+     * that enable replay detection should return the same cache on every
+     * call.
+     * 
+     * @return the cache, or <tt>null</tt> to disable replay detection.
+     */
+    protected SenderNonceCache getSenderNonceCache() {
+	return null;
+    }
+
+    /**
+     * Returns the cache used to answer retransmitted <tt>PKCSReq</tt>
+     * messages.
+     * <p>
+     * A <tt>PKCSReq</tt> with the same <tt>transactionID</tt> and
+     * certification request as an earlier, successful enrollment is answered
+     * with the certificates issued then, without calling
+     * {@link #doEnrol(PKCS10CertificationRequest, TransactionId)} again. By
+     * default this method returns <tt>null</tt>, and every <tt>PKCSReq</tt>
+     * is passed to <tt>doEnrol</tt>. Implementations that enable the cache
+     * should return the same cache on every call.
+     * 
+     * @return the cache, or <tt>null</tt> to disable it.
+     */
+    protected RetransmissionCache getRetransmissionCache() {
+	return null;
+    }
+
+    /**
+     * Returns the store used to answer <tt>GetCertInitial</tt> polls.
+     * <p>
+     * A poll for a transaction found in the store by its
+     * <tt>transactionID</tt> is answered from the store without calling
+     * {@link #doGetCertInitial(X500Name, X500Name, TransactionId)}.
+     * Implementations add transactions to the store themselves, typically
+     * when {@link #doEnrol(PKCS10CertificationRequest, TransactionId)} leaves
+     * them pending. By default this method returns <tt>null</tt>, and every
+     * poll is passed to <tt>doGetCertInitial</tt>. Implementations that
+     * enable the store should return the same store on every call.
+     * 
+     * @return the store, or <tt>null</tt> to disable it.
+     */
+    protected PendingTransactionStore getPendingTransactionStore() {
+	return null;
+    }
+
+    /**
+     * Returns how long, in milliseconds, a transaction answered with
+     * <tt>PENDING</tt> is assumed to remain pending.
+     * <p>
+     * Within this time, <tt>GetCertInitial</tt> polls for the transaction are
+     * answered with <tt>PENDING</tt> without consulting the
+     * {@link #getPendingTransactionStore() store} or calling
+     * {@link #doGetCertInitial(X500Name, X500Name, TransactionId)}, so a
+     * decision may be reported up to this much later. Implementations can
+     * call {@link #invalidatePendingStatus(TransactionId)} when a decision is
+     * made. By default this method returns <tt>0</tt>, and every poll is
+     * processed.
+     * 
+     * @return the time to live of the pending status, in milliseconds.
+     */
+    protected long getPendingStatusTtl() {
+	return 0;
+    }
+
+    /**
+     * Discards the remembered pending status of the given transaction, so its
+     * next poll is processed.
+     * 
+     * @param transId
+     *            the <tt>transactionID</tt>.
+     */
+    public void invalidatePendingStatus(TransactionId transId) {
+	processor.invalidatePendingStatus(transId);
+    }
+
+    /**
+     * Returns the number of seconds a client should wait before polling a
+     * pending transaction.
+     * <p>
+     * The value is sent in the <tt>Retry-After</tt> header of every
+     * <tt>PENDING</tt> response. By default this method returns <tt>0</tt>,
+     * and no header is sent.
+     * 
+     * @return the number of seconds, or <tt>0</tt> for no hint.
+     */
+    protected int getRetryAfter() {
+	return 0;
+    }
+
+    /**
+     * Returns the algorithms which this servlet may use in responses.
+     * <p>
+     * A <tt>CertRep</tt> is enveloped with the cipher used by the request, and
+     * signed with the digest used by the request, if the matching capability
+     * is in this set: {@link Capability#AES}, {@link Capability#TRIPLE_DES},
+     * {@link Capability#SHA_1}, {@link Capability#SHA_256} or
+     * {@link Capability#SHA_512}. Otherwise, the response is enveloped with
+     * triple DES and signed with the default algorithm for the signer key.
+     * These capabilities are also added to the response to
+     * <tt>GetCACaps</tt>.
+     * <p>
+     * By default this method returns an empty set, and no algorithms are
+     * negotiated.
+     * 
+     * @return the capabilities to negotiate.
+     */
+    protected Set<Capability> getNegotiableAlgorithms() {
+	return Collections.emptySet();
+    }
+
+    /**
+     * Returns the listener told about each request handled by this servlet.
+     * <p>
+     * By default this method returns <tt>null</tt>, and no events are
+     * produced. Return a {@link ServerMetrics} to publish request metrics
+     * through JMX.
+     * 
+     * @return the listener, or <tt>null</tt>.
+     */
+    protected ScepServletListener getListener() {
+	return null;
+    }
+
+    /**
+     * Returns the controller which decides whether to handle each request.
+     * <p>
+     * The controller is consulted after the requester certificate has been
+     * read from a <tt>PKIOperation</tt>, but before its signature is verified
+     * or its envelope decrypted, so turning a request away costs no private
+     * key operation. Requests which are turned away are answered with HTTP
+     * 503.
+     * <p>
+     * By default this method returns <tt>null</tt>, and every request is
+     * handled.
+     * 
+     * @return the controller, or <tt>null</tt>.
+     */
+    protected AdmissionController getAdmissionController() {
+	return null;
+    }
+
+    /**
+     * Returns the tracer which times the phases of sampled requests.
+     * <p>
+     * By default this method returns <tt>null</tt>, and no requests are
+     * traced. Implementations should return the same tracer on every call.
+     * 
+     * @return the tracer, or <tt>null</tt>.
+     */
+    protected PhaseTracer getPhaseTracer() {
+	return null;
+    }
+
+    /**
+     * Returns the executor on which backend methods are called.
+     * <p>
+     * When an executor is provided, {@link #doGetCert(X500Name, BigInteger)},
+     * {@link #doGetCertInitial(X500Name, X500Name, TransactionId)},
+     * {@link #doGetCrl(X500Name, BigInteger)} and
+     * {@link #doEnrol(PKCS10CertificationRequest, TransactionId)} are run on
+     * it, and the request thread waits for no longer than
+     * {@link #getBackendTimeout()}. An enrollment which takes longer keeps
+     * running, and the client is told that its request is pending; the
+     * outcome answers its next <tt>GetCertInitial</tt> for the same
+     * transaction. Other operations which take longer, or which the executor
+     * rejects, are answered with HTTP 503.
+     * <p>
+     * Return a {@link BackendQueue} to have <tt>PKCSReq</tt> answered with
+     * <tt>PENDING</tt> at once while the backend is overloaded.
+     * <p>
+     * By default this method returns <tt>null</tt>, and backend methods are
+     * called on the request thread. Implementations should return the same
+     * executor on every call, and shut it down in {@link #destroy()}.
+     * 
+     * @return the executor, or <tt>null</tt> to call the backend directly.
+     */
+    protected ExecutorService getBackendExecutor() {
+	return null;
+    }
+
+    /**
+     * Returns how long, in milliseconds, a request waits for a backend method
+     * run on the {@link #getBackendExecutor() backend executor}, or for the
+     * batch holding its enrollment after the {@link #getEnrolBatchWindow()
+     * batch window}. The default is ten seconds.
+     * 
+     * @return the backend timeout, in milliseconds.
+     */
+    protected long getBackendTimeout() {
+	return DEFAULT_BACKEND_TIMEOUT;
+    }
+
     /**
      * Returns the private key of the recipient entity represented by this SCEP
      * server.
+     * <p>
+     * This method may return <tt>null</tt> if
+     * {@link #getRecipientKeyOperator()} returns an operator.
      * 
      * @return the private key.
      */
@@ -598,11 +573,45 @@ public abstract class ScepServlet extends HttpServlet {
 
     /**
      * Returns the private key of the entity represented by this SCEP server.
+     * <p>
+     * This method may return <tt>null</tt> if {@link #getSignerKeyOperator()}
+     * returns an operator.
      * 
      * @return the private key.
      */
     protected abstract PrivateKey getSignerKey();
 
+    /**
+     * Returns the operator used in place of {@link #getRecipientKey()} to
+     * unwrap the content encryption key of incoming messages, and to sign
+     * <tt>GetNextCACert</tt> responses.
+     * <p>
+     * An operator lets the recipient key be held outside this process, or its
+     * operations be run on a dedicated pool such as a
+     * {@link LocalKeyOperator}. Envelopes for elliptic curve recipients
+     * require the private key itself. By default this method returns
+     * <tt>null</tt>, and the private key is used on the request thread.
+     * 
+     * @return the recipient key operator, or <tt>null</tt>.
+     */
+    protected PrivateKeyOperator getRecipientKeyOperator() {
+	return null;
+    }
+
+    /**
+     * Returns the operator used in place of {@link #getSignerKey()} to sign
+     * responses.
+     * <p>
+     * By default this method returns <tt>null</tt>, and the private key is
+     * used on the request thread.
+     * 
+     * @return the signer key operator, or <tt>null</tt>.
+     * @see #getRecipientKeyOperator()
+     */
+    protected PrivateKeyOperator getSignerKeyOperator() {
+	return null;
+    }
+
     /**
      * Returns the certificate of the entity represented by this SCEP server.
      * 
@@ -610,24 +619,48 @@ public abstract class ScepServlet extends HttpServlet {
      */
     protected abstract X509Certificate getSigner();
 
-    private byte[] getMessageBytes(HttpServletRequest req) throws IOException {
-	if (req.getMethod().equals(POST)) {
-	    return IOUtils.toByteArray(req.getInputStream());
-	} else {
-	    Operation op = getOperation(req);
-
-	    if (op == Operation.PKI_OPERATION) {
-		String msg = req.getParameter(MSG_PARAM);
-		if (msg.length() == 0) {
-		    return new byte[0];
-		}
-		if (LOGGER.isDebugEnabled()) {
-		    LOGGER.debug("Decoding {}", msg);
-		}
-		return Base64.decode(msg);
-	    } else {
-		return new byte[0];
-	    }
-	}
+    /**
+     * Discards the keys and certificates held by this servlet, together with
+     * the cached discovery responses.
+     * <p>
+     * The results of {@link #getRecipient()}, {@link #getRecipientKey()},
+     * {@link #getSigner()}, {@link #getSignerKey()} and the key operators are
+     * read on first use, and reused for every request after that.
+     * Implementations which replace their keys or certificates should call
+     * this method afterwards.
+     */
+    public void invalidateKeyMaterial() {
+	processor.invalidateKeyMaterial();
     }
+
+    /**
+     * Returns the maximum size, in bytes, of a <tt>PKIOperation</tt> message.
+     * <p>
+     * Larger messages are answered with HTTP 413. A <tt>POST</tt> which
+     * declares a larger <tt>Content-Length</tt> is rejected before its body
+     * is read. The default is 128 KiB, which is ample for a certification
+     * request.
+     * 
+     * @return the maximum message size, in bytes.
+     */
+    protected int getMaxMessageSize() {
+	return DEFAULT_MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Returns the tolerated clock skew, in milliseconds, when checking the
+     * validity period of the certificate which signed a <tt>PKIOperation</tt>.
+     * <p>
+     * Clients often sign their first request with a self-signed certificate
+     * made moments earlier, by a clock which may run ahead of the server's.
+     * Such a certificate is accepted if it becomes valid within this time.
+     * The default is five minutes. Return a negative value to accept
+     * certificates regardless of their validity period.
+     * 
+     * @return the tolerated clock skew, in milliseconds.
+     */
+    protected long getClockSkew() {
+	return DEFAULT_CLOCK_SKEW;
+    }
+
 }
@@ -0,0 +1,23 @@
+package org.jscep.server;
+
+/**
+ * This interface is implemented by classes which observe the requests handled
+ * by a <tt>ScepServlet</tt>.
+ * 
+ * @see ScepServlet#getListener()
+ * @see ServerMetrics
+ */
+public interface ScepServletListener {
+    /**
+     * Called once a request has been handled, on the thread which handled
+     * it.
+     * <p>
+     * Implementations should return quickly, since the request thread is not
+     * released until they do. Exceptions thrown by this method are logged
+     * and otherwise ignored.
+     * 
+     * @param event
+     *            the completed request.
+     */
+    void requestCompleted(ScepRequestEvent event);
+}
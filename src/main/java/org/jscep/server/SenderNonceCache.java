@@ -0,0 +1,132 @@
+package org.jscep.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transaction.Nonce;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class records the <tt>senderNonce</tt>s of recent requests, so that a
+ * <tt>ScepServlet</tt> can reject replayed messages.
+ * <p>
+ * Nonces are recorded in a ring of time buckets. Each bucket covers a fixed
+ * slice of the window, and is discarded in one step once it falls out of the
+ * window, so there is no per-nonce expiry work. Each bucket holds a bounded
+ * number of nonces. When the current bucket is full, further nonces are let
+ * through without being recorded, rather than turning away legitimate
+ * requests.
+ *
+ * @see ScepServlet#getSenderNonceCache()
+ */
+@ThreadSafe
+public final class SenderNonceCache {
+    private static final Logger LOGGER = LoggerFactory
+	    .getLogger(SenderNonceCache.class);
+    private static final int BUCKETS = 8;
+    private final long bucketNanos;
+    private final int bucketCapacity;
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    /**
+     * Creates a new <tt>SenderNonceCache</tt>.
+     *
+     * @param capacity
+     *            the maximum number of nonces to hold.
+     * @param window
+     *            the minimum time for which each nonce is remembered.
+     * @param unit
+     *            the unit of the <tt>window</tt> argument.
+     * @throws IllegalArgumentException
+     *             if the capacity or window is not positive.
+     */
+    public SenderNonceCache(int capacity, long window, TimeUnit unit) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive");
+	}
+	if (window <= 0) {
+	    throw new IllegalArgumentException("Window must be positive");
+	}
+	// The current bucket is only partly elapsed, so the remaining buckets
+	// must cover the whole window.
+	this.bucketNanos = unit.toNanos(window) / (BUCKETS - 1) + 1;
+	this.bucketCapacity = (capacity + BUCKETS - 1) / BUCKETS;
+	this.buckets = new AtomicReferenceArray<Bucket>(BUCKETS);
+    }
+
+    /**
+     * Records the given <tt>senderNonce</tt> unless it has been seen within
+     * the window.
+     *
+     * @param nonce
+     *            the <tt>senderNonce</tt> of a request.
+     * @return <tt>true</tt> if the nonce is new, or <tt>false</tt> if the
+     *         request is a replay.
+     */
+    public boolean addIfAbsent(Nonce nonce) {
+	long epoch = System.nanoTime() / bucketNanos;
+	for (int i = 1; i < BUCKETS; i++) {
+	    Bucket older = buckets.get(indexOf(epoch - i));
+	    if (older != null && older.epoch == epoch - i
+		    && older.nonces.contains(nonce)) {
+		return false;
+	    }
+	}
+	return getBucket(epoch).add(nonce);
+    }
+
+    private Bucket getBucket(long epoch) {
+	int index = indexOf(epoch);
+	while (true) {
+	    Bucket bucket = buckets.get(index);
+	    if (bucket != null && bucket.epoch >= epoch) {
+		return bucket;
+	    }
+	    Bucket fresh = new Bucket(epoch);
+	    if (buckets.compareAndSet(index, bucket, fresh)) {
+		return fresh;
+	    }
+	}
+    }
+
+    private static int indexOf(long epoch) {
+	return (int) (((epoch % BUCKETS) + BUCKETS) % BUCKETS);
+    }
+
+    /**
+     * The nonces received during one slice of the window.
+     */
+    private final class Bucket {
+	private final long epoch;
+	private final Set<Nonce> nonces = Collections
+		.newSetFromMap(new ConcurrentHashMap<Nonce, Boolean>());
+	private final AtomicInteger size = new AtomicInteger();
+
+	Bucket(long epoch) {
+	    this.epoch = epoch;
+	}
+
+	boolean add(Nonce nonce) {
+	    if (nonces.contains(nonce)) {
+		return false;
+	    }
+	    if (size.incrementAndGet() > bucketCapacity) {
+		size.decrementAndGet();
+		LOGGER.warn("senderNonce cache is full; {} not recorded", nonce);
+		return true;
+	    }
+	    if (!nonces.add(nonce)) {
+		size.decrementAndGet();
+		return false;
+	    }
+	    return true;
+	}
+    }
+}
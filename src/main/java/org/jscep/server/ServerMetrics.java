@@ -0,0 +1,349 @@
+package org.jscep.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.PkiStatus;
+import org.jscep.transport.request.Operation;
+
+/**
+ * This class collects request counts, outcomes, sizes and latencies from a
+ * <tt>ScepServlet</tt>, and publishes them as a JMX MBean.
+ * <p>
+ * To use it, return an instance from {@link ScepServlet#getListener()} and
+ * register the same instance with an <tt>MBeanServer</tt>:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+ * 	new ObjectName(&quot;org.jscep:type=ServerMetrics&quot;));
+ * </pre>
+ * <p>
+ * Latencies are recorded per {@link Operation} and per {@link MessageType},
+ * and the time spent in backend methods per {@link MessageType}. Each latency
+ * is published as a count, mean, maximum and approximate percentiles, taken
+ * from a histogram with fixed bucket bounds. Outcomes are counted per
+ * {@link PkiStatus} and per {@link FailInfo}.
+ */
+@ThreadSafe
+public final class ServerMetrics implements ScepServletListener, DynamicMBean {
+    private static final long[] BOUNDS_MILLIS = { 1, 2, 5, 10, 20, 50, 100,
+	    200, 500, 1000, 2000, 5000, 10000, 30000 };
+    private final Map<Operation, Latency> operations = new LinkedHashMap<Operation, Latency>();
+    private final Map<MessageType, Latency> messageTypes = new LinkedHashMap<MessageType, Latency>();
+    private final Map<MessageType, Latency> backends = new LinkedHashMap<MessageType, Latency>();
+    private final Map<PkiStatus, AtomicLong> statuses = new LinkedHashMap<PkiStatus, AtomicLong>();
+    private final Map<FailInfo, AtomicLong> failures = new LinkedHashMap<FailInfo, AtomicLong>();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+    private final MBeanInfo info;
+
+    /**
+     * Creates a new <tt>ServerMetrics</tt> with all values at zero.
+     */
+    public ServerMetrics() {
+	for (Operation op : Operation.values()) {
+	    operations.put(op, addLatency("Operation." + op.getName()));
+	}
+	for (MessageType type : MessageType.values()) {
+	    if (type != MessageType.CERT_REP) {
+		messageTypes.put(type, addLatency("MessageType." + type));
+		backends.put(type, addLatency("Backend." + type));
+	    }
+	}
+	for (PkiStatus status : PkiStatus.values()) {
+	    statuses.put(status, addCounter("PkiStatus." + status));
+	}
+	for (FailInfo failInfo : FailInfo.values()) {
+	    failures.put(failInfo, addCounter("FailInfo." + failInfo));
+	}
+	addCounter("BytesIn", bytesIn);
+	addCounter("BytesOut", bytesOut);
+
+	List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+	for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+	    attrs.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue()
+		    .getType(), entry.getKey(), true, false, false));
+	}
+	this.info = new MBeanInfo(getClass().getName(),
+		"SCEP server request metrics",
+		attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+		null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void requestCompleted(ScepRequestEvent event) {
+	long duration = event.getDurationNanos();
+	if (event.getOperation() != null) {
+	    operations.get(event.getOperation()).record(duration);
+	}
+	MessageType type = event.getMessageType();
+	if (type != null && messageTypes.containsKey(type)) {
+	    messageTypes.get(type).record(duration);
+	    backends.get(type).record(event.getBackendNanos());
+	}
+	if (event.getPkiStatus() != null) {
+	    statuses.get(event.getPkiStatus()).incrementAndGet();
+	}
+	if (event.getFailInfo() != null) {
+	    failures.get(event.getFailInfo()).incrementAndGet();
+	}
+	if (event.getRequestSize() > 0) {
+	    bytesIn.addAndGet(event.getRequestSize());
+	}
+	if (event.getResponseSize() > 0) {
+	    bytesOut.addAndGet(event.getResponseSize());
+	}
+    }
+
+    /**
+     * Returns the number of requests for the given operation.
+     *
+     * @param op
+     *            the operation.
+     * @return the number of requests.
+     */
+    public long getCount(Operation op) {
+	return operations.get(op).count.get();
+    }
+
+    /**
+     * Returns the number of <tt>PKIOperation</tt> requests of the given
+     * message type.
+     *
+     * @param type
+     *            the message type.
+     * @return the number of requests.
+     */
+    public long getCount(MessageType type) {
+	Latency latency = messageTypes.get(type);
+	if (latency == null) {
+	    return 0;
+	}
+	return latency.count.get();
+    }
+
+    /**
+     * Returns the number of <tt>CertRep</tt> responses with the given status.
+     *
+     * @param status
+     *            the status.
+     * @return the number of responses.
+     */
+    public long getCount(PkiStatus status) {
+	return statuses.get(status).get();
+    }
+
+    /**
+     * Returns the number of <tt>CertRep</tt> responses with the given failure
+     * reason.
+     *
+     * @param failInfo
+     *            the failure reason.
+     * @return the number of responses.
+     */
+    public long getCount(FailInfo failInfo) {
+	return failures.get(failInfo).get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getAttribute(String attribute)
+	    throws AttributeNotFoundException {
+	Metric metric = metrics.get(attribute);
+	if (metric == null) {
+	    throw new AttributeNotFoundException(attribute);
+	}
+	return metric.getValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList getAttributes(String[] attributes) {
+	AttributeList list = new AttributeList();
+	for (String attribute : attributes) {
+	    Metric metric = metrics.get(attribute);
+	    if (metric != null) {
+		list.add(new Attribute(attribute, metric.getValue()));
+	    }
+	}
+	return list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanInfo getMBeanInfo() {
+	return info;
+    }
+
+    /**
+     * All attributes are read-only, so this method always throws an
+     * exception.
+     */
+    public void setAttribute(Attribute attribute)
+	    throws AttributeNotFoundException {
+	throw new AttributeNotFoundException(attribute.getName()
+		+ " is read-only");
+    }
+
+    /**
+     * All attributes are read-only, so this method always returns an empty
+     * list.
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+	return new AttributeList();
+    }
+
+    /**
+     * There are no operations, so this method always throws an exception.
+     */
+    public Object invoke(String actionName, Object[] params,
+	    String[] signature) throws MBeanException, ReflectionException {
+	throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    private Latency addLatency(String prefix) {
+	final Latency latency = new Latency();
+	metrics.put(prefix + ".Count", new Metric(Long.class) {
+	    Object getValue() {
+		return latency.count.get();
+	    }
+	});
+	metrics.put(prefix + ".MeanMillis", new Metric(Double.class) {
+	    Object getValue() {
+		return latency.getMeanMillis();
+	    }
+	});
+	metrics.put(prefix + ".MaxMillis", new Metric(Double.class) {
+	    Object getValue() {
+		return toMillis(latency.max.get());
+	    }
+	});
+	metrics.put(prefix + ".P50Millis", new Metric(Long.class) {
+	    Object getValue() {
+		return latency.getPercentileMillis(0.5);
+	    }
+	});
+	metrics.put(prefix + ".P99Millis", new Metric(Long.class) {
+	    Object getValue() {
+		return latency.getPercentileMillis(0.99);
+	    }
+	});
+	return latency;
+    }
+
+    private AtomicLong addCounter(String name) {
+	return addCounter(name, new AtomicLong());
+    }
+
+    private AtomicLong addCounter(String name, final AtomicLong counter) {
+	metrics.put(name, new Metric(Long.class) {
+	    Object getValue() {
+		return counter.get();
+	    }
+	});
+	return counter;
+    }
+
+    private static double toMillis(long nanos) {
+	return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private abstract static class Metric {
+	private final Class<?> type;
+
+	Metric(Class<?> type) {
+	    this.type = type;
+	}
+
+	String getType() {
+	    return type.getName();
+	}
+
+	abstract Object getValue();
+    }
+
+    /**
+     * A histogram of durations, with buckets bounded by
+     * <tt>BOUNDS_MILLIS</tt> and a final unbounded bucket.
+     */
+    private static final class Latency {
+	private final AtomicLongArray buckets = new AtomicLongArray(
+		BOUNDS_MILLIS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos) {
+	    if (nanos < 0) {
+		return;
+	    }
+	    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+	    int i = 0;
+	    while (i < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[i]) {
+		i++;
+	    }
+	    buckets.incrementAndGet(i);
+	    count.incrementAndGet();
+	    total.addAndGet(nanos);
+	    long current;
+	    do {
+		current = max.get();
+	    } while (nanos > current && !max.compareAndSet(current, nanos));
+	}
+
+	double getMeanMillis() {
+	    long n = count.get();
+	    if (n == 0) {
+		return 0;
+	    }
+	    return toMillis(total.get()) / n;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the given percentile,
+	 * or <tt>-1</tt> if it lies in the unbounded bucket.
+	 */
+	long getPercentileMillis(double percentile) {
+	    long n = 0;
+	    for (int i = 0; i < buckets.length(); i++) {
+		n += buckets.get(i);
+	    }
+	    if (n == 0) {
+		return 0;
+	    }
+	    long rank = (long) Math.ceil(n * percentile);
+	    long seen = 0;
+	    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+		seen += buckets.get(i);
+		if (seen >= rank) {
+		    return BOUNDS_MILLIS[i];
+		}
+	    }
+	    return -1;
+	}
+    }
+}
@@ -0,0 +1,82 @@
+package org.jscep.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class fails a read which would take more than a fixed number of bytes
+ * from the underlying stream.
+ */
+final class SizeLimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+    private long mark;
+
+    SizeLimitedInputStream(InputStream in, long limit) {
+	super(in);
+	this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+	int b = super.read();
+	if (b != -1) {
+	    count(1);
+	}
+	return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+	int n = super.read(b, off, len);
+	if (n > 0) {
+	    count(n);
+	}
+	return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+	long skipped = super.skip(n);
+	count(skipped);
+	return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+	super.mark(readlimit);
+	mark = count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+	super.reset();
+	count = mark;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    long getCount() {
+	return count;
+    }
+
+    private void count(long n) throws SizeLimitExceededException {
+	count += n;
+	if (count > limit) {
+	    throw new SizeLimitExceededException(limit);
+	}
+    }
+
+    /**
+     * Thrown when a message is larger than the servlet accepts.
+     */
+    static final class SizeLimitExceededException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	SizeLimitExceededException(long limit) {
+	    super("Message exceeds " + limit + " bytes");
+	}
+    }
+}
@@ -3,7 +3,10 @@ package org.jscep.transaction;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
 
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
@@ -19,7 +22,7 @@ import org.jscep.message.PkiMessageEncoder;
 import org.jscep.message.PkiRequest;
 import org.jscep.transport.Transport;
 import org.jscep.transport.request.PkiOperationRequest;
-import org.jscep.transport.response.PkiOperationResponseHandler;
+import org.jscep.transport.response.PkiOperationStreamResponseHandler;
 import org.jscep.util.CertificationRequestUtils;
 import org.slf4j.Logger;
 
@@ -31,9 +34,11 @@ import org.slf4j.Logger;
  */
 public class EnrollmentTransaction extends Transaction {
     private static final Logger LOGGER = getLogger(EnrollmentTransaction.class);
-    private static final NonceQueue QUEUE = new NonceQueue();
+    private static final NonceQueue DEFAULT_QUEUE = new NonceQueue();
     private final TransactionId transId;
     private final PkiRequest<?> request;
+    private NonceQueue nonceQueue = DEFAULT_QUEUE;
+    private int retryAfter;
 
     /**
      * Constructs a new transaction for enrollment request.
@@ -87,6 +92,19 @@ public class EnrollmentTransaction extends Transaction {
 	this.request = new GetCertInitial(transId, Nonce.nextNonce(), ias);
     }
 
+    /**
+     * Sets the queue used to detect replayed response nonces.
+     * <p>
+     * Unless this method is called, a queue shared by all transactions is
+     * used.
+     * 
+     * @param nonceQueue
+     *            the queue to use.
+     */
+    public void setNonceQueue(NonceQueue nonceQueue) {
+	this.nonceQueue = nonceQueue;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -95,6 +113,17 @@ public class EnrollmentTransaction extends Transaction {
 	return transId;
     }
 
+    /**
+     * Returns the number of seconds the server asked the client to wait
+     * before polling a pending transaction.
+     * 
+     * @return the number of seconds, or <tt>0</tt> if the server sent no
+     *         hint.
+     */
+    public int getRetryAfter() {
+	return retryAfter;
+    }
+
     /**
      * Sends the request to the SCEP server and processes the response..
      * 
@@ -111,13 +140,13 @@ public class EnrollmentTransaction extends Transaction {
 	    throw new TransactionException(e);
 	}
 	LOGGER.debug("Sending {}", signedData);
-	PkiOperationResponseHandler handler = new PkiOperationResponseHandler();
-	CMSSignedData res = send(handler, new PkiOperationRequest(signedData));
-	LOGGER.debug("Received response {}", res);
+	PkiOperationStreamResponseHandler handler = new PkiOperationStreamResponseHandler();
+	InputStream res = send(handler, new PkiOperationRequest(signedData));
 
+	Collection<Object> certsAndCrls = new ArrayList<Object>();
 	CertRep response;
 	try {
-	    response = (CertRep) decode(res);
+	    response = decode(res, certsAndCrls);
 	} catch (MessageDecodingException e) {
 	    throw new TransactionException(e);
 	}
@@ -128,8 +157,9 @@ public class EnrollmentTransaction extends Transaction {
 	if (response.getPkiStatus() == PkiStatus.FAILURE) {
 	    return failure(response.getFailInfo());
 	} else if (response.getPkiStatus() == PkiStatus.SUCCESS) {
-	    return success(extractCertStore(response));
+	    return success(certsAndCrls);
 	} else {
+	    retryAfter = handler.getRetryAfter();
 	    return pending();
 	}
     }
@@ -159,10 +189,9 @@ public class EnrollmentTransaction extends Transaction {
 
 	// http://tools.ietf.org/html/draft-nourse-scep-20#section-8.5
 	// Check that the nonce has not been encountered before.
-	if (QUEUE.contains(res.getSenderNonce())) {
+	if (!nonceQueue.addIfAbsent(res.getSenderNonce())) {
 	    throw new InvalidNonceException(res.getSenderNonce());
 	} else {
-	    QUEUE.add(res.getSenderNonce());
 	    LOGGER.debug("{} has not been encountered before",
 		    res.getSenderNonce());
 	}
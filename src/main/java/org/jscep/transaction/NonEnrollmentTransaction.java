@@ -1,5 +1,9 @@
 package org.jscep.transaction;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
 import org.bouncycastle.cms.CMSSignedData;
@@ -13,7 +17,7 @@ import org.jscep.message.PkiMessageEncoder;
 import org.jscep.message.PkiRequest;
 import org.jscep.transport.Transport;
 import org.jscep.transport.request.PkiOperationRequest;
-import org.jscep.transport.response.PkiOperationResponseHandler;
+import org.jscep.transport.response.PkiOperationStreamResponseHandler;
 
 /**
  * This class represents a SCEP non-enrollment <tt>Transaction</tt>
@@ -77,7 +81,7 @@ public final class NonEnrollmentTransaction extends Transaction {
      */
     @Override
     public final State send() throws TransactionException {
-	final PkiOperationResponseHandler handler = new PkiOperationResponseHandler();
+	final PkiOperationStreamResponseHandler handler = new PkiOperationStreamResponseHandler();
 	CMSSignedData signedData;
 	try {
 	    signedData = encode(request);
@@ -85,10 +89,11 @@ public final class NonEnrollmentTransaction extends Transaction {
 	    throw new TransactionException(e);
 	}
 
-	CMSSignedData res = send(handler, new PkiOperationRequest(signedData));
+	InputStream res = send(handler, new PkiOperationRequest(signedData));
+	Collection<Object> certsAndCrls = new ArrayList<Object>();
 	CertRep response;
 	try {
-	    response = (CertRep) decode(res);
+	    response = decode(res, certsAndCrls);
 	} catch (MessageDecodingException e) {
 	    throw new TransactionException(e);
 	}
@@ -96,7 +101,7 @@ public final class NonEnrollmentTransaction extends Transaction {
 	if (response.getPkiStatus() == PkiStatus.FAILURE) {
 	    return failure(response.getFailInfo());
 	} else if (response.getPkiStatus() == PkiStatus.SUCCESS) {
-	    return success(extractCertStore(response));
+	    return success(certsAndCrls);
 	} else {
 	    throw new TransactionException("Invalid Response");
 	}
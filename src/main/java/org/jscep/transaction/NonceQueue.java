@@ -1,43 +1,184 @@
 package org.jscep.transaction;
 
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
 
 /**
  * This class provides support for detecting replay attacks.
+ * <p>
+ * A queue remembers at most <tt>capacity</tt> nonces, each for no longer than
+ * the configured time window. Nonces are held as pairs of <tt>long</tt>s in
+ * ring buffers allocated up front, so the memory used never grows.
+ * <p>
+ * The queue is split into independently locked stripes, chosen by the nonce
+ * value, so concurrent transactions rarely contend. Each stripe evicts its own
+ * oldest nonce when full; since nonces are random, the stripes fill evenly.
  */
+@ThreadSafe
 public final class NonceQueue {
-    private static final int DEFAULT_QUEUE_SIZE = 20;
-    private final Map<Nonce, Boolean> backingQueue;
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final long DEFAULT_WINDOW_MINUTES = 10;
+    private static final int MAX_STRIPES = 64;
+    private static final int NONCE_LENGTH = 16;
+    private final Stripe[] stripes;
+    private final long windowNanos;
 
     /**
-     * Creates a new <tt>NonceQueue</tt> of the specified default size.
-     * 
-     * @param size
-     *            the size of the queue.
+     * Creates a new <tt>NonceQueue</tt> which remembers up to 4096 nonces for
+     * ten minutes.
      */
     public NonceQueue() {
-	this.backingQueue = new WeakHashMap<Nonce, Boolean>(DEFAULT_QUEUE_SIZE);
+	this(DEFAULT_CAPACITY, DEFAULT_WINDOW_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Creates a new <tt>NonceQueue</tt> with the given capacity and time
+     * window.
+     *
+     * @param capacity
+     *            the maximum number of nonces to remember.
+     * @param window
+     *            how long to remember each nonce.
+     * @param unit
+     *            the unit of the <tt>window</tt> argument.
+     * @throws IllegalArgumentException
+     *             if the capacity or window is not positive.
+     */
+    public NonceQueue(int capacity, long window, TimeUnit unit) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive");
+	}
+	if (window <= 0) {
+	    throw new IllegalArgumentException("Window must be positive");
+	}
+	int stripeCount = 1;
+	while (stripeCount < MAX_STRIPES && stripeCount * 2 <= capacity / 16) {
+	    stripeCount *= 2;
+	}
+	this.stripes = new Stripe[stripeCount];
+	for (int i = 0; i < stripeCount; i++) {
+	    int slots = capacity / stripeCount
+		    + (i < capacity % stripeCount ? 1 : 0);
+	    stripes[i] = new Stripe(slots);
+	}
+	this.windowNanos = unit.toNanos(window);
     }
 
     /**
      * Inserts the specified <tt>Nonce</tt> into this queue.
-     * 
+     *
      * @param nonce
      *            the nonce to add.
      */
-    public synchronized void add(final Nonce nonce) {
-	backingQueue.put(nonce, Boolean.FALSE);
+    public void add(final Nonce nonce) {
+	addIfAbsent(nonce);
     }
 
     /**
      * Checks the queue for the given <tt>Nonce</tt>.
-     * 
+     *
      * @param nonce
      *            the <tt>Nonce</tt> to check for.
-     * @return <tt>true</tt> if the <tt>Nonce</tt> is present, <tt>false</tt> otherwise.
+     * @return <tt>true</tt> if the <tt>Nonce</tt> is present, <tt>false</tt>
+     *         otherwise.
+     */
+    public boolean contains(final Nonce nonce) {
+	long[] key = toKey(nonce);
+	return stripeFor(key).contains(key[0], key[1], System.nanoTime());
+    }
+
+    /**
+     * Inserts the given <tt>Nonce</tt> into this queue unless it is already
+     * present.
+     * <p>
+     * The check and insertion are atomic, so of several threads presenting
+     * the same nonce, exactly one will succeed.
+     *
+     * @param nonce
+     *            the nonce to add.
+     * @return <tt>true</tt> if the <tt>Nonce</tt> was added, or
+     *         <tt>false</tt> if it has been seen before.
      */
-    public synchronized boolean contains(final Nonce nonce) {
-	return backingQueue.containsKey(nonce);
+    public boolean addIfAbsent(final Nonce nonce) {
+	long[] key = toKey(nonce);
+	return stripeFor(key).addIfAbsent(key[0], key[1], System.nanoTime());
+    }
+
+    private Stripe stripeFor(long[] key) {
+	long mix = key[0] ^ key[1];
+	int hash = (int) (mix ^ (mix >>> 32));
+	return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * Reduces the nonce to 128 bits: 16-byte nonces are used as they are,
+     * while nonces of any other length are digested.
+     */
+    private static long[] toKey(Nonce nonce) {
+	byte[] bytes = nonce.getBytes();
+	if (bytes.length != NONCE_LENGTH) {
+	    try {
+		bytes = MessageDigest.getInstance("MD5").digest(bytes);
+	    } catch (NoSuchAlgorithmException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+	return new long[] { toLong(bytes, 0), toLong(bytes, 8) };
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+	long value = 0;
+	for (int i = offset; i < offset + 8; i++) {
+	    value = (value << 8) | (bytes[i] & 0xFF);
+	}
+	return value;
+    }
+
+    /**
+     * A ring buffer of nonces and the times they were added.
+     */
+    private final class Stripe {
+	private final long[] high;
+	private final long[] low;
+	private final long[] added;
+	private int size;
+	private int next;
+
+	Stripe(int slots) {
+	    this.high = new long[slots];
+	    this.low = new long[slots];
+	    this.added = new long[slots];
+	}
+
+	synchronized boolean contains(long hi, long lo, long now) {
+	    return indexOf(hi, lo, now) >= 0;
+	}
+
+	synchronized boolean addIfAbsent(long hi, long lo, long now) {
+	    if (indexOf(hi, lo, now) >= 0) {
+		return false;
+	    }
+	    high[next] = hi;
+	    low[next] = lo;
+	    added[next] = now;
+	    next = (next + 1) % high.length;
+	    if (size < high.length) {
+		size++;
+	    }
+	    return true;
+	}
+
+	private int indexOf(long hi, long lo, long now) {
+	    for (int i = 0; i < size; i++) {
+		if (high[i] == hi && low[i] == lo
+			&& now - added[i] < windowNanos) {
+		    return i;
+		}
+	    }
+	    return -1;
+	}
     }
 }
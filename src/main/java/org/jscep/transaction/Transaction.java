@@ -1,6 +1,10 @@
 package org.jscep.transaction;
 
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.util.Collection;
 
 import org.bouncycastle.cms.CMSSignedData;
 import org.jscep.message.CertRep;
@@ -12,8 +16,7 @@ import org.jscep.message.PkiMessageEncoder;
 import org.jscep.transport.Transport;
 import org.jscep.transport.TransportException;
 import org.jscep.transport.request.Request;
-import org.jscep.transport.response.PkiOperationResponseHandler;
-import org.jscep.util.SignedDataUtils;
+import org.jscep.transport.response.ScepResponseHandler;
 
 /**
  * This class represents an abstract SCEP transaction.
@@ -92,8 +95,8 @@ public abstract class Transaction {
      */
     public abstract TransactionId getId();
 
-    CMSSignedData send(final PkiOperationResponseHandler handler,
-	    final Request req) throws TransactionException {
+    <T> T send(final ScepResponseHandler<T> handler, final Request req)
+	    throws TransactionException {
 	try {
 	    return transport.sendRequest(req, handler);
 	} catch (TransportException e) {
@@ -101,9 +104,9 @@ public abstract class Transaction {
 	}
     }
 
-    PkiMessage<?> decode(CMSSignedData res)
+    CertRep decode(InputStream res, Collection<Object> certsAndCrls)
 	    throws MessageDecodingException {
-	return decoder.decode(res);
+	return decoder.decode(res, certsAndCrls);
     }
 
     CMSSignedData encode(final PkiMessage<?> message)
@@ -130,10 +133,13 @@ public abstract class Transaction {
 	return state;
     }
 
-    CertStore extractCertStore(CertRep response) {
-	CMSSignedData signedData = response.getMessageData();
-
-	return SignedDataUtils.fromSignedData(signedData);
+    State success(Collection<Object> certsAndCrls) {
+	try {
+	    return success(CertStore.getInstance("Collection",
+		    new CollectionCertStoreParameters(certsAndCrls)));
+	} catch (GeneralSecurityException e) {
+	    throw new RuntimeException(e);
+	}
     }
 
     /**
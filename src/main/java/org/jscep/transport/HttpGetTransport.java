@@ -71,6 +71,7 @@ public final class HttpGetTransport extends Transport {
 	    throw new TransportException("Error reading response stream", e);
 	}
 
+	setRetryAfter(handler, conn.getHeaderField("Retry-After"));
 	return handler.getResponse(response, conn.getContentType());
     }
 
@@ -103,6 +103,7 @@ public final class HttpPostTransport extends Transport {
 			throw new TransportException("Error reading response stream", e);
 		}
 
+		setRetryAfter(handler, conn.getHeaderField("Retry-After"));
 		return handler.getResponse(response, conn.getContentType());
 	}
 }
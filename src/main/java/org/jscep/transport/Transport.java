@@ -5,6 +5,7 @@ import java.net.URL;
 
 import org.jscep.transport.request.Operation;
 import org.jscep.transport.request.Request;
+import org.jscep.transport.response.RetryAfterHandler;
 import org.jscep.transport.response.ScepResponseHandler;
 
 /**
@@ -63,6 +64,30 @@ public abstract class Transport {
 	}
     }
 
+    /**
+     * Passes the value of a <tt>Retry-After</tt> header to the handler, if it
+     * accepts one. Only a number of seconds is understood; an HTTP date is
+     * ignored.
+     * 
+     * @param handler
+     *            the handler used to parse the response.
+     * @param value
+     *            the header value, which may be <tt>null</tt>.
+     */
+    static void setRetryAfter(ScepResponseHandler<?> handler, String value) {
+	if (value == null || !(handler instanceof RetryAfterHandler)) {
+	    return;
+	}
+	try {
+	    int seconds = Integer.parseInt(value.trim());
+	    if (seconds > 0) {
+		((RetryAfterHandler) handler).setRetryAfter(seconds);
+	    }
+	} catch (NumberFormatException e) {
+	    // Not a delay in seconds
+	}
+    }
+
     /**
      * Converts the given object varargs to an object array.
      * 
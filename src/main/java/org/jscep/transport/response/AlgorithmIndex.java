@@ -0,0 +1,87 @@
+package org.jscep.transport.response;
+
+import java.security.Provider;
+import java.security.Provider.Service;
+import java.security.Security;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * This class is an index of the algorithms offered by the installed JCA
+ * providers.
+ * <p>
+ * Building the index walks every service of every provider, so a single index
+ * is shared until the installed providers change. A change is detected by
+ * comparing the provider list, and the number of entries in each provider,
+ * with those the index was built from.
+ */
+@Immutable
+final class AlgorithmIndex {
+	private static volatile AlgorithmIndex current = new AlgorithmIndex(
+			new Provider[0]);
+	private final Provider[] providers;
+	private final int[] sizes;
+	private final Set<String> algorithms;
+
+	private AlgorithmIndex(Provider[] providers) {
+		this.providers = providers;
+		this.sizes = new int[providers.length];
+		this.algorithms = new HashSet<String>();
+		for (int i = 0; i < providers.length; i++) {
+			sizes[i] = providers[i].size();
+			for (Service service : providers[i].getServices()) {
+				algorithms.add(key(service.getType(), service.getAlgorithm()));
+			}
+		}
+	}
+
+	/**
+	 * Returns the index for the currently installed providers.
+	 *
+	 * @return the current index.
+	 */
+	static AlgorithmIndex getInstance() {
+		Provider[] installed = Security.getProviders();
+		AlgorithmIndex index = current;
+		if (!index.isBuiltFrom(installed)) {
+			index = new AlgorithmIndex(installed);
+			current = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if any provider offers the algorithm for the given
+	 * service type, <tt>false</tt> otherwise.
+	 * <p>
+	 * Only the standard algorithm names are indexed, not their aliases.
+	 *
+	 * @param serviceType
+	 *            the service type, e.g. <tt>Cipher</tt>.
+	 * @param algorithm
+	 *            the algorithm name.
+	 * @return <tt>true</tt> if the algorithm is offered.
+	 */
+	boolean contains(String serviceType, String algorithm) {
+		return algorithms.contains(key(serviceType, algorithm));
+	}
+
+	private boolean isBuiltFrom(Provider[] installed) {
+		if (installed.length != providers.length) {
+			return false;
+		}
+		for (int i = 0; i < installed.length; i++) {
+			if (installed[i] != providers[i]
+					|| installed[i].size() != sizes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String key(String serviceType, String algorithm) {
+		return serviceType + '.' + algorithm;
+	}
+}
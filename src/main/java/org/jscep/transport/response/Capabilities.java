@@ -2,20 +2,27 @@ package org.jscep.transport.response;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.Provider;
-import java.security.Provider.Service;
-import java.security.Security;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.jscep.util.SignatureUtils;
 
 /**
  * This class represents a set of capabilities for a particular SCEP server.
+ * <p>
+ * The capabilities themselves are immutable. The strongest algorithms are
+ * worked out once per instance, and again only if the installed JCA providers
+ * change.
  */
-@Immutable
+@ThreadSafe
 public final class Capabilities {
+	private static final String NONE = "";
 	private final EnumSet<Capability> caps;
+	private volatile Answers answers;
 
 	/**
 	 * Constructs a new instance of this class with the specified capabilities.
@@ -78,6 +85,7 @@ public final class Capabilities {
 	 * <p/>
 	 * The algorithms are ordered thus:
 	 * <ol>
+	 * <li>AES (128-bit key)</li>
 	 * <li>DESede ("Triple DES")</li>
 	 * <li>DES</li>
 	 * </ol>
@@ -86,8 +94,15 @@ public final class Capabilities {
 	 *         client.
 	 */
 	public String getStrongestCipher() {
+		return getAnswers().cipher;
+	}
+
+	private String findStrongestCipher(AlgorithmIndex index) {
 		final String cipher;
-		if (cipherExists("DESede") && caps.contains(Capability.TRIPLE_DES)) {
+		if (cipherExists(index, "AES") && caps.contains(Capability.AES)) {
+			cipher = "AES";
+		} else if (cipherExists(index, "DESede")
+				&& caps.contains(Capability.TRIPLE_DES)) {
 			cipher = "DESede";
 		} else {
 			cipher = "DES";
@@ -96,21 +111,8 @@ public final class Capabilities {
 		return cipher;
 	}
 
-	private boolean cipherExists(String algorithm) {
-		return algorithmExists("Cipher", algorithm);
-	}
-
-	private boolean algorithmExists(String serviceType, String algorithm) {
-		for (Provider provider : Security.getProviders()) {
-			for (Service service : provider.getServices()) {
-				if (service.getType().equals(serviceType)
-						&& service.getAlgorithm().equals(algorithm)) {
-					return true;
-				}
-			}
-		}
-
-		return false;
+	private boolean cipherExists(AlgorithmIndex index, String algorithm) {
+		return index.contains("Cipher", algorithm);
 	}
 
 	/**
@@ -130,38 +132,119 @@ public final class Capabilities {
 	 *         and client.
 	 */
 	public MessageDigest getStrongestMessageDigest() {
-		if (digestExists("SHA-512") && caps.contains(Capability.SHA_512)) {
-			return getDigest("SHA-512");
-		} else if (digestExists("SHA-256") && caps.contains(Capability.SHA_256)) {
-			return getDigest("SHA-256");
-		} else if (digestExists("SHA-1") && caps.contains(Capability.SHA_1)) {
-			return getDigest("SHA-1");
-		} else if (digestExists("MD5")) {
-			return getDigest("MD5");
+		String digest = getAnswers().digest;
+		if (digest == null) {
+			return null;
+		}
+		return getDigest(digest);
+	}
+
+	private String findStrongestMessageDigest(AlgorithmIndex index) {
+		if (digestExists(index, "SHA-512")
+				&& caps.contains(Capability.SHA_512)) {
+			return "SHA-512";
+		} else if (digestExists(index, "SHA-256")
+				&& caps.contains(Capability.SHA_256)) {
+			return "SHA-256";
+		} else if (digestExists(index, "SHA-1")
+				&& caps.contains(Capability.SHA_1)) {
+			return "SHA-1";
+		} else if (digestExists(index, "MD5")) {
+			return "MD5";
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the strongest RSA signature algorithm supported by the server
+	 * and client.
+	 * 
+	 * @return the strongest RSA signature algorithm supported by the server
+	 *         and client.
+	 * @see #getStrongestSignatureAlgorithm(String)
+	 */
 	public String getStrongestSignatureAlgorithm() {
-		if (sigExists("SHA512") && caps.contains(Capability.SHA_512)) {
-			return "SHA512withRSA";
-		} else if (sigExists("SHA256") && caps.contains(Capability.SHA_256)) {
-			return "SHA256withRSA";
-		} else if (sigExists("SHA1") && caps.contains(Capability.SHA_1)) {
-			return "SHA1withRSA";
-		} else if (sigExists("MD5")) {
-			return "MD5withRSA";
+		return getStrongestSignatureAlgorithm("RSA");
+	}
+
+	/**
+	 * Returns the strongest signature algorithm supported by the server and
+	 * client for a key of the provided algorithm.
+	 * <p/>
+	 * The digests are ordered thus:
+	 * <ol>
+	 * <li>SHA-512</li>
+	 * <li>SHA-256</li>
+	 * <li>SHA-1</li>
+	 * <li>MD5 (RSA only)</li>
+	 * </ol>
+	 * If none of the above algorithms are supported, this method returns null.
+	 * 
+	 * @param keyAlgorithm
+	 *            the algorithm of the signing key, e.g. <tt>RSA</tt> or
+	 *            <tt>EC</tt>.
+	 * @return the strongest signature algorithm supported by the server and
+	 *         client.
+	 */
+	public String getStrongestSignatureAlgorithm(String keyAlgorithm) {
+		Answers current = getAnswers();
+		String sigAlg = current.signatureAlgorithms.get(keyAlgorithm);
+		if (sigAlg == null) {
+			sigAlg = findStrongestSignatureAlgorithm(current.index,
+					keyAlgorithm);
+			if (sigAlg == null) {
+				sigAlg = NONE;
+			}
+			current.signatureAlgorithms.put(keyAlgorithm, sigAlg);
+		}
+		if (sigAlg == NONE) {
+			return null;
+		}
+		return sigAlg;
+	}
+
+	private String findStrongestSignatureAlgorithm(AlgorithmIndex index,
+			String keyAlgorithm) {
+		String keyAlg = SignatureUtils.getSignatureKeyAlgorithm(keyAlgorithm);
+		if (sigExists(index, "SHA512", "SHA-512", keyAlg)
+				&& caps.contains(Capability.SHA_512)) {
+			return "SHA512with" + keyAlg;
+		} else if (sigExists(index, "SHA256", "SHA-256", keyAlg)
+				&& caps.contains(Capability.SHA_256)) {
+			return "SHA256with" + keyAlg;
+		} else if (sigExists(index, "SHA1", "SHA-1", keyAlg)
+				&& caps.contains(Capability.SHA_1)) {
+			return "SHA1with" + keyAlg;
+		} else if (sigExists(index, "MD5", "MD5", keyAlg)) {
+			return "MD5with" + keyAlg;
 		}
 		return null;
 	}
 
-	private boolean sigExists(String sig) {
-		return algorithmExists("Signature", sig + "withRSA")
-				&& digestExists(sig);
+	/**
+	 * Checks for the signature algorithm, named after the digest as in
+	 * <tt>SHA512withRSA</tt>, and for the digest under its standard name,
+	 * such as <tt>SHA-512</tt>.
+	 */
+	private boolean sigExists(AlgorithmIndex index, String sig, String digest,
+			String keyAlg) {
+		return index.contains("Signature", sig + "with" + keyAlg)
+				&& digestExists(index, digest);
+	}
+
+	private boolean digestExists(AlgorithmIndex index, String digest) {
+		return index.contains("MessageDigest", digest);
 	}
 
-	private boolean digestExists(String digest) {
-		return algorithmExists("MessageDigest", digest);
+	private Answers getAnswers() {
+		AlgorithmIndex index = AlgorithmIndex.getInstance();
+		Answers current = answers;
+		if (current == null || current.index != index) {
+			current = new Answers(index, findStrongestCipher(index),
+					findStrongestMessageDigest(index));
+			answers = current;
+		}
+		return current;
 	}
 
 	private MessageDigest getDigest(String algorithm) {
@@ -179,4 +262,20 @@ public final class Capabilities {
 	public String toString() {
 		return caps.toString();
 	}
+
+	/**
+	 * The strongest algorithms, as worked out from a particular index.
+	 */
+	private static final class Answers {
+		private final AlgorithmIndex index;
+		private final String cipher;
+		private final String digest;
+		private final ConcurrentMap<String, String> signatureAlgorithms = new ConcurrentHashMap<String, String>();
+
+		Answers(AlgorithmIndex index, String cipher, String digest) {
+			this.index = index;
+			this.cipher = cipher;
+			this.digest = digest;
+		}
+	}
 }
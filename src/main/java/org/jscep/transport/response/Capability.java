@@ -62,7 +62,11 @@ public enum Capability {
     /**
      * CA Supports triple-DES for encryption.
      */
-    TRIPLE_DES("DES3", "Triple DES Encryption");
+    TRIPLE_DES("DES3", "Triple DES Encryption"),
+    /**
+     * CA Supports AES for encryption.
+     */
+    AES("AES", "AES Encryption");
 
     /**
      * Member variable to hold the name of the capability as defined in the SCEP
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2009-2012 David Grant
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport.response;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * This class handles responses to <tt>PKCSReq</tt>, <tt>GetCertInitial</tt>,
+ * <tt>GetCert</tt> and <tt>GetCRL</tt> requests without parsing them.
+ * <p>
+ * Unlike {@link PkiOperationResponseHandler}, this handler leaves the
+ * <tt>signedData</tt> to be parsed as a stream by the
+ * {@link org.jscep.message.PkiMessageDecoder}.
+ * 
+ * @author David Grant
+ */
+public final class PkiOperationStreamResponseHandler implements
+	ScepResponseHandler<InputStream>, RetryAfterHandler {
+    private static final String PKI_MESSAGE = "application/x-pki-message";
+    private volatile int retryAfter;
+
+    /**
+     * {@inheritDoc}
+     */
+    public InputStream getResponse(byte[] content, String mimeType)
+	    throws ContentException {
+	if (mimeType.startsWith(PKI_MESSAGE)) {
+	    return new ByteArrayInputStream(content);
+	} else {
+	    throw new InvalidContentTypeException(mimeType, PKI_MESSAGE);
+	}
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setRetryAfter(int seconds) {
+	this.retryAfter = seconds;
+    }
+
+    /**
+     * Returns the number of seconds the server asked the client to wait
+     * before polling again.
+     * 
+     * @return the number of seconds, or <tt>0</tt> if the server sent no
+     *         hint.
+     */
+    public int getRetryAfter() {
+	return retryAfter;
+    }
+}
@@ -0,0 +1,16 @@
+package org.jscep.transport.response;
+
+/**
+ * This interface is implemented by handlers which accept the
+ * <tt>Retry-After</tt> hint sent by a SCEP server with a pending response.
+ */
+public interface RetryAfterHandler {
+    /**
+     * Sets the number of seconds the server asked the client to wait before
+     * polling again.
+     * 
+     * @param seconds
+     *            the number of seconds.
+     */
+    void setRetryAfter(int seconds);
+}
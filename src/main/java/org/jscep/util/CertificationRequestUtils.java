@@ -1,16 +1,18 @@
 package org.jscep.util;
 
+import static org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers.rsaEncryption;
+import static org.bouncycastle.asn1.x9.X9ObjectIdentifiers.id_ecPublicKey;
+
 import java.io.IOException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
-import org.bouncycastle.crypto.params.RSAKeyParameters;
-import org.bouncycastle.crypto.util.PublicKeyFactory;
 import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 
 /**
@@ -24,14 +26,15 @@ public class CertificationRequestUtils {
 	/**
 	 * Extracts the <tt>PublicKey</tt> from the provided CSR.
 	 * <p>
-	 * This method will throw a {@link RuntimeException} if the JRE is missing
-	 * the RSA algorithm, which is a required algorithm as defined by the JCA.
+	 * RSA and elliptic curve keys are supported. This method will throw a
+	 * {@link RuntimeException} if the JRE is missing the corresponding
+	 * <tt>KeyFactory</tt>.
 	 * 
 	 * @param csr
 	 *            the CSR to extract from.
 	 * @return the extracted <tt>PublicKey</tt>
 	 * @throws InvalidKeySpecException
-	 *             if the CSR is not using an RSA key.
+	 *             if the CSR is not using an RSA or elliptic curve key.
 	 * @throws IOException
 	 *             if there is an error extracting the <tt>PublicKey</tt>
 	 *             parameters.
@@ -39,14 +42,22 @@ public class CertificationRequestUtils {
 	public static PublicKey getPublicKey(PKCS10CertificationRequest csr)
 			throws InvalidKeySpecException, IOException {
 		SubjectPublicKeyInfo pubKeyInfo = csr.getSubjectPublicKeyInfo();
-		RSAKeyParameters keyParams = (RSAKeyParameters) PublicKeyFactory
-				.createKey(pubKeyInfo);
-		KeySpec keySpec = new RSAPublicKeySpec(keyParams.getModulus(),
-				keyParams.getExponent());
+		ASN1ObjectIdentifier keyAlgorithm = pubKeyInfo.getAlgorithm()
+				.getAlgorithm();
+		String algorithm;
+		if (rsaEncryption.equals(keyAlgorithm)) {
+			algorithm = "RSA";
+		} else if (id_ecPublicKey.equals(keyAlgorithm)) {
+			algorithm = "EC";
+		} else {
+			throw new InvalidKeySpecException("Unsupported key algorithm: "
+					+ keyAlgorithm);
+		}
+		KeySpec keySpec = new X509EncodedKeySpec(pubKeyInfo.getEncoded());
 
 		KeyFactory kf;
 		try {
-			kf = KeyFactory.getInstance("RSA");
+			kf = KeyFactory.getInstance(algorithm);
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,172 @@
+package org.jscep.util;
+
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * This is a utility class for choosing signature algorithms to suit the keys
+ * used by SCEP entities, and for calculating the digests they sign.
+ * <p>
+ * Both RSA and elliptic curve (ECDSA) keys are supported.
+ */
+public final class SignatureUtils {
+	private static final Map<ASN1ObjectIdentifier, String> DIGESTS = new HashMap<ASN1ObjectIdentifier, String>();
+	static {
+		DIGESTS.put(PKCSObjectIdentifiers.md5, "MD5");
+		DIGESTS.put(OIWObjectIdentifiers.idSHA1, "SHA-1");
+		DIGESTS.put(NISTObjectIdentifiers.id_sha224, "SHA-224");
+		DIGESTS.put(NISTObjectIdentifiers.id_sha256, "SHA-256");
+		DIGESTS.put(NISTObjectIdentifiers.id_sha384, "SHA-384");
+		DIGESTS.put(NISTObjectIdentifiers.id_sha512, "SHA-512");
+	}
+	private static final DigestCalculatorProvider DIGEST_PROVIDER = new DigestCalculatorProvider() {
+		public DigestCalculator get(final AlgorithmIdentifier digestAlgorithm)
+				throws OperatorCreationException {
+			String name = DIGESTS.get(digestAlgorithm.getAlgorithm());
+			if (name == null) {
+				return new JcaDigestCalculatorProviderBuilder().build().get(
+						digestAlgorithm);
+			}
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance(name);
+			} catch (NoSuchAlgorithmException e) {
+				throw new OperatorCreationException(name
+						+ " MessageDigest not available", e);
+			}
+			final OutputStream out = new DigestOutputStream(
+					NullOutputStream.NULL_OUTPUT_STREAM, digest);
+
+			return new DigestCalculator() {
+				public AlgorithmIdentifier getAlgorithmIdentifier() {
+					return digestAlgorithm;
+				}
+
+				public OutputStream getOutputStream() {
+					return out;
+				}
+
+				public byte[] getDigest() {
+					return digest.digest();
+				}
+			};
+		}
+	};
+
+	private SignatureUtils() {
+	}
+
+	/**
+	 * Returns a <tt>DigestCalculatorProvider</tt> for signing and verifying
+	 * <tt>signedData</tt>.
+	 * <p>
+	 * The SHA-2 digests are looked up using their standard JCA names, so that
+	 * signatures such as <tt>SHA256withECDSA</tt> can be created and verified
+	 * using the providers shipped with the JRE.
+	 *
+	 * @return the digest calculator provider.
+	 */
+	public static DigestCalculatorProvider getDigestCalculatorProvider() {
+		return DIGEST_PROVIDER;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if the provided key is an elliptic curve key,
+	 * <tt>false</tt> otherwise.
+	 *
+	 * @param key
+	 *            the key to test.
+	 * @return <tt>true</tt> if the key is an elliptic curve key.
+	 */
+	public static boolean isEllipticCurve(Key key) {
+		return isEllipticCurve(key.getAlgorithm());
+	}
+
+	/**
+	 * Returns the name used for the provided key algorithm in JCA signature
+	 * algorithm names, for example <tt>ECDSA</tt> for an <tt>EC</tt> key.
+	 *
+	 * @param keyAlgorithm
+	 *            the key algorithm, as returned by {@link Key#getAlgorithm()}.
+	 * @return the signature key algorithm name.
+	 */
+	public static String getSignatureKeyAlgorithm(String keyAlgorithm) {
+		if (isEllipticCurve(keyAlgorithm)) {
+			return "ECDSA";
+		}
+		return keyAlgorithm;
+	}
+
+	/**
+	 * Returns the default signature algorithm for the provided key.
+	 * <p>
+	 * RSA keys use <tt>SHA1withRSA</tt>, which every SCEP server is able to
+	 * verify. Elliptic curve keys use ECDSA with a digest matched to the size
+	 * of the curve: SHA-256 for P-256, SHA-384 for P-384 and SHA-512 for
+	 * larger curves.
+	 *
+	 * @param key
+	 *            the signing key.
+	 * @return the default signature algorithm.
+	 */
+	public static String getDefaultSignatureAlgorithm(PrivateKey key) {
+		return getDefaultSignatureAlgorithm((Key) key);
+	}
+
+	/**
+	 * Returns the default signature algorithm for the private key matching
+	 * the provided public key.
+	 * <p>
+	 * This is used where the private key is not available to the caller,
+	 * such as when signing is delegated to a hardware module.
+	 *
+	 * @param key
+	 *            the public key of the signer.
+	 * @return the default signature algorithm.
+	 * @see #getDefaultSignatureAlgorithm(PrivateKey)
+	 */
+	public static String getDefaultSignatureAlgorithm(PublicKey key) {
+		return getDefaultSignatureAlgorithm((Key) key);
+	}
+
+	private static String getDefaultSignatureAlgorithm(Key key) {
+		if (!isEllipticCurve(key)) {
+			return "SHA1withRSA";
+		}
+		int fieldSize = 256;
+		if (key instanceof ECKey) {
+			fieldSize = ((ECKey) key).getParams().getCurve().getField()
+					.getFieldSize();
+		}
+		if (fieldSize > 384) {
+			return "SHA512withECDSA";
+		} else if (fieldSize > 256) {
+			return "SHA384withECDSA";
+		} else {
+			return "SHA256withECDSA";
+		}
+	}
+
+	private static boolean isEllipticCurve(String keyAlgorithm) {
+		return "EC".equals(keyAlgorithm) || "ECDSA".equals(keyAlgorithm);
+	}
+}
@@ -2,6 +2,7 @@ package org.jscep.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.cert.CRLException;
 import java.security.cert.CertStore;
@@ -12,6 +13,15 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1OctetStringParser;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1SequenceParser;
+import org.bouncycastle.asn1.ASN1SetParser;
+import org.bouncycastle.asn1.ASN1StreamParser;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.cms.ContentInfoParser;
+import org.bouncycastle.asn1.cms.SignedDataParser;
 import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.CMSException;
@@ -28,8 +38,8 @@ import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.SignatureAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
+import org.bouncycastle.util.io.Streams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,12 +82,8 @@ public final class SignedDataUtils {
 	} catch (OperatorCreationException e) {
 	    throw new RuntimeException(e);
 	}
-	DigestCalculatorProvider digestProvider;
-	try {
-	    digestProvider = new JcaDigestCalculatorProviderBuilder().build();
-	} catch (OperatorCreationException e1) {
-	    throw new RuntimeException(e1);
-	}
+	DigestCalculatorProvider digestProvider = SignatureUtils
+		.getDigestCalculatorProvider();
 	SignerInformationVerifier verifier = new SignerInformationVerifier(
 		sigNameGenerator, sigAlgorithmFinder, verifierProvider,
 		digestProvider);
@@ -156,4 +162,77 @@ public final class SignedDataUtils {
 	    throw new RuntimeException(e);
 	}
     }
+
+    /**
+     * Reads the certificates and CRLs from a <tt>signedData</tt> stream into
+     * the provided collection.
+     * <p>
+     * Unlike {@link #fromSignedData(CMSSignedData)}, this method never holds
+     * more than a single certificate or CRL in its ASN.1 form at any time, so
+     * it is suitable for very large CRLs and long certificate chains. As with
+     * {@link #fromSignedData(CMSSignedData)}, it makes <strong>no</strong>
+     * attempt to verify the integrity of the <tt>signedData</tt>.
+     * 
+     * @param signedData
+     *            the <tt>signedData</tt> stream to extract.
+     * @param certsAndCrls
+     *            the collection to add the extracted objects to.
+     * @throws IOException
+     *             if the stream cannot be parsed.
+     */
+    public static void readCertsAndCrls(InputStream signedData,
+	    Collection<Object> certsAndCrls) throws IOException {
+	CertificateFactory factory;
+	try {
+	    factory = CertificateFactory.getInstance("X509");
+	} catch (CertificateException e) {
+	    throw new RuntimeException(e);
+	}
+
+	ASN1StreamParser parser = new ASN1StreamParser(signedData);
+	ContentInfoParser contentInfo = new ContentInfoParser(
+		(ASN1SequenceParser) parser.readObject());
+	SignedDataParser sd = SignedDataParser
+		.getInstance(contentInfo.getContent(BERTags.SEQUENCE));
+
+	ASN1SetParser digestAlgorithms = sd.getDigestAlgorithms();
+	while (digestAlgorithms.readObject() != null) {
+	    // Skip to the encapsulated content.
+	}
+	ContentInfoParser encapContentInfo = sd.getEncapContentInfo();
+	ASN1OctetStringParser content = (ASN1OctetStringParser) encapContentInfo
+		.getContent(BERTags.OCTET_STRING);
+	if (content != null) {
+	    Streams.drain(content.getOctetStream());
+	}
+
+	ASN1SetParser certs = sd.getCertificates();
+	if (certs != null) {
+	    ASN1Encodable cert;
+	    while ((cert = certs.readObject()) != null) {
+		ASN1Primitive obj = cert.toASN1Primitive();
+		try {
+		    certsAndCrls.add(factory
+			    .generateCertificate(new ByteArrayInputStream(obj
+				    .getEncoded())));
+		} catch (CertificateException e) {
+		    LOGGER.error("Error generating certificate", e);
+		}
+	    }
+	}
+
+	ASN1SetParser crls = sd.getCrls();
+	if (crls != null) {
+	    ASN1Encodable crl;
+	    while ((crl = crls.readObject()) != null) {
+		ASN1Primitive obj = crl.toASN1Primitive();
+		try {
+		    certsAndCrls.add(factory.generateCRL(new ByteArrayInputStream(
+			    obj.getEncoded())));
+		} catch (CRLException e) {
+		    LOGGER.error("Error generating crl", e);
+		}
+	    }
+	}
+    }
 }
@@ -0,0 +1,238 @@
+package org.jscep.message;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSEnvelopedData;
+import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.RecipientOperator;
+import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.bouncycastle.operator.GenericKey;
+import org.bouncycastle.operator.InputDecryptor;
+import org.bouncycastle.operator.OutputEncryptor;
+import org.jscep.util.X509Certificates;
+
+/**
+ * Measures the per-message cost of enveloping and opening a
+ * <tt>pkcsPkiEnvelope</tt>.
+ * <p>
+ * The baseline builds a fresh Bouncy Castle encryptor and recipient for every
+ * message, which is what the codec did before it pooled its JCA objects.
+ * <p>
+ * Run with <tt>mvn test-compile exec:java
+ * -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.jscep.message.PkcsPkiEnvelopeBenchmark</tt>.
+ */
+public final class PkcsPkiEnvelopeBenchmark {
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 10000;
+	private static final ASN1ObjectIdentifier DES_OID = new ASN1ObjectIdentifier(
+			"1.3.14.3.2.7");
+
+	public static void main(String[] args) throws Exception {
+		KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+		X509Certificate recipient = X509Certificates.createEphemeral(
+				new X500Principal("CN=jscep.org"), keyPair);
+		byte[] messageData = new byte[1024];
+
+		String[] algorithms = { "DES", "DESede", "AES" };
+		ASN1ObjectIdentifier[] oids = { DES_OID,
+				PKCSObjectIdentifiers.des_EDE3_CBC,
+				NISTObjectIdentifiers.id_aes128_CBC };
+		for (int i = 0; i < algorithms.length; i++) {
+			System.out.printf("%-7s encode: baseline %6.1f us, pooled %6.1f us%n",
+					algorithms[i],
+					baselineEncode(recipient, oids[i], messageData),
+					pooledEncode(recipient, algorithms[i], messageData));
+
+			CMSEnvelopedData envelope = new PkcsPkiEnvelopeEncoder(
+					recipient, algorithms[i]).encode(messageData);
+			System.out.printf("%-7s decode: baseline %6.1f us, pooled %6.1f us%n",
+					algorithms[i],
+					baselineDecode(recipient, keyPair, envelope),
+					pooledDecode(recipient, keyPair, envelope));
+		}
+	}
+
+	private static double baselineEncode(X509Certificate recipient,
+			ASN1ObjectIdentifier oid, byte[] messageData) throws Exception {
+		long start = 0;
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			if (i == WARMUP) {
+				start = System.nanoTime();
+			}
+			CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
+			generator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(
+					recipient));
+			OutputEncryptor encryptor;
+			if (DES_OID.equals(oid)) {
+				encryptor = new BaselineDesEncryptor();
+			} else {
+				encryptor = new JceCMSContentEncryptorBuilder(oid).build();
+			}
+			generator.generate(new CMSProcessableByteArray(messageData),
+					encryptor);
+		}
+		return perMessage(start);
+	}
+
+	private static double pooledEncode(X509Certificate recipient,
+			String algorithm, byte[] messageData) throws Exception {
+		PkcsPkiEnvelopeEncoder encoder = new PkcsPkiEnvelopeEncoder(
+				recipient, algorithm);
+		long start = 0;
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			if (i == WARMUP) {
+				start = System.nanoTime();
+			}
+			encoder.encode(messageData);
+		}
+		return perMessage(start);
+	}
+
+	private static double baselineDecode(X509Certificate recipient,
+			KeyPair keyPair, CMSEnvelopedData envelope) throws Exception {
+		long start = 0;
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			if (i == WARMUP) {
+				start = System.nanoTime();
+			}
+			RecipientInformation info = envelope.getRecipientInfos().get(
+					new JceKeyTransRecipientId(recipient));
+			info.getContent(baselineRecipient(keyPair.getPrivate()));
+		}
+		return perMessage(start);
+	}
+
+	private static double pooledDecode(X509Certificate recipient,
+			KeyPair keyPair, CMSEnvelopedData envelope) throws Exception {
+		PkcsPkiEnvelopeDecoder decoder = new PkcsPkiEnvelopeDecoder(
+				recipient, keyPair.getPrivate());
+		long start = 0;
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			if (i == WARMUP) {
+				start = System.nanoTime();
+			}
+			decoder.decode(envelope);
+		}
+		return perMessage(start);
+	}
+
+	/**
+	 * The recipient as it was before pooling, which looked up its own
+	 * <tt>Cipher</tt>s to open single DES envelopes.
+	 */
+	private static JceKeyTransEnvelopedRecipient baselineRecipient(
+			final PrivateKey priKey) {
+		return new JceKeyTransEnvelopedRecipient(priKey) {
+			public RecipientOperator getRecipientOperator(
+					AlgorithmIdentifier keyEncryptionAlgorithm,
+					final AlgorithmIdentifier contentEncryptionAlgorithm,
+					byte[] encryptedContentEncryptionKey) throws CMSException {
+				if (!DES_OID.equals(contentEncryptionAlgorithm.getAlgorithm())) {
+					return super.getRecipientOperator(keyEncryptionAlgorithm,
+							contentEncryptionAlgorithm,
+							encryptedContentEncryptionKey);
+				}
+				final Cipher dataCipher;
+				try {
+					Cipher unwrapper = Cipher.getInstance("RSA");
+					unwrapper.init(Cipher.UNWRAP_MODE, priKey);
+					Key encKey = unwrapper.unwrap(
+							encryptedContentEncryptionKey, "DES",
+							Cipher.SECRET_KEY);
+
+					dataCipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+					dataCipher.init(Cipher.DECRYPT_MODE, encKey,
+							new IvParameterSpec(ASN1OctetString.getInstance(
+									contentEncryptionAlgorithm.getParameters())
+									.getOctets()));
+				} catch (GeneralSecurityException e) {
+					throw new CMSException("Could not create DES cipher", e);
+				}
+
+				return new RecipientOperator(new InputDecryptor() {
+					public AlgorithmIdentifier getAlgorithmIdentifier() {
+						return contentEncryptionAlgorithm;
+					}
+
+					public InputStream getInputStream(InputStream dataIn) {
+						return new CipherInputStream(dataIn, dataCipher);
+					}
+				});
+			}
+		};
+	}
+
+	private static double perMessage(long start) {
+		return (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+	}
+
+	/**
+	 * The single DES encryptor as it was before pooling: every message looks
+	 * up its own <tt>KeyGenerator</tt>, <tt>Cipher</tt> and
+	 * <tt>AlgorithmParameters</tt>, and seeds a new <tt>SecureRandom</tt>.
+	 */
+	private static final class BaselineDesEncryptor implements
+			OutputEncryptor {
+		private final SecretKey key;
+		private final AlgorithmIdentifier algId;
+		private final Cipher cipher;
+
+		BaselineDesEncryptor() throws Exception {
+			key = KeyGenerator.getInstance("DES").generateKey();
+			byte[] iv = new byte[8];
+			new SecureRandom().nextBytes(iv);
+			IvParameterSpec paramSpec = new IvParameterSpec(iv);
+
+			cipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, paramSpec);
+			AlgorithmParameters params = AlgorithmParameters
+					.getInstance("DES");
+			params.init(paramSpec);
+
+			algId = new AlgorithmIdentifier(DES_OID,
+					ASN1Primitive.fromByteArray(params.getEncoded("ASN.1")));
+		}
+
+		public AlgorithmIdentifier getAlgorithmIdentifier() {
+			return algId;
+		}
+
+		public OutputStream getOutputStream(OutputStream encOut) {
+			return new CipherOutputStream(encOut, cipher);
+		}
+
+		public GenericKey getKey() {
+			return new GenericKey(key);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.jscep.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSEnvelopedData;
+import org.bouncycastle.util.io.Streams;
+import org.jscep.util.X509Certificates;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class PkcsPkiEnvelopeDecoderTest {
+	@Parameters
+	public static Collection<Object[]> getParameters() {
+		List<Object[]> params = new ArrayList<Object[]>();
+
+		params.add(new Object[] { "DES", "1.3.14.3.2.7" });
+		params.add(new Object[] { "DESede", "1.2.840.113549.3.7" });
+		params.add(new Object[] { "AES", "2.16.840.1.101.3.4.1.2" });
+		params.add(new Object[] { "AES192", "2.16.840.1.101.3.4.1.22" });
+		params.add(new Object[] { "AES256", "2.16.840.1.101.3.4.1.42" });
+
+		return params;
+	}
+
+	private final String encAlg;
+	private final String oid;
+	private X509Certificate recipient;
+	private KeyPair keyPair;
+
+	public PkcsPkiEnvelopeDecoderTest(String encAlg, String oid) {
+		this.encAlg = encAlg;
+		this.oid = oid;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+		recipient = X509Certificates.createEphemeral(new X500Principal(
+				"CN=jscep.org"), keyPair);
+	}
+
+	@Test
+	public void testEncoderUsesAlgorithm() throws Exception {
+		PkcsPkiEnvelopeEncoder encoder = new PkcsPkiEnvelopeEncoder(
+				recipient, encAlg);
+		CMSEnvelopedData envelope = encoder.encode(new byte[] { 1, 2, 3 });
+
+		assertEquals(oid, envelope.getEncryptionAlgOID());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] messageData = "messageData".getBytes("UTF-8");
+		PkcsPkiEnvelopeEncoder encoder = new PkcsPkiEnvelopeEncoder(
+				recipient, encAlg);
+		CMSEnvelopedData envelope = encoder.encode(messageData);
+
+		PkcsPkiEnvelopeDecoder decoder = new PkcsPkiEnvelopeDecoder(
+				recipient, keyPair.getPrivate());
+		assertArrayEquals(messageData, decoder.decode(envelope));
+	}
+
+	@Test
+	public void testStreamRoundTrip() throws Exception {
+		byte[] messageData = "messageData".getBytes("UTF-8");
+		PkcsPkiEnvelopeEncoder encoder = new PkcsPkiEnvelopeEncoder(
+				recipient, encAlg);
+		CMSEnvelopedData envelope = encoder.encode(messageData);
+
+		PkcsPkiEnvelopeDecoder decoder = new PkcsPkiEnvelopeDecoder(
+				recipient, keyPair.getPrivate());
+		InputStream in = decoder.decode(new ByteArrayInputStream(envelope
+				.getEncoded()));
+		try {
+			assertArrayEquals(messageData, Streams.readAll(in));
+		} finally {
+			in.close();
+		}
+		// Closing again must not return the cipher to the pool twice
+		in.close();
+	}
+
+	@Test
+	public void testOperatorRoundTrip() throws Exception {
+		byte[] messageData = "messageData".getBytes("UTF-8");
+		PkcsPkiEnvelopeEncoder encoder = new PkcsPkiEnvelopeEncoder(
+				recipient, encAlg);
+		CMSEnvelopedData envelope = encoder.encode(messageData);
+
+		PkcsPkiEnvelopeDecoder decoder = new PkcsPkiEnvelopeDecoder(
+				recipient, new CipherOperator(keyPair.getPrivate()));
+		assertArrayEquals(messageData, decoder.decode(envelope));
+	}
+
+	/**
+	 * Decrypts on the calling thread.
+	 */
+	private static final class CipherOperator implements PrivateKeyOperator {
+		private final PrivateKey key;
+
+		CipherOperator(PrivateKey key) {
+			this.key = key;
+		}
+
+		public Future<byte[]> decrypt(final byte[] encryptedKey) {
+			FutureTask<byte[]> task = new FutureTask<byte[]>(
+					new Callable<byte[]>() {
+						public byte[] call() throws Exception {
+							Cipher cipher = Cipher
+									.getInstance("RSA/ECB/PKCS1Padding");
+							cipher.init(Cipher.DECRYPT_MODE, key);
+							return cipher.doFinal(encryptedKey);
+						}
+					});
+			task.run();
+			return task;
+		}
+
+		public Future<byte[]> sign(AlgorithmIdentifier digestAlgorithm,
+				byte[] digest) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.TransactionId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackendDispatcherTest {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private final TransactionId transId = new TransactionId("1".getBytes());
+    private BackendDispatcher dispatcher;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+	dispatcher = new BackendDispatcher(10);
+	executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+	latch.countDown();
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testSameTypeSharesRunningCall() throws Exception {
+	issue(MessageType.PKCS_REQ);
+	issue(MessageType.PKCS_REQ);
+	settle();
+
+	assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testOtherTypeDoesNotShareRunningCall() throws Exception {
+	issue(MessageType.GET_CERT_INITIAL);
+	issue(MessageType.PKCS_REQ);
+	settle();
+
+	assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testPollCollectsRunningEnrollment() throws Exception {
+	issue(MessageType.PKCS_REQ);
+	latch.countDown();
+	List<X509Certificate> issued = dispatcher.issue(executor, 10000,
+		MessageType.GET_CERT_INITIAL, transId, blocked());
+	settle();
+
+	assertThat(issued.isEmpty(), is(true));
+	assertThat(calls.get(), is(1));
+    }
+
+    private List<X509Certificate> issue(MessageType msgType)
+	    throws Exception {
+	return dispatcher.issue(executor, 0, msgType, transId, blocked());
+    }
+
+    private void settle() throws InterruptedException {
+	latch.countDown();
+	executor.shutdown();
+	executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private Callable<List<X509Certificate>> blocked() {
+	return new Callable<List<X509Certificate>>() {
+	    public List<X509Certificate> call() throws Exception {
+		calls.incrementAndGet();
+		latch.await();
+		return Collections.emptyList();
+	    }
+	};
+    }
+}
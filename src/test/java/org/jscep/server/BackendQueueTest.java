@@ -0,0 +1,94 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.TransactionId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackendQueueTest {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private BackendQueue queue;
+
+    @Before
+    public void setUp() {
+	queue = new BackendQueue(1, 1);
+    }
+
+    @After
+    public void tearDown() {
+	latch.countDown();
+	queue.shutdownNow();
+    }
+
+    @Test
+    public void testQueueIsBackloggedWhenWorkersAreBusy() throws Exception {
+	queue.submit(blocked());
+	assertThat(queue.isBacklogged(), is(false));
+	queue.submit(blocked());
+	assertThat(queue.isBacklogged(), is(true));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testFullQueueRejects() throws Exception {
+	queue.submit(blocked());
+	queue.submit(blocked());
+	queue.submit(blocked());
+    }
+
+    @Test
+    public void testBackloggedIssueIsPendingAtOnce() throws Exception {
+	BackendDispatcher dispatcher = new BackendDispatcher(10);
+	TransactionId transId = new TransactionId("1".getBytes());
+	queue.shutdownNow();
+	queue = new BackendQueue(1, 2);
+	queue.submit(blocked());
+	queue.submit(blocked());
+
+	long start = System.nanoTime();
+	List<X509Certificate> issued = dispatcher.issue(queue, 10000,
+		MessageType.PKCS_REQ, transId, issued());
+	assertThat(issued.isEmpty(), is(true));
+	assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testFullQueueIsUnavailable() throws Exception {
+	BackendDispatcher dispatcher = new BackendDispatcher(10);
+	queue.submit(blocked());
+	queue.submit(blocked());
+
+	dispatcher.issue(queue, 10000, MessageType.PKCS_REQ, new TransactionId(
+		"1".getBytes()), issued());
+    }
+
+    private Callable<Void> blocked() {
+	return new Callable<Void>() {
+	    public Void call() throws Exception {
+		latch.await();
+		return null;
+	    }
+	};
+    }
+
+    private static Callable<List<X509Certificate>> issued() {
+	return new Callable<List<X509Certificate>>() {
+	    public List<X509Certificate> call() {
+		return Collections.emptyList();
+	    }
+	};
+    }
+}
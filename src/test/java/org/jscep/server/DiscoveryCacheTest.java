@@ -0,0 +1,100 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.transport.request.Operation;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiscoveryCacheTest {
+    private DiscoveryCache cache;
+    private DiscoveryCache.Response response;
+
+    @Before
+    public void setUp() {
+	cache = new DiscoveryCache(4);
+	response = new DiscoveryCache.Response("text/plain", new byte[] { 1 },
+		TimeUnit.DAYS.toNanos(1));
+    }
+
+    @Test
+    public void testResponseIsKeyedByOperationAndIdentifier() {
+	cache.put(Operation.GET_CA_CAPS, "ca", response);
+
+	assertThat(cache.get(Operation.GET_CA_CAPS, "ca"),
+		is(sameInstance(response)));
+	assertThat(cache.get(Operation.GET_CA_CERT, "ca"), is(nullValue()));
+	assertThat(cache.get(Operation.GET_CA_CAPS, null), is(nullValue()));
+    }
+
+    @Test
+    public void testNullIdentifierIsCached() {
+	cache.put(Operation.GET_CA_CERT, null, response);
+
+	assertThat(cache.get(Operation.GET_CA_CERT, null),
+		is(sameInstance(response)));
+    }
+
+    @Test
+    public void testExpiredResponseIsDiscarded() {
+	cache.put(Operation.GET_CA_CAPS, null, new DiscoveryCache.Response(
+		"text/plain", new byte[0], 0));
+
+	assertThat(cache.get(Operation.GET_CA_CAPS, null), is(nullValue()));
+    }
+
+    @Test
+    public void testFullCacheEvictsClosestToExpiry() {
+	DiscoveryCache.Response first = new DiscoveryCache.Response(
+		"text/plain", new byte[0], TimeUnit.HOURS.toNanos(1));
+	cache.put(Operation.GET_CA_CAPS, "first", first);
+	for (int i = 0; i < 8; i++) {
+	    cache.put(Operation.GET_CA_CAPS, "ca" + i, response);
+	}
+
+	assertThat(cache.size(), is(4));
+	assertThat(cache.get(Operation.GET_CA_CAPS, "first"), is(nullValue()));
+	assertThat(cache.get(Operation.GET_CA_CAPS, "ca7"),
+		is(sameInstance(response)));
+    }
+
+    @Test
+    public void testExpiredResponsesArePurgedWhenFull() {
+	for (int i = 0; i < 4; i++) {
+	    cache.put(Operation.GET_CA_CAPS, "expired" + i,
+		    new DiscoveryCache.Response("text/plain", new byte[0], 0));
+	}
+	cache.put(Operation.GET_CA_CAPS, "ca", response);
+
+	assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void testInvalidateIdentifier() {
+	cache.put(Operation.GET_CA_CAPS, "a", response);
+	cache.put(Operation.GET_CA_CERT, "a", response);
+	cache.put(Operation.GET_CA_CAPS, "b", response);
+	cache.invalidate("a");
+
+	assertThat(cache.get(Operation.GET_CA_CAPS, "a"), is(nullValue()));
+	assertThat(cache.get(Operation.GET_CA_CERT, "a"), is(nullValue()));
+	assertThat(cache.get(Operation.GET_CA_CAPS, "b"),
+		is(sameInstance(response)));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+	cache.put(Operation.GET_CA_CAPS, "a", response);
+	cache.put(Operation.GET_NEXT_CA_CERT, null, response);
+	cache.invalidate();
+
+	assertThat(cache.get(Operation.GET_CA_CAPS, "a"), is(nullValue()));
+	assertThat(cache.get(Operation.GET_NEXT_CA_CERT, null),
+		is(nullValue()));
+    }
+}
@@ -0,0 +1,199 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.OperationFailureException;
+import org.jscep.transaction.TransactionId;
+import org.junit.After;
+import org.junit.Test;
+
+public class EnrollmentBatcherTest {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    private final EnrollmentBatcher batcher = new EnrollmentBatcher();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger batches = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testFullBatchIsIssuedTogether() throws Exception {
+	List<Future<List<X509Certificate>>> results = new ArrayList<Future<List<X509Certificate>>>();
+	for (int i = 0; i < 3; i++) {
+	    results.add(executor.submit(enrol("ok" + i,
+		    TimeUnit.MINUTES.toNanos(1))));
+	}
+	for (Future<List<X509Certificate>> result : results) {
+	    assertThat(result.get(10, TimeUnit.SECONDS).isEmpty(), is(true));
+	}
+	assertThat(batches.get(), is(1));
+    }
+
+    @Test
+    public void testWindowClosesPartialBatch() throws Exception {
+	List<X509Certificate> issued = enrol("ok",
+		TimeUnit.MILLISECONDS.toNanos(1)).call();
+
+	assertThat(issued.isEmpty(), is(true));
+	assertThat(batches.get(), is(1));
+    }
+
+    @Test
+    public void testEachEnrollmentGetsItsOwnOutcome() throws Exception {
+	Future<List<X509Certificate>> ok = executor.submit(enrol("ok",
+		TimeUnit.MINUTES.toNanos(1)));
+	Future<List<X509Certificate>> bad = executor.submit(enrol("bad",
+		TimeUnit.MINUTES.toNanos(1)));
+	Future<List<X509Certificate>> other = executor.submit(enrol("ok2",
+		TimeUnit.MINUTES.toNanos(1)));
+
+	assertThat(ok.get(10, TimeUnit.SECONDS).isEmpty(), is(true));
+	assertThat(other.get(10, TimeUnit.SECONDS).isEmpty(), is(true));
+	try {
+	    bad.get(10, TimeUnit.SECONDS);
+	} catch (ExecutionException e) {
+	    assertThat(((OperationFailureException) e.getCause())
+		    .getFailInfo(), is(FailInfo.badRequest));
+	    return;
+	}
+	throw new AssertionError("Expected failure");
+    }
+
+    @Test
+    public void testBackendErrorKeepsRecordedOutcomes() throws Exception {
+	final X509Certificate cert = mock(X509Certificate.class);
+	final EnrollmentBatcher.Backend backend = new EnrollmentBatcher.Backend() {
+	    public void enrol(List<Enrollment> batch) {
+		for (Enrollment enrollment : batch) {
+		    if (enrollment.getTransactionId().toString().equals("ok")) {
+			enrollment.setCertificates(Collections
+				.singletonList(cert));
+		    }
+		}
+		throw new IllegalStateException("Backend failed");
+	    }
+	};
+	List<Future<List<X509Certificate>>> results = new ArrayList<Future<List<X509Certificate>>>();
+	for (final String id : new String[] { "ok", "bad" }) {
+	    results.add(executor.submit(new Callable<List<X509Certificate>>() {
+		public List<X509Certificate> call() throws Exception {
+		    return batcher.enrol(null, new TransactionId(id.getBytes()),
+			    2, TimeUnit.MINUTES.toNanos(1), TIMEOUT, backend);
+		}
+	    }));
+	}
+
+	assertThat(results.get(0).get(10, TimeUnit.SECONDS),
+		is(Collections.singletonList(cert)));
+	try {
+	    results.get(1).get(10, TimeUnit.SECONDS);
+	} catch (ExecutionException e) {
+	    assertThat(e.getCause() instanceof IllegalStateException, is(true));
+	    return;
+	}
+	throw new AssertionError("Expected failure");
+    }
+
+    @Test
+    public void testSlowBatchIsPending() throws Exception {
+	final CountDownLatch latch = new CountDownLatch(1);
+	final EnrollmentBatcher.Backend backend = new EnrollmentBatcher.Backend() {
+	    public void enrol(List<Enrollment> batch) throws Exception {
+		latch.await(10, TimeUnit.SECONDS);
+	    }
+	};
+	try {
+	    executor.submit(new Callable<List<X509Certificate>>() {
+		public List<X509Certificate> call() throws Exception {
+		    return batcher.enrol(null, new TransactionId("slow"
+			    .getBytes()), 2, TimeUnit.MINUTES.toNanos(1),
+			    TIMEOUT, backend);
+		}
+	    });
+	    // Let the slow enrollment open the batch, so that it calls the
+	    // backend.
+	    Thread.sleep(100);
+	    long start = System.nanoTime();
+	    List<X509Certificate> issued = batcher.enrol(null,
+		    new TransactionId("ok".getBytes()), 2, 0,
+		    TimeUnit.MILLISECONDS.toNanos(100), backend);
+
+	    assertThat(issued.isEmpty(), is(true));
+	    assertThat(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5),
+		    is(true));
+	} finally {
+	    latch.countDown();
+	}
+    }
+
+    @Test
+    public void testDefaultBatchRecordsErrorsPerEnrollment() throws Exception {
+	ScepServlet servlet = new ScepServletImpl() {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected List<X509Certificate> doEnrol(
+		    PKCS10CertificationRequest csr, TransactionId transId) {
+		if (transId.toString().equals("bad")) {
+		    throw new IllegalStateException("Backend failed");
+		}
+		return Collections.emptyList();
+	    }
+	};
+	Enrollment bad = new Enrollment(null, new TransactionId(
+		"bad".getBytes()));
+	Enrollment ok = new Enrollment(null, new TransactionId("ok".getBytes()));
+	servlet.doEnrolBatch(Arrays.asList(bad, ok));
+	bad.complete();
+	ok.complete();
+
+	assertThat(ok.get(0).isEmpty(), is(true));
+	try {
+	    bad.get(0);
+	} catch (IllegalStateException e) {
+	    return;
+	}
+	throw new AssertionError("Expected failure");
+    }
+
+    private Callable<List<X509Certificate>> enrol(final String id,
+	    final long windowNanos) {
+	return new Callable<List<X509Certificate>>() {
+	    public List<X509Certificate> call() throws Exception {
+		return batcher.enrol(null, new TransactionId(id.getBytes()), 3,
+			windowNanos, TIMEOUT, new EnrollmentBatcher.Backend() {
+			    public void enrol(List<Enrollment> batch) {
+				batches.incrementAndGet();
+				for (Enrollment enrollment : batch) {
+				    if (enrollment.getTransactionId()
+					    .toString().equals("bad")) {
+					enrollment
+						.setFailInfo(FailInfo.badRequest);
+				    }
+				}
+			    }
+			});
+	    }
+	};
+    }
+}
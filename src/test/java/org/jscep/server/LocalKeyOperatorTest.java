@@ -0,0 +1,84 @@
+package org.jscep.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.junit.Test;
+
+public class LocalKeyOperatorTest {
+    private static final AlgorithmIdentifier SHA256 = new AlgorithmIdentifier(
+	    NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE);
+
+    @Test
+    public void testDecrypt() throws Exception {
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	byte[] key = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+	Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+	cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+
+	LocalKeyOperator operator = new LocalKeyOperator(
+		keyPair.getPrivate(), 1);
+	try {
+	    assertArrayEquals(key, operator.decrypt(cipher.doFinal(key)).get());
+	} finally {
+	    operator.shutdown();
+	}
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testDecryptRejectsBadInput() throws Exception {
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	LocalKeyOperator operator = new LocalKeyOperator(
+		keyPair.getPrivate(), 1);
+	try {
+	    operator.decrypt(new byte[] { 1, 2, 3 }).get();
+	} finally {
+	    operator.shutdown();
+	}
+    }
+
+    @Test
+    public void testSignRsa() throws Exception {
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	assertSignature(keyPair, "SHA256withRSA");
+    }
+
+    @Test
+    public void testSignEc() throws Exception {
+	KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+	generator.initialize(new ECGenParameterSpec("secp256r1"));
+	assertSignature(generator.genKeyPair(), "SHA256withECDSA");
+    }
+
+    private void assertSignature(KeyPair keyPair, String algorithm)
+	    throws Exception {
+	byte[] data = "signedAttrs".getBytes("UTF-8");
+	byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+
+	LocalKeyOperator operator = new LocalKeyOperator(
+		keyPair.getPrivate(), 2);
+	byte[] signature;
+	try {
+	    signature = operator.sign(SHA256, digest).get();
+	} finally {
+	    operator.shutdown();
+	}
+
+	Signature verifier = Signature.getInstance(algorithm);
+	verifier.initVerify(keyPair.getPublic());
+	verifier.update(data);
+	assertTrue(verifier.verify(signature));
+    }
+}
@@ -0,0 +1,48 @@
+package org.jscep.server;
+
+import java.security.PrivateKey;
+
+import javax.servlet.ServletException;
+
+import org.jscep.message.PrivateKeyOperator;
+
+/**
+ * A {@link ScepServletImpl} which performs its private key operations through
+ * a {@link LocalKeyOperator}, and offers no private key.
+ */
+public class OperatorScepServletImpl extends ScepServletImpl {
+    private static final long serialVersionUID = 1L;
+    private LocalKeyOperator keyOperator;
+
+    @Override
+    public void init() throws ServletException {
+	super.init();
+	keyOperator = new LocalKeyOperator(super.getRecipientKey(), 2);
+    }
+
+    @Override
+    public void destroy() {
+	keyOperator.shutdown();
+	super.destroy();
+    }
+
+    @Override
+    protected PrivateKey getRecipientKey() {
+	return null;
+    }
+
+    @Override
+    protected PrivateKey getSignerKey() {
+	return null;
+    }
+
+    @Override
+    protected PrivateKeyOperator getRecipientKeyOperator() {
+	return keyOperator;
+    }
+
+    @Override
+    protected PrivateKeyOperator getSignerKeyOperator() {
+	return keyOperator;
+    }
+}
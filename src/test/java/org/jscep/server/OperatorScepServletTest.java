@@ -0,0 +1,143 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertStore;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v1CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transaction.EnrollmentTransaction;
+import org.jscep.transaction.Transaction.State;
+import org.jscep.transport.HttpGetTransport;
+import org.jscep.transport.Transport;
+import org.jscep.transport.request.GetCaCertRequest;
+import org.jscep.transport.request.GetNextCaCertRequest;
+import org.jscep.transport.response.GetCaCertResponseHandler;
+import org.jscep.transport.response.GetNextCaCertResponseHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests a servlet which uses key operators instead of private keys.
+ */
+public class OperatorScepServletTest {
+	private static String PATH = "/scep/pkiclient.exe";
+	private KeyPair keyPair;
+	private X509Certificate sender;
+	private Server server;
+	private ServletHolder holder;
+	private URL url;
+
+	@Before
+	public void setUp() throws Exception {
+		keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+		X500Name name = new X500Name("CN=Example");
+		ContentSigner signer = new JcaContentSignerBuilder("SHA1withRSA")
+				.build(keyPair.getPrivate());
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.YEAR, -1);
+		Date notBefore = cal.getTime();
+		cal.add(Calendar.YEAR, 2);
+		Date notAfter = cal.getTime();
+		sender = new JcaX509CertificateConverter()
+				.getCertificate(new JcaX509v1CertificateBuilder(name,
+						BigInteger.ONE, notBefore, notAfter, name, keyPair
+								.getPublic()).build(signer));
+
+		ServletHandler handler = new ServletHandler();
+		holder = handler.addServletWithMapping(OperatorScepServletImpl.class,
+				PATH);
+		server = new Server(0);
+		server.setHandler(handler);
+		server.start();
+		url = new URL("http", "localhost", server.getConnectors()[0]
+				.getLocalPort(), PATH);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void testEnrollment() throws Exception {
+		PKCS10CertificationRequest csr = new JcaPKCS10CertificationRequestBuilder(
+				new X500Principal("CN=Example"), keyPair.getPublic())
+				.addAttribute(
+						PKCSObjectIdentifiers.pkcs_9_at_challengePassword,
+						new DERPrintableString("password")).build(
+						new JcaContentSignerBuilder("SHA1withRSA")
+								.build(keyPair.getPrivate()));
+
+		X509Certificate recipient = getRecipient();
+		PkiMessageEncoder encoder = new PkiMessageEncoder(
+				keyPair.getPrivate(), sender, new PkcsPkiEnvelopeEncoder(
+						recipient, "AES"));
+		PkiMessageDecoder decoder = new PkiMessageDecoder(recipient,
+				new PkcsPkiEnvelopeDecoder(sender, keyPair.getPrivate()));
+
+		Transport transport = new HttpGetTransport(url);
+		EnrollmentTransaction trans = new EnrollmentTransaction(transport,
+				encoder, decoder, csr);
+		assertThat(trans.send(), is(State.CERT_ISSUED));
+	}
+
+	@Test
+	public void testGetNextCaCertIsSigned() throws Exception {
+		Transport transport = new HttpGetTransport(url);
+		CertStore certs = transport.sendRequest(new GetNextCaCertRequest(
+				null), new GetNextCaCertResponseHandler(getRecipient()));
+
+		assertThat(certs.getCertificates(null).size(), is(1));
+	}
+
+	@Test
+	public void testOperatorIsShutDownOnDestroy() throws Exception {
+		OperatorScepServletImpl servlet = (OperatorScepServletImpl) holder
+				.getServlet();
+		server.stop();
+
+		try {
+			servlet.getRecipientKeyOperator().decrypt(new byte[0]);
+			fail("Expected the operator to be shut down");
+		} catch (RejectedExecutionException e) {
+			// Expected
+		}
+	}
+
+	private X509Certificate getRecipient() throws Exception {
+		Transport transport = new HttpGetTransport(url);
+		CertStore store = transport.sendRequest(new GetCaCertRequest(),
+				new GetCaCertResponseHandler());
+
+		return (X509Certificate) store.getCertificates(null).iterator()
+				.next();
+	}
+}
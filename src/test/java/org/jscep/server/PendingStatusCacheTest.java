@@ -0,0 +1,51 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.transaction.TransactionId;
+import org.junit.Test;
+
+public class PendingStatusCacheTest {
+    private final TransactionId transId = new TransactionId("1".getBytes());
+
+    @Test
+    public void testPendingStatusIsRemembered() {
+	PendingStatusCache cache = new PendingStatusCache(10);
+	cache.put(transId, TimeUnit.MINUTES.toNanos(1));
+
+	assertThat(cache.isPending(transId), is(true));
+	assertThat(cache.isPending(new TransactionId("2".getBytes())),
+		is(false));
+    }
+
+    @Test
+    public void testPendingStatusExpires() throws Exception {
+	PendingStatusCache cache = new PendingStatusCache(10);
+	cache.put(transId, TimeUnit.MILLISECONDS.toNanos(1));
+	Thread.sleep(10);
+
+	assertThat(cache.isPending(transId), is(false));
+    }
+
+    @Test
+    public void testInvalidateForgetsPendingStatus() {
+	PendingStatusCache cache = new PendingStatusCache(10);
+	cache.put(transId, TimeUnit.MINUTES.toNanos(1));
+	cache.invalidate(transId);
+
+	assertThat(cache.isPending(transId), is(false));
+    }
+
+    @Test
+    public void testFullCacheDoesNotRemember() {
+	PendingStatusCache cache = new PendingStatusCache(1);
+	cache.put(new TransactionId("2".getBytes()),
+		TimeUnit.MINUTES.toNanos(1));
+	cache.put(transId, TimeUnit.MINUTES.toNanos(1));
+
+	assertThat(cache.isPending(transId), is(false));
+    }
+}
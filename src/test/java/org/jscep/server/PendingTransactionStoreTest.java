@@ -0,0 +1,131 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.jscep.server.PendingTransactionStore.Transaction;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.TransactionId;
+import org.junit.Test;
+
+public class PendingTransactionStoreTest {
+    private final X500Name issuer = new X500Name("CN=CA");
+    private final X500Name subject = new X500Name("CN=Subject");
+    private final TransactionId transId = new TransactionId("1".getBytes());
+
+    @Test
+    public void testTransactionIsFoundByIdAndSubject() {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+	store.addPending(issuer, subject, transId);
+
+	Transaction trans = store.get(transId);
+	assertThat(trans.isPending(), is(true));
+	assertThat(store.get(issuer, subject), sameInstance(trans));
+	assertThat(store.get(issuer, new X500Name("CN=Other")), nullValue());
+    }
+
+    @Test
+    public void testFailureIsRecorded() {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+	store.addPending(issuer, subject, transId);
+
+	assertThat(store.fail(transId, FailInfo.badRequest), is(true));
+	Transaction trans = store.get(issuer, subject);
+	assertThat(trans.isPending(), is(false));
+	assertThat(trans.getFailInfo(), is(FailInfo.badRequest));
+    }
+
+    @Test
+    public void testCompletionIsRecorded() throws Exception {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+	store.addPending(issuer, subject, transId);
+	long pending = store.getMemoryUsage();
+
+	List<X509Certificate> issued = Collections.singletonList(certificate());
+	assertThat(store.complete(transId, issued), is(true));
+	Transaction trans = store.get(transId);
+	assertThat(trans.isPending(), is(false));
+	assertThat(trans.getFailInfo(), nullValue());
+	assertThat(trans.getCertificates(), is(issued));
+	assertThat(store.getMemoryUsage() > pending, is(true));
+    }
+
+    @Test
+    public void testUnknownTransactionIsNotCompleted() throws Exception {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+
+	assertThat(store.complete(transId,
+		Collections.singletonList(certificate())), is(false));
+    }
+
+    private X509Certificate certificate() throws Exception {
+	X509Certificate cert = mock(X509Certificate.class);
+	when(cert.getEncoded()).thenReturn(new byte[512]);
+	return cert;
+    }
+
+    @Test
+    public void testUnknownTransactionIsNotDecided() {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+
+	assertThat(store.fail(transId, FailInfo.badRequest), is(false));
+    }
+
+    @Test
+    public void testTransactionExpires() throws Exception {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MILLISECONDS);
+	store.addPending(issuer, subject, transId);
+	Thread.sleep(10);
+
+	assertThat(store.get(transId), nullValue());
+	assertThat(store.get(issuer, subject), nullValue());
+	assertThat(store.getMemoryUsage(), is(0L));
+    }
+
+    @Test
+    public void testBudgetIsEnforced() {
+	PendingTransactionStore store = new PendingTransactionStore(300, 1,
+		TimeUnit.MINUTES);
+
+	assertThat(store.addPending(issuer, subject, transId), is(true));
+	assertThat(store.addPending(issuer, subject, new TransactionId(
+		"2".getBytes())), is(false));
+	assertThat(store.size(), is(1));
+    }
+
+    @Test
+    public void testRemoveReleasesMemory() {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+	store.addPending(issuer, subject, transId);
+
+	assertThat(store.remove(transId).getTransactionId(), is(transId));
+	assertThat(store.getMemoryUsage(), is(0L));
+	assertThat(store.get(issuer, subject), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompleteRequiresCertificates() {
+	PendingTransactionStore store = new PendingTransactionStore(4096, 1,
+		TimeUnit.MINUTES);
+	store.addPending(issuer, subject, transId);
+
+	store.complete(transId, Collections.<X509Certificate> emptyList());
+    }
+}
@@ -0,0 +1,67 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PhaseTracerTest {
+    private final List<PhaseTrace> reported = new ArrayList<PhaseTrace>();
+    private final PhaseTracer.Callback callback = new PhaseTracer.Callback() {
+	public void slowRequest(ScepRequestEvent event, PhaseTrace trace) {
+	    reported.add(trace);
+	}
+    };
+
+    @Test
+    public void testSampling() {
+	PhaseTracer tracer = new PhaseTracer(3, 0, TimeUnit.SECONDS, callback);
+
+	assertThat(tracer.begin(), is(notNullValue()));
+	assertThat(tracer.begin(), is(nullValue()));
+	assertThat(tracer.begin(), is(nullValue()));
+	assertThat(tracer.begin(), is(notNullValue()));
+    }
+
+    @Test
+    public void testSlowRequestIsReported() throws Exception {
+	PhaseTracer tracer = new PhaseTracer(1, 0, TimeUnit.SECONDS, callback);
+	ScepRequestEvent event = new ScepRequestEvent();
+	event.setPhaseTrace(tracer.begin());
+	event.enter(Phase.BACKEND);
+	Thread.sleep(5);
+	event.enter(Phase.WRITE);
+	tracer.end(event, event.getPhaseTrace());
+
+	assertThat(reported.size(), is(1));
+	PhaseTrace trace = reported.get(0);
+	assertThat(trace.getNanos(Phase.BACKEND) >= 5000000L, is(true));
+	assertThat(trace.getNanos(Phase.DECODE), is(0L));
+	assertThat(trace.getTotalNanos() >= trace.getNanos(Phase.BACKEND),
+		is(true));
+    }
+
+    @Test
+    public void testFastRequestIsNotReported() {
+	PhaseTracer tracer = new PhaseTracer(1, 1, TimeUnit.HOURS, callback);
+	ScepRequestEvent event = new ScepRequestEvent();
+	event.setPhaseTrace(tracer.begin());
+	tracer.end(event, event.getPhaseTrace());
+
+	assertThat(reported.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testUntracedEventIgnoresPhases() {
+	ScepRequestEvent event = new ScepRequestEvent();
+	event.enter(Phase.DECODE);
+
+	assertThat(event.getPhaseTrace(), is(nullValue()));
+    }
+}
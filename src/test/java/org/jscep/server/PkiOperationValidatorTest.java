@@ -0,0 +1,106 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.message.CertRep;
+import org.jscep.message.GetCert;
+import org.jscep.message.MessageDecodingException;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+import org.jscep.util.X509Certificates;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PkiOperationValidatorTest {
+    private KeyPair keyPair;
+    private X509Certificate cert;
+
+    @Before
+    public void setUp() throws Exception {
+	keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	cert = X509Certificates.createEphemeral(new X500Principal(
+		"CN=Client"), keyPair);
+    }
+
+    @Test
+    public void testValidMessageReturnsSigner() throws Exception {
+	X509CertificateHolder signer = PkiOperationValidator.validate(
+		encode(getCert()), new Date(), 0);
+
+	assertThat(signer.getSerialNumber(), is(cert.getSerialNumber()));
+    }
+
+    @Test(expected = MessageDecodingException.class)
+    public void testExpiredSignerIsRejected() throws Exception {
+	Date later = new Date(System.currentTimeMillis()
+		+ TimeUnit.DAYS.toMillis(7));
+
+	PkiOperationValidator.validate(encode(getCert()), later, 0);
+    }
+
+    @Test
+    public void testSkewedSignerIsAccepted() throws Exception {
+	Date earlier = new Date(cert.getNotBefore().getTime()
+		- TimeUnit.MINUTES.toMillis(1));
+
+	PkiOperationValidator.validate(encode(getCert()), earlier,
+		TimeUnit.MINUTES.toMillis(5));
+    }
+
+    @Test(expected = MessageDecodingException.class)
+    public void testSignerBeyondSkewIsRejected() throws Exception {
+	Date earlier = new Date(cert.getNotBefore().getTime()
+		- TimeUnit.MINUTES.toMillis(10));
+
+	PkiOperationValidator.validate(encode(getCert()), earlier,
+		TimeUnit.MINUTES.toMillis(5));
+    }
+
+    @Test
+    public void testNegativeSkewSkipsValidityCheck() throws Exception {
+	Date later = new Date(System.currentTimeMillis()
+		+ TimeUnit.DAYS.toMillis(7));
+
+	PkiOperationValidator.validate(encode(getCert()), later, -1);
+    }
+
+    @Test(expected = MessageDecodingException.class)
+    public void testCertRepIsRejected() throws Exception {
+	CertRep certRep = new CertRep(TransactionId.createTransactionId(),
+		Nonce.nextNonce(), Nonce.nextNonce(), FailInfo.badRequest);
+
+	PkiOperationValidator.validate(encode(certRep), new Date(), 0);
+    }
+
+    private GetCert getCert() {
+	return new GetCert(TransactionId.createTransactionId(),
+		Nonce.nextNonce(), new IssuerAndSerialNumber(new X500Name(
+			"CN=CA"), BigInteger.ONE));
+    }
+
+    private CMSSignedData encode(PkiMessage<?> message) throws Exception {
+	PkiMessageEncoder encoder = new PkiMessageEncoder(
+		keyPair.getPrivate(), cert, new PkcsPkiEnvelopeEncoder(cert,
+			"DESede"));
+
+	return encoder.encode(message);
+    }
+}
@@ -0,0 +1,105 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.security.cert.X509Certificate;
+
+import org.jscep.transport.request.Operation;
+import org.junit.Test;
+
+public class RateLimiterTest {
+    @Test
+    public void testBurstIsEnforced() {
+	RateLimiter limiter = new RateLimiter(0.001, 2, 100);
+
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(nullValue()));
+    }
+
+    @Test
+    public void testRequestersAreIndependent() {
+	RateLimiter limiter = new RateLimiter(0.001, 1, 100);
+
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "b"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(nullValue()));
+    }
+
+    @Test
+    public void testCertificatesDoNotGetTheirOwnBuckets() {
+	RateLimiter limiter = new RateLimiter(0.001, 1, 100);
+
+	assertThat(limiter.admit(Operation.PKI_OPERATION,
+		mock(X509Certificate.class), "a"), is(notNullValue()));
+	assertThat(limiter.admit(Operation.PKI_OPERATION,
+		mock(X509Certificate.class), "a"), is(nullValue()));
+    }
+
+    @Test
+    public void testBucketRefills() throws Exception {
+	RateLimiter limiter = new RateLimiter(1000, 1, 100);
+
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+	Thread.sleep(10);
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+    }
+
+    @Test
+    public void testNewRequestersAreTurnedAwayWhenFull() {
+	RateLimiter limiter = new RateLimiter(0.001, 1, 100, 2);
+
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "b"),
+		is(notNullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "c"),
+		is(nullValue()));
+	// The known requester's limit is not reset
+	assertThat(limiter.admit(Operation.GET_CA_CERT, null, "a"),
+		is(nullValue()));
+    }
+
+    @Test
+    public void testConcurrencyRefusalDoesNotSpendToken() {
+	RateLimiter limiter = new RateLimiter(0.001, 1, 1);
+
+	AdmissionController.Permit permit = limiter.admit(
+		Operation.PKI_OPERATION, null, "a");
+	assertThat(limiter.admit(Operation.PKI_OPERATION, null, "b"),
+		is(nullValue()));
+
+	permit.release();
+	assertThat(limiter.admit(Operation.PKI_OPERATION, null, "b"),
+		is(notNullValue()));
+    }
+
+    @Test
+    public void testConcurrencyIsLimited() {
+	RateLimiter limiter = new RateLimiter(1000, 1000, 1);
+
+	AdmissionController.Permit permit = limiter.admit(
+		Operation.PKI_OPERATION, null, "a");
+	assertThat(permit, is(notNullValue()));
+	assertThat(limiter.admit(Operation.PKI_OPERATION, null, "b"),
+		is(nullValue()));
+	assertThat(limiter.admit(Operation.GET_CA_CAPS, null, "b"),
+		is(notNullValue()));
+
+	permit.release();
+	assertThat(limiter.admit(Operation.PKI_OPERATION, null, "b"),
+		is(notNullValue()));
+    }
+}
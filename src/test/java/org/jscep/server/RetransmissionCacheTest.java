@@ -0,0 +1,128 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.OperationFailureException;
+import org.jscep.transaction.TransactionId;
+import org.jscep.util.X509Certificates;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetransmissionCacheTest {
+    private RetransmissionCache cache;
+    private TransactionId transId;
+    private AtomicInteger calls;
+    private List<X509Certificate> issued;
+
+    @Before
+    public void setUp() throws Exception {
+	cache = new RetransmissionCache(16, 1, TimeUnit.MINUTES);
+	transId = TransactionId.createTransactionId();
+	calls = new AtomicInteger();
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	issued = Collections.singletonList(X509Certificates.createEphemeral(
+		new X500Principal("CN=Example"), keyPair));
+    }
+
+    @Test
+    public void testRetransmissionIsNotEnrolledTwice() throws Exception {
+	assertThat(cache.enrol(transId, new byte[] { 1 }, enrolment(issued)),
+		is(issued));
+	assertThat(cache.enrol(transId, new byte[] { 1 }, enrolment(issued)),
+		is(issued));
+	assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testDifferentRequestIsEnrolled() throws Exception {
+	cache.enrol(transId, new byte[] { 1 }, enrolment(issued));
+	cache.enrol(transId, new byte[] { 2 }, enrolment(issued));
+
+	assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testPendingEnrolmentIsNotRemembered() throws Exception {
+	List<X509Certificate> pending = Collections.emptyList();
+	cache.enrol(transId, new byte[] { 1 }, enrolment(pending));
+	cache.enrol(transId, new byte[] { 1 }, enrolment(issued));
+
+	assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testFailedEnrolmentIsNotRemembered() throws Exception {
+	try {
+	    cache.enrol(transId, new byte[] { 1 },
+		    new Callable<List<X509Certificate>>() {
+			public List<X509Certificate> call() throws Exception {
+			    throw new OperationFailureException(
+				    FailInfo.badRequest);
+			}
+		    });
+	} catch (OperationFailureException e) {
+	    assertThat(e.getFailInfo(), is(FailInfo.badRequest));
+	}
+	cache.enrol(transId, new byte[] { 1 }, enrolment(issued));
+
+	assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testConcurrentDuplicatesAreCoalesced() throws Exception {
+	final CountDownLatch release = new CountDownLatch(1);
+	final Callable<List<X509Certificate>> slow = new Callable<List<X509Certificate>>() {
+	    public List<X509Certificate> call() throws Exception {
+		calls.incrementAndGet();
+		release.await();
+		return issued;
+	    }
+	};
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+	List<Future<List<X509Certificate>>> results = new ArrayList<Future<List<X509Certificate>>>();
+	for (int i = 0; i < 4; i++) {
+	    results.add(executor
+		    .submit(new Callable<List<X509Certificate>>() {
+			public List<X509Certificate> call() throws Exception {
+			    return cache.enrol(transId, new byte[] { 1 }, slow);
+			}
+		    }));
+	}
+	Thread.sleep(100);
+	release.countDown();
+	for (Future<List<X509Certificate>> result : results) {
+	    assertThat(result.get(), is(issued));
+	}
+	executor.shutdown();
+
+	assertThat(calls.get(), is(1));
+    }
+
+    private Callable<List<X509Certificate>> enrolment(
+	    final List<X509Certificate> certs) {
+	return new Callable<List<X509Certificate>>() {
+	    public List<X509Certificate> call() throws Exception {
+		calls.incrementAndGet();
+		return certs;
+	    }
+	};
+    }
+}
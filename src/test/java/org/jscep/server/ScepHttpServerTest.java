@@ -0,0 +1,188 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScepHttpServerTest {
+    private ScepHttpServer server;
+    private String base;
+
+    @Before
+    public void setUp() throws Exception {
+	server = new ScepHttpServer(new ScepServletImpl(),
+		new InetSocketAddress("127.0.0.1", 0), "/scep", 2);
+	server.setMaxRequestSize(1024);
+	server.start();
+	base = "http://127.0.0.1:" + server.getAddress().getPort() + "/scep";
+    }
+
+    @After
+    public void tearDown() {
+	server.stop(0);
+    }
+
+    @Test
+    public void testGetCaCapsIsServed() throws Exception {
+	HttpURLConnection conn = open("?operation=GetCACaps");
+
+	assertThat(conn.getResponseCode(), is(200));
+	assertThat(conn.getContentType(), is("text/plain"));
+	String caps = IOUtils.toString(conn.getInputStream(), "US-ASCII");
+	assertThat(caps.contains("POSTPKIOperation"), is(true));
+    }
+
+    @Test
+    public void testGetCaCertIsServed() throws Exception {
+	HttpURLConnection conn = open("?operation=GetCACert");
+
+	assertThat(conn.getResponseCode(), is(200));
+	assertThat(conn.getContentType(), is("application/x-x509-ca-cert"));
+	// Read the body, so that stopping the server cannot cut it short
+	byte[] cert = IOUtils.toByteArray(conn.getInputStream());
+	assertThat(cert.length > 0, is(true));
+    }
+
+    @Test
+    public void testMissingOperationIsBadRequest() throws Exception {
+	assertThat(open("").getResponseCode(), is(400));
+    }
+
+    @Test
+    public void testOversizedBodyIsRejected() throws Exception {
+	HttpURLConnection conn = open("?operation=PKIOperation");
+	conn.setRequestMethod("POST");
+	conn.setDoOutput(true);
+	conn.setFixedLengthStreamingMode(2048);
+	OutputStream out = conn.getOutputStream();
+	try {
+	    out.write(new byte[2048]);
+	    out.close();
+	} catch (IOException e) {
+	    // The server may close the connection before reading the body.
+	}
+
+	assertThat(conn.getResponseCode(), is(413));
+    }
+
+    @Test
+    public void testFullQueueIsUnavailable() throws Exception {
+	final CountDownLatch entered = new CountDownLatch(1);
+	final CountDownLatch release = new CountDownLatch(1);
+	ScepHttpServer busy = new ScepHttpServer(new ScepServletImpl() {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected List<X509Certificate> doGetCaCertificate(
+		    String identifier) {
+		entered.countDown();
+		try {
+		    release.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		return super.doGetCaCertificate(identifier);
+	    }
+	}, new InetSocketAddress("127.0.0.1", 0), "/scep", 1);
+	busy.setQueueDepth(1);
+	busy.start();
+	ExecutorService clients = Executors.newCachedThreadPool();
+	try {
+	    String url = "http://127.0.0.1:" + busy.getAddress().getPort()
+		    + "/scep?operation=";
+	    Future<Integer> blocked = clients.submit(status(url + "GetCACert"));
+	    entered.await();
+
+	    // One request waits in the queue, and the other is turned away
+	    Future<Integer> first = clients.submit(status(url + "GetCACaps"));
+	    Future<Integer> second = clients.submit(status(url + "GetCACaps"));
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (!first.isDone() && !second.isDone()
+		    && System.currentTimeMillis() < deadline) {
+		Thread.sleep(10);
+	    }
+	    Future<Integer> queued = first.isDone() ? second : first;
+	    Future<Integer> rejected = first.isDone() ? first : second;
+	    assertThat(rejected.get(), is(503));
+
+	    // A client which never finishes its request must not stall others
+	    Socket slow = new Socket("127.0.0.1", busy.getAddress().getPort());
+	    try {
+		slow.getOutputStream().write(
+			"GET /scep?operation=GetCA".getBytes("US-ASCII"));
+		slow.getOutputStream().flush();
+		Thread.sleep(100);
+		assertThat(clients.submit(status(url + "GetCACaps")).get(10,
+			TimeUnit.SECONDS), is(503));
+	    } finally {
+		slow.close();
+	    }
+
+	    release.countDown();
+	    assertThat(blocked.get(), is(200));
+	    assertThat(queued.get(), is(200));
+	} finally {
+	    release.countDown();
+	    clients.shutdown();
+	    busy.stop(0);
+	}
+    }
+
+    @Test
+    public void testServletIsDestroyedIfServerCannotStart() throws Exception {
+	final AtomicBoolean destroyed = new AtomicBoolean();
+	ScepHttpServer clash = new ScepHttpServer(new ScepServletImpl() {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    public void destroy() {
+		destroyed.set(true);
+	    }
+	}, server.getAddress(), "/scep", 1);
+	try {
+	    clash.start();
+	    fail("Expected the address to be in use");
+	} catch (IOException e) {
+	    assertThat(destroyed.get(), is(true));
+	}
+    }
+
+    private static Callable<Integer> status(final String url) {
+	return new Callable<Integer>() {
+	    public Integer call() throws Exception {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+			.openConnection();
+		try {
+		    return conn.getResponseCode();
+		} finally {
+		    conn.disconnect();
+		}
+	    }
+	};
+    }
+
+    private HttpURLConnection open(String query) throws Exception {
+	return (HttpURLConnection) new URL(base + query).openConnection();
+    }
+}
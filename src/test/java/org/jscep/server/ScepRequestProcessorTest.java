@@ -0,0 +1,161 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.jscep.message.GetCert;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.message.PrivateKeyOperator;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+import org.jscep.util.X509Certificates;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScepRequestProcessorTest {
+    private ScepRequestProcessor processor;
+    private Response res;
+
+    @Before
+    public void setUp() throws Exception {
+	ScepServletImpl servlet = new ScepServletImpl();
+	servlet.init();
+	processor = servlet.getRequestProcessor();
+	res = new Response();
+    }
+
+    @Test
+    public void testGetCaCapsIsProcessed() throws Exception {
+	processor.process(new ScepRequest("GET", "GetCACaps", null, null, -1,
+		"127.0.0.1"), res);
+
+	assertThat(res.status, is(200));
+	assertThat(res.contentType, is("text/plain"));
+	assertThat(res.body.toString("US-ASCII").contains("POSTPKIOperation"),
+		is(true));
+    }
+
+    @Test
+    public void testMissingOperationIsBadRequest() throws Exception {
+	processor.process(
+		new ScepRequest("GET", null, null, null, -1, "127.0.0.1"), res);
+
+	assertThat(res.status, is(400));
+    }
+
+    @Test
+    public void testPostOfDiscoveryIsNotAllowed() throws Exception {
+	processor.process(new ScepRequest("POST", "GetCACert", null, null, -1,
+		"127.0.0.1"), res);
+
+	assertThat(res.status, is(405));
+	assertThat(res.headers.get("Allow"), is("GET"));
+    }
+
+    @Test
+    public void testGarbagePkiOperationIsBadRequest() throws Exception {
+	byte[] body = "garbage".getBytes("US-ASCII");
+	processor.process(new ScepRequest("POST", "PKIOperation", null,
+		new ByteArrayInputStream(body), body.length, "127.0.0.1"), res);
+
+	assertThat(res.status, is(400));
+    }
+
+    @Test
+    public void testKeyOperatorFailureIsInternalError() throws Exception {
+	ScepServletImpl servlet = new ScepServletImpl() {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected PrivateKeyOperator getRecipientKeyOperator() {
+		return new FailingOperator();
+	    }
+	};
+	servlet.init();
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	X509Certificate cert = X509Certificates.createEphemeral(
+		new X500Principal("CN=Client"), keyPair);
+	PkiMessageEncoder encoder = new PkiMessageEncoder(
+		keyPair.getPrivate(), cert, new PkcsPkiEnvelopeEncoder(
+			servlet.getRecipient(), "DESede"));
+	byte[] body = encoder.encode(
+		new GetCert(TransactionId.createTransactionId(), Nonce
+			.nextNonce(), new IssuerAndSerialNumber(new X500Name(
+			"CN=CA"), BigInteger.ONE))).getEncoded();
+
+	servlet.getRequestProcessor().process(
+		new ScepRequest("POST", "PKIOperation", null,
+			new ByteArrayInputStream(body), body.length,
+			"127.0.0.1"), res);
+
+	assertThat(res.status, is(500));
+    }
+
+    /**
+     * An operator whose key is unavailable.
+     */
+    private static final class FailingOperator implements PrivateKeyOperator {
+	public Future<byte[]> decrypt(byte[] encryptedKey) {
+	    return fail();
+	}
+
+	public Future<byte[]> sign(AlgorithmIdentifier digestAlgorithm,
+		byte[] digest) {
+	    return fail();
+	}
+
+	private static Future<byte[]> fail() {
+	    FutureTask<byte[]> task = new FutureTask<byte[]>(
+		    new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+			    throw new IOException("Key unavailable");
+			}
+		    });
+	    task.run();
+	    return task;
+	}
+    }
+
+    private static final class Response implements ScepResponse {
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private int status;
+	private String contentType;
+
+	public void setHeader(String name, String value) {
+	    headers.put(name, value);
+	}
+
+	public void sendError(int status, String message) {
+	    this.status = status;
+	}
+
+	public OutputStream send(String contentType, long contentLength)
+		throws IOException {
+	    this.status = 200;
+	    this.contentType = contentType;
+	    return body;
+	}
+    }
+}
@@ -13,11 +13,16 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -50,13 +55,27 @@ public class ScepServletImpl extends ScepServlet {
      */
     private static final Logger LOGGER = LoggerFactory
 	    .getLogger(ScepServletImpl.class);
-    private static final Map<IssuerAndSerialNumber, X509Certificate> CACHE = new HashMap<IssuerAndSerialNumber, X509Certificate>();
+    private static final Map<IssuerAndSerialNumber, X509Certificate> CACHE = new ConcurrentHashMap<IssuerAndSerialNumber, X509Certificate>();
+    private static final SenderNonceCache NONCES = new SenderNonceCache(
+	    1024, 10, TimeUnit.MINUTES);
+    private static final RetransmissionCache RETRANSMISSIONS = new RetransmissionCache(
+	    1024, 10, TimeUnit.MINUTES);
+    static final PendingTransactionStore PENDING = new PendingTransactionStore(
+	    1024 * 1024, 10, TimeUnit.MINUTES);
+    static final AtomicInteger ENROLMENTS = new AtomicInteger();
+    static final AtomicInteger CAPABILITIES = new AtomicInteger();
+    static final AtomicInteger POLLS = new AtomicInteger();
+    static final ServerMetrics METRICS = new ServerMetrics();
+    static final CountDownLatch SLOW = new CountDownLatch(1);
+    private static final ExecutorService BACKEND = Executors
+	    .newCachedThreadPool();
     private static final long serialVersionUID = 1L;
     private PrivateKey priKey;
     private PublicKey pubKey;
     private X509Certificate ca;
     private X500Name name;
     private X500Name pollName;
+    private X500Name slowName;
     private BigInteger caSerial;
 
     public void init(ServletContext context) {
@@ -67,6 +86,7 @@ public class ScepServletImpl extends ScepServlet {
     public void init() throws ServletException {
 	name = new X500Name("CN=Certification Authority");
 	pollName = new X500Name("CN=Poll");
+	slowName = new X500Name("CN=Slow");
 	caSerial = BigInteger.TEN;
 	try {
 	    KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
@@ -110,12 +130,17 @@ public class ScepServletImpl extends ScepServlet {
     @Override
     protected List<X509Certificate> doEnrol(PKCS10CertificationRequest csr,
 	    TransactionId transId) throws OperationFailureException {
+	ENROLMENTS.incrementAndGet();
 	try {
 	    X500Name subject = X500Name.getInstance(csr.getSubject());
 	    LOGGER.debug(subject.toString());
 	    if (subject.equals(pollName)) {
+		PENDING.addPending(name, subject, transId);
 		return Collections.emptyList();
 	    }
+	    if (subject.equals(slowName)) {
+		SLOW.await();
+	    }
 	    String password = getPassword(csr);
 	    if (!password.equals("password")) {
 		LOGGER.debug("Invalid password");
@@ -168,8 +193,9 @@ public class ScepServletImpl extends ScepServlet {
 
     @Override
     protected Set<Capability> doCapabilities(String identifier) {
+	CAPABILITIES.incrementAndGet();
 	return EnumSet.of(Capability.SHA_1, Capability.SHA_256,
-		Capability.SHA_512, Capability.POST_PKI_OPERATION);
+		Capability.SHA_512, Capability.POST_PKI_OPERATION, Capability.AES);
     }
 
     @Override
@@ -189,6 +215,7 @@ public class ScepServletImpl extends ScepServlet {
     protected List<X509Certificate> doGetCertInitial(X500Name issuer,
 	    X500Name subject, TransactionId transId)
 	    throws OperationFailureException {
+	POLLS.incrementAndGet();
 	if (subject.equals(pollName)) {
 	    return Collections.emptyList();
 	}
@@ -228,4 +255,65 @@ public class ScepServletImpl extends ScepServlet {
 	return ca;
     }
 
+    @Override
+    protected SenderNonceCache getSenderNonceCache() {
+	return NONCES;
+    }
+
+    @Override
+    protected RetransmissionCache getRetransmissionCache() {
+	return RETRANSMISSIONS;
+    }
+
+    @Override
+    protected PendingTransactionStore getPendingTransactionStore() {
+	return PENDING;
+    }
+
+    @Override
+    protected long getDiscoveryCacheTtl() {
+	return 60000L;
+    }
+
+    @Override
+    protected long getPendingStatusTtl() {
+	return 60000L;
+    }
+
+    @Override
+    protected int getRetryAfter() {
+	return 5;
+    }
+
+    @Override
+    protected int getEnrolBatchSize() {
+	return 4;
+    }
+
+    @Override
+    protected long getEnrolBatchWindow() {
+	return 5;
+    }
+
+    @Override
+    protected Set<Capability> getNegotiableAlgorithms() {
+	return EnumSet.of(Capability.AES, Capability.TRIPLE_DES,
+		Capability.SHA_1, Capability.SHA_256, Capability.SHA_512);
+    }
+
+    @Override
+    protected ScepServletListener getListener() {
+	return METRICS;
+    }
+
+    @Override
+    protected ExecutorService getBackendExecutor() {
+	return BACKEND;
+    }
+
+    @Override
+    protected long getBackendTimeout() {
+	return 1000L;
+    }
+
 }
@@ -2,9 +2,11 @@ package org.jscep.server;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
@@ -15,19 +17,26 @@ import java.security.PublicKey;
 import java.security.cert.CertStore;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.asn1.DERPrintableString;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509v1CertificateBuilder;
+import org.bouncycastle.cms.CMSEnvelopedData;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
@@ -35,26 +44,36 @@ import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.bouncycastle.pkcs.PKCS10CertificationRequestBuilder;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.message.CertRep;
+import org.jscep.message.GetCert;
 import org.jscep.message.PkcsPkiEnvelopeDecoder;
 import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkcsReq;
 import org.jscep.message.PkiMessageDecoder;
 import org.jscep.message.PkiMessageEncoder;
 import org.jscep.transaction.EnrollmentTransaction;
+import org.jscep.transaction.FailInfo;
 import org.jscep.transaction.MessageType;
 import org.jscep.transaction.NonEnrollmentTransaction;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.PkiStatus;
 import org.jscep.transaction.Transaction;
 import org.jscep.transaction.Transaction.State;
+import org.jscep.transaction.TransactionId;
 import org.jscep.transport.HttpGetTransport;
 import org.jscep.transport.Transport;
 import org.jscep.transport.TransportException;
 import org.jscep.transport.request.GetCaCapsRequest;
 import org.jscep.transport.request.GetCaCertRequest;
 import org.jscep.transport.request.GetNextCaCertRequest;
+import org.jscep.transport.request.PkiOperationRequest;
 import org.jscep.transport.response.Capabilities;
 import org.jscep.transport.response.GetCaCapsResponseHandler;
 import org.jscep.transport.response.GetCaCertResponseHandler;
 import org.jscep.transport.response.GetNextCaCertResponseHandler;
+import org.jscep.transport.response.PkiOperationResponseHandler;
 import org.jscep.util.X500Utils;
 import org.junit.After;
 import org.junit.Before;
@@ -70,6 +89,7 @@ public class ScepServletTest {
 	private PublicKey pubKey;
 	private X509Certificate sender;
 	private Server server;
+	private ServletHolder holder;
 	private int port;
 	private String goodIdentifier;
 	private String badIdentifier;
@@ -89,9 +109,14 @@ public class ScepServletTest {
 	}
 
 	private X509Certificate generateCertificate() throws Exception {
+		return generateCertificate(pubKey, priKey, "SHA1withRSA");
+	}
+
+	private X509Certificate generateCertificate(PublicKey pubKey,
+			PrivateKey priKey, String sigAlg) throws Exception {
 		ContentSigner signer;
 		try {
-			signer = new JcaContentSignerBuilder("SHA1withRSA").build(priKey);
+			signer = new JcaContentSignerBuilder(sigAlg).build(priKey);
 		} catch (OperatorCreationException e) {
 			throw new Exception(e);
 		}
@@ -109,7 +134,7 @@ public class ScepServletTest {
 	@Before
 	public void startUp() throws Exception {
 		final ServletHandler handler = new ServletHandler();
-		handler.addServletWithMapping(ScepServletImpl.class, PATH);
+		holder = handler.addServletWithMapping(ScepServletImpl.class, PATH);
 
 		server = new Server(0);
 		server.setHandler(handler);
@@ -123,6 +148,10 @@ public class ScepServletTest {
 		server.stop();
 	}
 
+	private ScepServlet getServlet() throws Exception {
+		return (ScepServlet) holder.getServlet();
+	}
+
 	private URL getURL() throws MalformedURLException {
 		return new URL("http", "localhost", port, PATH);
 	}
@@ -152,6 +181,21 @@ public class ScepServletTest {
 		System.out.println(caps);
 	}
 
+	@Test
+	public void testGetCaCapsIsAnsweredFromCache() throws Exception {
+		GetCaCapsRequest req = new GetCaCapsRequest();
+		Transport transport = new HttpGetTransport(getURL());
+		int calls = ScepServletImpl.CAPABILITIES.get();
+
+		Capabilities first = transport.sendRequest(req,
+				new GetCaCapsResponseHandler());
+		Capabilities second = transport.sendRequest(req,
+				new GetCaCapsResponseHandler());
+
+		assertThat(second.toString(), is(first.toString()));
+		assertThat(ScepServletImpl.CAPABILITIES.get(), is(calls + 1));
+	}
+
 	@Test
 	public void getNextCaCertificateGood() throws Exception {
 		GetNextCaCertRequest req = new GetNextCaCertRequest(goodIdentifier);
@@ -193,6 +237,97 @@ public class ScepServletTest {
 		assertThat(s, is(State.CERT_ISSUED));
 	}
 
+	@Test
+	public void testResponseHasContentLength() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DESede");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+		byte[] msg = encoder.encode(
+				new PkcsReq(TransactionId.createTransactionId(),
+						Nonce.nextNonce(), csr)).getEncoded();
+
+		URL url = new URL(getURL() + "?operation=PKIOperation");
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.getOutputStream().write(msg);
+
+		assertThat(conn.getResponseCode(), is(200));
+		byte[] body = IOUtils.toByteArray(conn.getInputStream());
+		assertThat(conn.getContentLength(), is(body.length));
+		new CMSSignedData(body);
+	}
+
+	@Test
+	public void testResponseMirrorsRequestAlgorithms() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "AES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder, "SHA256withRSA");
+
+		PkiOperationRequest req = new PkiOperationRequest(
+				encoder.encode(new PkcsReq(TransactionId.createTransactionId(),
+						Nonce.nextNonce(), csr)));
+		Transport transport = new HttpGetTransport(getURL());
+		CMSSignedData res = transport.sendRequest(req,
+				new PkiOperationResponseHandler());
+
+		SignerInformation signer = (SignerInformation) res.getSignerInfos()
+				.getSigners().iterator().next();
+		assertThat(signer.getDigestAlgOID(),
+				is(NISTObjectIdentifiers.id_sha256.getId()));
+		CMSEnvelopedData envelope = new CMSEnvelopedData(
+				(byte[]) res.getSignedContent().getContent());
+		assertThat(envelope.getEncryptionAlgOID(),
+				is(NISTObjectIdentifiers.id_aes128_CBC.getId()));
+	}
+
+	@Test
+	public void testResponseMirrorsAes192() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "AES192");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkiOperationRequest req = new PkiOperationRequest(
+				encoder.encode(new PkcsReq(TransactionId.createTransactionId(),
+						Nonce.nextNonce(), csr)));
+		Transport transport = new HttpGetTransport(getURL());
+		CMSSignedData res = transport.sendRequest(req,
+				new PkiOperationResponseHandler());
+
+		CMSEnvelopedData envelope = new CMSEnvelopedData(
+				(byte[]) res.getSignedContent().getContent());
+		assertThat(envelope.getEncryptionAlgOID(),
+				is(NISTObjectIdentifiers.id_aes192_CBC.getId()));
+	}
+
+	@Test
+	public void testOversizedMessageIsRejected() throws Exception {
+		URL url = new URL(getURL() + "?operation=PKIOperation");
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setFixedLengthStreamingMode(256 * 1024);
+		try {
+			conn.getOutputStream().write(new byte[256 * 1024]);
+		} catch (IOException e) {
+			// The server may close the connection before the body is sent.
+		}
+
+		assertThat(conn.getResponseCode(), is(413));
+	}
+
 	@Test
 	public void testGetCertBad() throws Exception {
 		IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, badSerial);
@@ -260,6 +395,166 @@ public class ScepServletTest {
 		assertThat(s, is(State.CERT_ISSUED));
 	}
 
+	@Test
+	public void testEnrollmentAes() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "AES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		Transport transport = new HttpGetTransport(getURL());
+		Transaction t = new EnrollmentTransaction(transport, encoder, decoder,
+				csr);
+
+		State s = t.send();
+		assertThat(s, is(State.CERT_ISSUED));
+	}
+
+	@Test
+	public void testEnrollmentEcP256() throws Exception {
+		assertThat(enrolEc("secp256r1", "SHA256withECDSA"),
+				is(State.CERT_ISSUED));
+	}
+
+	@Test
+	public void testEnrollmentEcP384() throws Exception {
+		assertThat(enrolEc("secp384r1", "SHA384withECDSA"),
+				is(State.CERT_ISSUED));
+	}
+
+	private State enrolEc(String curve, String sigAlg) throws Exception {
+		KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("EC");
+		keyPairGen.initialize(new ECGenParameterSpec(curve));
+		KeyPair keyPair = keyPairGen.generateKeyPair();
+		X509Certificate ecSender = generateCertificate(keyPair.getPublic(),
+				keyPair.getPrivate(), sigAlg);
+		PKCS10CertificationRequest csr = getCsr(name, keyPair.getPublic(),
+				keyPair.getPrivate(), "password".toCharArray(), sigAlg);
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "AES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(
+				keyPair.getPrivate(), ecSender, envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(
+				ecSender, keyPair.getPrivate());
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		Transport transport = new HttpGetTransport(getURL());
+		Transaction t = new EnrollmentTransaction(transport, encoder, decoder,
+				csr);
+
+		return t.send();
+	}
+
+	@Test
+	public void testReplayedEnrolmentIsAnsweredFromCache() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DESede");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		TransactionId transId = TransactionId.createTransactionId();
+		PkiOperationRequest req = new PkiOperationRequest(
+				encoder.encode(new PkcsReq(transId, Nonce.nextNonce(), csr)));
+		Transport transport = new HttpGetTransport(getURL());
+		int enrolments = ScepServletImpl.ENROLMENTS.get();
+
+		CertRep first = (CertRep) decoder.decode(transport.sendRequest(req,
+				new PkiOperationResponseHandler()));
+		assertThat(first.getPkiStatus(), is(PkiStatus.SUCCESS));
+
+		CertRep resend = (CertRep) decoder.decode(transport.sendRequest(req,
+				new PkiOperationResponseHandler()));
+		assertThat(resend.getPkiStatus(), is(PkiStatus.SUCCESS));
+		assertThat(resend.getMessageData().getCertificates().getMatches(null),
+				is(first.getMessageData().getCertificates().getMatches(null)));
+		assertThat(ScepServletImpl.ENROLMENTS.get(), is(enrolments + 1));
+	}
+
+	@Test
+	public void testReplayedRequestIsRejected() throws Exception {
+		IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, goodSerial);
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DESede");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkiOperationRequest req = new PkiOperationRequest(
+				encoder.encode(new GetCert(TransactionId
+						.createTransactionId(), Nonce.nextNonce(), iasn)));
+		Transport transport = new HttpGetTransport(getURL());
+
+		transport.sendRequest(req, new PkiOperationResponseHandler());
+		try {
+			transport.sendRequest(req, new PkiOperationResponseHandler());
+			fail("Expected replay to be rejected");
+		} catch (TransportException e) {
+			assertThat(e.getMessage().startsWith("400"), is(true));
+		}
+	}
+
+	@Test
+	public void testRetransmissionIsAnsweredFromCache() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(name, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DESede");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		TransactionId transId = TransactionId.createTransactionId();
+		Transport transport = new HttpGetTransport(getURL());
+		int enrolments = ScepServletImpl.ENROLMENTS.get();
+
+		CMSSignedData first = getMessageData(transport, encoder, decoder,
+				new PkcsReq(transId, Nonce.nextNonce(), csr));
+		CMSSignedData second = getMessageData(transport, encoder, decoder,
+				new PkcsReq(transId, Nonce.nextNonce(), csr));
+
+		assertThat(ScepServletImpl.ENROLMENTS.get(), is(enrolments + 1));
+		assertThat(second.getCertificates().getMatches(null),
+				is(first.getCertificates().getMatches(null)));
+	}
+
+	private CMSSignedData getMessageData(Transport transport,
+			PkiMessageEncoder encoder, PkiMessageDecoder decoder,
+			PkcsReq pkcsReq) throws Exception {
+		PkiOperationRequest req = new PkiOperationRequest(
+				encoder.encode(pkcsReq));
+		CertRep certRep = (CertRep) decoder.decode(transport.sendRequest(req,
+				new PkiOperationResponseHandler()));
+		assertThat(certRep.getPkiStatus(), is(PkiStatus.SUCCESS));
+		assertThat(certRep.getRecipientNonce(),
+				is(pkcsReq.getSenderNonce()));
+
+		return certRep.getMessageData();
+	}
+
 	@Test
 	public void testEnrollmentWithPoll() throws Exception {
 		PKCS10CertificationRequest csr = getCsr(pollName, pubKey, priKey,
@@ -280,6 +575,7 @@ public class ScepServletTest {
 				encoder, decoder, csr);
 		State state = trans.send();
 		assertThat(state, is(State.CERT_REQ_PENDING));
+		assertThat(trans.getRetryAfter(), is(5));
 
 		IssuerAndSubject ias = new IssuerAndSubject(X500Utils.toX500Name(sender
 				.getIssuerX500Principal()), pollName);
@@ -287,16 +583,140 @@ public class ScepServletTest {
 				trans.getId());
 		state = trans.send();
 		assertThat(state, is(State.CERT_REQ_PENDING));
+		assertThat(trans.getRetryAfter(), is(5));
+	}
+
+	@Test
+	public void testPollIsAnsweredFromStore() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(pollName, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		Transport transport = new HttpGetTransport(getURL());
+		EnrollmentTransaction first = new EnrollmentTransaction(transport,
+				encoder, decoder, csr);
+		assertThat(first.send(), is(State.CERT_REQ_PENDING));
+		KeyPair other = KeyPairGenerator.getInstance("RSA").genKeyPair();
+		EnrollmentTransaction second = new EnrollmentTransaction(transport,
+				encoder, decoder, getCsr(pollName, other.getPublic(),
+						other.getPrivate(), "password".toCharArray()));
+		assertThat(second.send(), is(State.CERT_REQ_PENDING));
+
+		assertThat(ScepServletImpl.PENDING.complete(first.getId(),
+				Collections.singletonList(sender)), is(true));
+		getServlet().invalidatePendingStatus(first.getId());
+
+		IssuerAndSubject ias = new IssuerAndSubject(X500Utils.toX500Name(sender
+				.getIssuerX500Principal()), pollName);
+		EnrollmentTransaction poll = new EnrollmentTransaction(transport,
+				encoder, decoder, ias, first.getId());
+		assertThat(poll.send(), is(State.CERT_ISSUED));
+		assertThat(poll.getCertStore().getCertificates(null).contains(sender),
+				is(true));
+
+		// A poll for another transaction for the same subject stays pending
+		poll = new EnrollmentTransaction(transport, encoder, decoder, ias,
+				second.getId());
+		assertThat(poll.send(), is(State.CERT_REQ_PENDING));
+	}
+
+	@Test
+	public void testPendingPollSkipsBackend() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(pollName, pubKey, priKey,
+				"password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		Transport transport = new HttpGetTransport(getURL());
+		EnrollmentTransaction trans = new EnrollmentTransaction(transport,
+				encoder, decoder, csr);
+		assertThat(trans.send(), is(State.CERT_REQ_PENDING));
+		TransactionId transId = trans.getId();
+		// Leave the poll to doGetCertInitial rather than the store
+		ScepServletImpl.PENDING.remove(transId);
+
+		IssuerAndSubject ias = new IssuerAndSubject(X500Utils.toX500Name(sender
+				.getIssuerX500Principal()), pollName);
+		int polls = ScepServletImpl.POLLS.get();
+		trans = new EnrollmentTransaction(transport, encoder, decoder, ias,
+				transId);
+		assertThat(trans.send(), is(State.CERT_REQ_PENDING));
+		assertThat(ScepServletImpl.POLLS.get(), is(polls));
+
+		getServlet().invalidatePendingStatus(transId);
+		trans = new EnrollmentTransaction(transport, encoder, decoder, ias,
+				transId);
+		assertThat(trans.send(), is(State.CERT_REQ_PENDING));
+		assertThat(ScepServletImpl.POLLS.get(), is(polls + 1));
+
+		trans = new EnrollmentTransaction(transport, encoder, decoder, ias,
+				transId);
+		assertThat(trans.send(), is(State.CERT_REQ_PENDING));
+		assertThat(ScepServletImpl.POLLS.get(), is(polls + 1));
+	}
+
+	@Test
+	public void testSlowEnrollmentIsPending() throws Exception {
+		PKCS10CertificationRequest csr = getCsr(new X500Name("CN=Slow"),
+				pubKey, priKey, "password".toCharArray());
+
+		PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(
+				getRecipient(), "DES");
+		PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, sender,
+				envEncoder);
+
+		PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(sender,
+				priKey);
+		PkiMessageDecoder decoder = new PkiMessageDecoder(getRecipient(),
+				envDecoder);
+
+		Transport transport = new HttpGetTransport(getURL());
+		EnrollmentTransaction trans = new EnrollmentTransaction(transport,
+				encoder, decoder, csr);
+		State state = trans.send();
+		assertThat(state, is(State.CERT_REQ_PENDING));
+
+		ScepServletImpl.SLOW.countDown();
+		getServlet().invalidatePendingStatus(trans.getId());
+		IssuerAndSubject ias = new IssuerAndSubject(X500Utils.toX500Name(sender
+				.getIssuerX500Principal()), new X500Name("CN=Slow"));
+		trans = new EnrollmentTransaction(transport, encoder, decoder, ias,
+				trans.getId());
+		state = trans.send();
+		assertThat(state, is(State.CERT_ISSUED));
 	}
 
 	private PKCS10CertificationRequest getCsr(X500Name subject,
 			PublicKey pubKey, PrivateKey priKey, char[] password)
 			throws GeneralSecurityException, IOException {
+		return getCsr(subject, pubKey, priKey, password, "SHA1withRSA");
+	}
+
+	private PKCS10CertificationRequest getCsr(X500Name subject,
+			PublicKey pubKey, PrivateKey priKey, char[] password,
+			String sigAlg) throws GeneralSecurityException, IOException {
 		SubjectPublicKeyInfo pkInfo = SubjectPublicKeyInfo.getInstance(pubKey
 				.getEncoded());
 
 		JcaContentSignerBuilder signerBuilder = new JcaContentSignerBuilder(
-				"SHA1withRSA");
+				sigAlg);
 		ContentSigner signer;
 		try {
 			signer = signerBuilder.build(priKey);
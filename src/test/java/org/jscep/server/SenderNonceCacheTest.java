@@ -0,0 +1,42 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.transaction.Nonce;
+import org.junit.Test;
+
+public class SenderNonceCacheTest {
+    @Test
+    public void testReplayIsDetected() {
+	SenderNonceCache cache = new SenderNonceCache(16, 1, TimeUnit.DAYS);
+	Nonce nonce = Nonce.nextNonce();
+
+	assertThat(cache.addIfAbsent(nonce), is(true));
+	assertThat(cache.addIfAbsent(nonce), is(false));
+	assertThat(cache.addIfAbsent(Nonce.nextNonce()), is(true));
+    }
+
+    @Test
+    public void testNonceIsForgottenAfterWindow() throws Exception {
+	SenderNonceCache cache = new SenderNonceCache(16, 70,
+		TimeUnit.MILLISECONDS);
+	Nonce nonce = Nonce.nextNonce();
+	cache.addIfAbsent(nonce);
+	Thread.sleep(200);
+
+	assertThat(cache.addIfAbsent(nonce), is(true));
+    }
+
+    @Test
+    public void testFullCacheLetsNoncesThrough() {
+	SenderNonceCache cache = new SenderNonceCache(8, 1, TimeUnit.DAYS);
+	cache.addIfAbsent(Nonce.nextNonce());
+	Nonce unrecorded = Nonce.nextNonce();
+
+	assertThat(cache.addIfAbsent(unrecorded), is(true));
+	assertThat(cache.addIfAbsent(unrecorded), is(true));
+    }
+}
@@ -0,0 +1,87 @@
+package org.jscep.server;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.PkiStatus;
+import org.jscep.transport.request.Operation;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerMetricsTest {
+    private ServerMetrics metrics;
+
+    @Before
+    public void setUp() {
+	metrics = new ServerMetrics();
+    }
+
+    @Test
+    public void testRequestIsCounted() {
+	metrics.requestCompleted(newEvent(MessageType.PKCS_REQ,
+		PkiStatus.SUCCESS, null));
+	metrics.requestCompleted(newEvent(MessageType.GET_CERT,
+		PkiStatus.FAILURE, FailInfo.badCertId));
+
+	assertThat(metrics.getCount(Operation.PKI_OPERATION), is(2L));
+	assertThat(metrics.getCount(MessageType.PKCS_REQ), is(1L));
+	assertThat(metrics.getCount(MessageType.GET_CERT), is(1L));
+	assertThat(metrics.getCount(PkiStatus.SUCCESS), is(1L));
+	assertThat(metrics.getCount(PkiStatus.FAILURE), is(1L));
+	assertThat(metrics.getCount(FailInfo.badCertId), is(1L));
+	assertThat(metrics.getCount(Operation.GET_CA_CERT), is(0L));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+	metrics.requestCompleted(newEvent(MessageType.PKCS_REQ,
+		PkiStatus.PENDING, null));
+
+	assertThat(metrics.getAttribute("MessageType.PKCS_REQ.Count"),
+		is((Object) 1L));
+	assertThat(metrics.getAttribute("PkiStatus.PENDING"), is((Object) 1L));
+	assertThat(metrics.getAttribute("BytesIn"), is((Object) 100L));
+	assertThat(metrics.getAttribute("BytesOut"), is((Object) 200L));
+    }
+
+    @Test(expected = AttributeNotFoundException.class)
+    public void testUnknownAttribute() throws Exception {
+	metrics.getAttribute("Unknown");
+    }
+
+    @Test
+    public void testRegistration() throws Exception {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	ObjectName name = new ObjectName("org.jscep:type=ServerMetricsTest");
+	server.registerMBean(metrics, name);
+	try {
+	    metrics.requestCompleted(newEvent(MessageType.GET_CRL,
+		    PkiStatus.SUCCESS, null));
+
+	    assertThat(server.getAttribute(name, "MessageType.GET_CRL.Count"),
+		    is((Object) 1L));
+	} finally {
+	    server.unregisterMBean(name);
+	}
+    }
+
+    private ScepRequestEvent newEvent(MessageType type, PkiStatus status,
+	    FailInfo failInfo) {
+	ScepRequestEvent event = new ScepRequestEvent();
+	event.setOperation(Operation.PKI_OPERATION);
+	event.setMessageType(type);
+	event.setOutcome(status, failInfo);
+	event.setRequestSize(100);
+	event.setResponseSize(200);
+	event.complete();
+	return event;
+    }
+}
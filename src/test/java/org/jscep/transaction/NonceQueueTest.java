@@ -3,6 +3,15 @@ package org.jscep.transaction;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -21,4 +30,74 @@ public class NonceQueueTest {
     public void testQueueContainsOriginalNonce() {
 	assertThat(queue.contains(nonce), is(true));
     }
+
+    @Test
+    public void testQueueDoesNotContainOtherNonce() {
+	assertThat(queue.contains(Nonce.nextNonce()), is(false));
+    }
+
+    @Test
+    public void testAddIfAbsentRejectsReplay() {
+	assertThat(queue.addIfAbsent(nonce), is(false));
+	assertThat(queue.addIfAbsent(Nonce.nextNonce()), is(true));
+    }
+
+    @Test
+    public void testShortNonce() {
+	Nonce shortNonce = new Nonce(new byte[] { 1, 2, 3 });
+	assertThat(queue.addIfAbsent(shortNonce), is(true));
+	assertThat(queue.contains(shortNonce), is(true));
+	assertThat(queue.contains(new Nonce(new byte[] { 1, 2 })), is(false));
+    }
+
+    @Test
+    public void testOldestNonceIsEvictedAtCapacity() {
+	NonceQueue small = new NonceQueue(1, 1, TimeUnit.MINUTES);
+	Nonce second = Nonce.nextNonce();
+	small.add(nonce);
+	small.add(second);
+
+	assertThat(small.contains(nonce), is(false));
+	assertThat(small.contains(second), is(true));
+    }
+
+    @Test
+    public void testNonceExpiresAfterWindow() throws Exception {
+	NonceQueue shortLived = new NonceQueue(16, 50, TimeUnit.MILLISECONDS);
+	shortLived.add(nonce);
+	Thread.sleep(100);
+
+	assertThat(shortLived.contains(nonce), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+	new NonceQueue(0, 1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testConcurrentReplayIsAcceptedOnce() throws Exception {
+	final Nonce shared = Nonce.nextNonce();
+	final CountDownLatch start = new CountDownLatch(1);
+	ExecutorService executor = Executors.newFixedThreadPool(8);
+	List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+	for (int i = 0; i < 8; i++) {
+	    results.add(executor.submit(new Callable<Boolean>() {
+		public Boolean call() throws Exception {
+		    start.await();
+		    return queue.addIfAbsent(shared);
+		}
+	    }));
+	}
+	start.countDown();
+	int accepted = 0;
+	for (Future<Boolean> result : results) {
+	    if (result.get()) {
+		accepted++;
+	    }
+	}
+	executor.shutdown();
+
+	assertThat(accepted, is(1));
+    }
 }
@@ -0,0 +1,85 @@
+package org.jscep.transport.response;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.security.Provider;
+import java.security.Security;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlgorithmIndexTest {
+    private Provider[] providers;
+
+    @Before
+    public void setUp() {
+	providers = Security.getProviders();
+    }
+
+    @After
+    public void tearDown() {
+	for (Provider provider : Security.getProviders()) {
+	    Security.removeProvider(provider.getName());
+	}
+	for (Provider provider : providers) {
+	    Security.addProvider(provider);
+	}
+    }
+
+    @Test
+    public void testIndexIsShared() {
+	assertThat(AlgorithmIndex.getInstance(),
+		is(sameInstance(AlgorithmIndex.getInstance())));
+    }
+
+    @Test
+    public void testIndexContainsStandardNames() {
+	AlgorithmIndex index = AlgorithmIndex.getInstance();
+	assertThat(index.contains("MessageDigest", "MD5"), is(true));
+	assertThat(index.contains("MessageDigest", "Unknown"), is(false));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenProvidersChange() {
+	AlgorithmIndex before = AlgorithmIndex.getInstance();
+	for (Provider provider : providers) {
+	    Security.removeProvider(provider.getName());
+	}
+	AlgorithmIndex after = AlgorithmIndex.getInstance();
+
+	assertThat(after == before, is(false));
+	assertThat(after.contains("MessageDigest", "MD5"), is(false));
+    }
+
+    @Test
+    public void testSignatureAlgorithmIsRemembered() {
+	Capabilities caps = new Capabilities(Capability.SHA_512);
+	for (int i = 0; i < 2; i++) {
+	    assertThat(caps.getStrongestSignatureAlgorithm("RSA"),
+		    is("SHA512withRSA"));
+	    assertThat(caps.getStrongestSignatureAlgorithm("EC"),
+		    is("SHA512withECDSA"));
+	}
+
+	for (Provider provider : providers) {
+	    Security.removeProvider(provider.getName());
+	}
+	assertThat(caps.getStrongestSignatureAlgorithm("RSA") == null,
+		is(true));
+    }
+
+    @Test
+    public void testCapabilitiesFollowProviderChanges() {
+	Capabilities caps = new Capabilities(Capability.SHA_512);
+	assertThat(caps.getStrongestMessageDigest().getAlgorithm(),
+		is("SHA-512"));
+
+	for (Provider provider : providers) {
+	    Security.removeProvider(provider.getName());
+	}
+	assertThat(caps.getStrongestMessageDigest() == null, is(true));
+    }
+}
@@ -2,6 +2,7 @@ package org.jscep.transport.response;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -83,4 +84,43 @@ public class CapabilitiesTest {
 	    Security.addProvider(provider);
 	}
     }
+
+    @Test
+    public void testNoAlgorithmSupportYieldsNoEcSignature() {
+	Provider[] providers = Security.getProviders();
+	for (Provider provider : providers) {
+	    Security.removeProvider(provider.getName());
+	}
+	Capabilities caps = new Capabilities(Capability.SHA_256);
+	assertThat(caps.getStrongestSignatureAlgorithm("EC"), is(nullValue()));
+
+	for (Provider provider : providers) {
+	    Security.addProvider(provider);
+	}
+    }
+
+    @Test
+    public void testEcSignatureAlgorithmUsesEcdsa() {
+	Capabilities caps = new Capabilities(Capability.SHA_1,
+		Capability.SHA_256, Capability.SHA_512);
+	assertEquals("SHA512withECDSA",
+		caps.getStrongestSignatureAlgorithm("EC"));
+    }
+
+    @Test
+    public void testRsaSignatureAlgorithmUsesStrongestDigest() {
+	Capabilities caps = new Capabilities(Capability.SHA_1,
+		Capability.SHA_256, Capability.SHA_512);
+	assertEquals("SHA512withRSA", caps.getStrongestSignatureAlgorithm());
+	assertEquals("SHA512withRSA",
+		caps.getStrongestSignatureAlgorithm("RSA"));
+    }
+
+    @Test
+    public void testSignatureAlgorithmFollowsCapabilities() {
+	Capabilities caps = new Capabilities(Capability.SHA_256);
+	assertEquals("SHA256withRSA", caps.getStrongestSignatureAlgorithm());
+	assertEquals("SHA256withECDSA",
+		caps.getStrongestSignatureAlgorithm("EC"));
+    }
 }
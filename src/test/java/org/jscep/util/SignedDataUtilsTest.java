@@ -0,0 +1,71 @@
+package org.jscep.util;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaCRLStore;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignedDataUtilsTest {
+    private byte[] signedData;
+
+    @Before
+    public void setUp() throws Exception {
+	KeyPair keyPair = KeyPairGenerator.getInstance("RSA").genKeyPair();
+	X509Certificate cert = X509Certificates.createEphemeral(
+		new X500Principal("CN=jscep.org"), keyPair);
+
+	X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(new X500Name(
+		"CN=jscep.org"), new Date());
+	for (int i = 0; i < 1000; i++) {
+	    crlBuilder.addCRLEntry(BigInteger.valueOf(i), new Date(),
+		    0);
+	}
+	X509CRLHolder crlHolder = crlBuilder.build(new JcaContentSignerBuilder(
+		"SHA1withRSA").build(keyPair.getPrivate()));
+	X509CRL crl = new JcaX509CRLConverter().getCRL(crlHolder);
+
+	CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+	generator.addCertificates(new JcaCertStore(Collections
+		.singleton(cert)));
+	generator.addCRLs(new JcaCRLStore(Collections.singleton(crl)));
+	signedData = generator.generate(new CMSAbsentContent()).getEncoded();
+    }
+
+    @Test
+    public void testReadCertsAndCrls() throws Exception {
+	Collection<Object> certsAndCrls = new ArrayList<Object>();
+	SignedDataUtils.readCertsAndCrls(new ByteArrayInputStream(signedData),
+		certsAndCrls);
+
+	assertThat(certsAndCrls.size(), is(2));
+	Iterator<Object> it = certsAndCrls.iterator();
+	assertThat(it.next(), instanceOf(X509Certificate.class));
+	X509CRL crl = (X509CRL) it.next();
+	assertThat(crl.getRevokedCertificates().size(), is(1000));
+    }
+}